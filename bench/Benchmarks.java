@@ -0,0 +1,37 @@
+package bench;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs every benchmark in this package and writes the results as JSON, so runs of different releases can be compared.
+ *
+ * Usage: Benchmarks [result file] [benchmark regex], the defaults are bench_output.json and all benchmarks.
+ */
+public final class Benchmarks {
+
+    // Hide implicit public constructor.
+    private Benchmarks() {
+
+    }
+
+    public static void main(String[] args) throws RunnerException {
+
+        String result = args.length > 0 ? args[0] : "bench_output.json";
+
+        String include = args.length > 1 ? args[1] : Benchmarks.class.getPackage().getName() + ".*";
+
+        Options options = new OptionsBuilder()
+            .include(include)
+            .resultFormat(ResultFormatType.JSON)
+            .result(result)
+            .build();
+
+        new Runner(options).run();
+
+    }
+
+}
@@ -0,0 +1,107 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import src.linalg.LinAlg;
+import src.linalg.Vector2d;
+
+/**
+ * Measures the primitives of the linalg package, both the allocating and the in-place variants.
+ *
+ * The inputs are non-final fields so the JIT cannot fold the calls away, and every result is returned
+ * so JMH consumes it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LinAlgBenchmark {
+
+    private double x1 = 1.25, y1 = -0.5, x2 = 3.75, y2 = 2.0, scalar = 1.5;
+
+    private Vector2d v1 = new Vector2d(0.6, 0.8), v2 = new Vector2d(-1.2, 0.4), out = new Vector2d(0, 0);
+
+    @Benchmark
+    public double euclideanDistance() {
+
+        return LinAlg.euclideanDistance(x1, y1, x2, y2);
+
+    }
+
+    @Benchmark
+    public double vDot() {
+
+        return LinAlg.vDot(v1, v2);
+
+    }
+
+    @Benchmark
+    public double vMag() {
+
+        return LinAlg.vMag(v1);
+
+    }
+
+    @Benchmark
+    public Vector2d vMul() {
+
+        return LinAlg.vMul(v1, scalar);
+
+    }
+
+    @Benchmark
+    public Vector2d vMulInPlace() {
+
+        return LinAlg.vMul(v1, scalar, out);
+
+    }
+
+    @Benchmark
+    public Vector2d vAdd() {
+
+        return LinAlg.vAdd(v1, v2);
+
+    }
+
+    @Benchmark
+    public Vector2d vAddInPlace() {
+
+        return LinAlg.vAdd(v1, v2, out);
+
+    }
+
+    @Benchmark
+    public Vector2d vSub() {
+
+        return LinAlg.vSub(v1, v2);
+
+    }
+
+    @Benchmark
+    public Vector2d vSubInPlace() {
+
+        return LinAlg.vSub(v1, v2, out);
+
+    }
+
+    @Benchmark
+    public Vector2d normalize() {
+
+        // Normalize a copy, normalizing v1 itself would make every later call a no-op on a unit vector.
+        out.set(v2.x, v2.y).normalize();
+
+        return out;
+
+    }
+
+}
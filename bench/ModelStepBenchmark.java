@@ -0,0 +1,73 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import src.BallStore;
+import src.Model;
+import src.Scenes;
+
+/**
+ * Measures the time of a single Model.step for different ball counts, with and without gravity,
+ * in a sparse and a dense scene.
+ *
+ * The model is rebuilt for every iteration so that the scene does not settle (with gravity) or
+ * spread out over the measurement. The dense scene is a lattice, at random positions that many balls
+ * would start out overlapping and the step would spend its time pushing them apart.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ModelStepBenchmark {
+
+    // Radius of the balls, the same as in the headless runner.
+    private static final double RADIUS = 0.05;
+
+    @Param({"2", "100", "10000", "1000000"})
+    public int balls;
+
+    @Param({"false", "true"})
+    public boolean gravity;
+
+    // sparse scatters the balls over about 1% of the area, dense puts them on a lattice covering about 40%.
+    @Param({"sparse", "dense"})
+    public String packing;
+
+    private Model model;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+
+        double areaPerBall = packing.equals("dense") ? 0.02 : 1;
+
+        double side = Math.max(1, Math.sqrt(balls * areaPerBall));
+
+        BallStore scene = packing.equals("dense") ? Scenes.lattice(balls, side, side, RADIUS, 1) : Scenes.gas(balls, side, side, RADIUS, 1);
+
+        model = new Model(scene, side, side, gravity, false);
+
+    }
+
+    @Benchmark
+    public Model step() {
+
+        model.step(1.0 / 60);
+
+        return model;
+
+    }
+
+}
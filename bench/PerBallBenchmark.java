@@ -0,0 +1,83 @@
+package bench;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import src.Model;
+import src.Scenes;
+
+/**
+ * Compares the staged step with the vectorised per ball stages against the scalar ones, on a single worker thread
+ * so only the stages differ. The fork runs with the Vector API, vectorized=true falls back to the scalar stages
+ * (and measures the same as false) if src.simd was not compiled.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class PerBallBenchmark {
+
+    // Radius of the balls, the same as in the headless runner.
+    private static final double RADIUS = 0.05;
+
+    @Param({"10000", "1000000"})
+    public int balls;
+
+    @Param({"false", "true"})
+    public boolean vectorized;
+
+    private ForkJoinPool pool;
+
+    private Model model;
+
+    @Setup(Level.Trial)
+    public void startPool() {
+
+        pool = new ForkJoinPool(1);
+
+    }
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+
+        double side = Math.sqrt(balls * 0.1);
+
+        model = new Model(Scenes.gas(balls, side, side, RADIUS, 1), side, side, true, false);
+
+        model.setStepPool(pool);
+
+        model.setVectorized(vectorized);
+
+    }
+
+    @TearDown(Level.Trial)
+    public void stopPool() {
+
+        pool.shutdown();
+
+    }
+
+    @Benchmark
+    public Model step() {
+
+        model.step(1.0 / 60);
+
+        return model;
+
+    }
+
+}
@@ -0,0 +1,746 @@
+package src;
+
+import java.util.Arrays;
+
+/**
+ * A dynamic bounding volume hierarchy over the balls.
+ *
+ * Every ball is a leaf holding an axis aligned box that is fattened by a margin proportional to the radius of the
+ * ball. As long as the ball stays inside its fat box the tree is left alone, so from one step to the next most balls
+ * cost a single containment check. A ball that leaves its box is taken out and inserted again, the insertion picks
+ * the sibling that grows the tree the least and rotations keep the tree balanced.
+ *
+ * Since every ball gets a box of its own size the tree copes with radii that differ by orders of magnitude, where
+ * a uniform grid has to use cells as large as the largest ball. Besides the neighbours of a ball the tree finds the
+ * balls in any rectangle, see {@link #query(double, double, double, double)}.
+ */
+final class AabbTree implements NeighbourIndex {
+
+    // The fat box of a leaf reaches this many radii beyond the ball.
+    private static final double MARGIN = 0.5;
+
+    // Query boxes are grown by this fraction of the radius, so rounding never loses a pair that just touches.
+    private static final double SLACK = 1e-9;
+
+    private static final int NULL = -1;
+
+    /* The nodes, a leaf has no children and child1 holds the index of its ball. Free nodes are chained through parent.
+    The box of node k is box[4k] to box[4k + 3], min x, min y, max x and max y, so a query reads one place per node. */
+    private double[] box = new double[0];
+
+    private int[] parent = new int[0], child1 = new int[0], child2 = new int[0], height = new int[0];
+
+    private int root = NULL, freeList = NULL, nodeCount;
+
+    // The leaf of every ball.
+    private int[] leafOf = new int[0];
+
+    private int leaves;
+
+    private BallStore balls;
+
+    private int[] stack = new int[64];
+
+    private int[] found = new int[16];
+
+    // Adds, removes and moves leaves so the tree matches the first n balls of the given columns.
+    void sync(int n, double[] x, double[] y, double[] r) {
+
+        while (leaves > n) {
+
+            int leaf = leafOf[--leaves];
+
+            removeLeaf(leaf);
+
+            free(leaf);
+
+        }
+
+        if (leafOf.length < n) {
+
+            leafOf = Arrays.copyOf(leafOf, Math.max(n, leafOf.length * 2));
+
+        }
+
+        for (int i = 0; i < leaves; i++) {
+
+            move(i, x[i], y[i], r[i]);
+
+        }
+
+        if (root == NULL && n > 1) {
+
+            build(n, x, y, r);
+
+            return;
+
+        }
+
+        for (; leaves < n; leaves++) {
+
+            int leaf = allocate();
+
+            child1[leaf] = leaves;
+
+            fatten(leaf, x[leaves], y[leaves], r[leaves]);
+
+            leafOf[leaves] = leaf;
+
+            insertLeaf(leaf);
+
+        }
+
+    }
+
+    // Builds the tree top down for the first n balls, much faster than inserting them one by one.
+    private void build(int n, double[] x, double[] y, double[] r) {
+
+        int[] order = new int[n];
+
+        // The centers are moved along with the leaves, so the splits read memory in order.
+        double[] cx = new double[n], cy = new double[n];
+
+        for (int i = 0; i < n; i++) {
+
+            int leaf = allocate();
+
+            child1[leaf] = i;
+
+            fatten(leaf, x[i], y[i], r[i]);
+
+            leafOf[i] = leaf;
+
+            order[i] = leaf;
+
+            cx[i] = x[i];
+
+            cy[i] = y[i];
+
+        }
+
+        leaves = n;
+
+        root = build(order, cx, cy, 0, n);
+
+        parent[root] = NULL;
+
+    }
+
+    // Splits the leaves from lo to hi, exclusive, in two halves along the longer side of the box around their centers.
+    private int build(int[] order, double[] cx, double[] cy, int lo, int hi) {
+
+        if (hi - lo == 1) {
+
+            return order[lo];
+
+        }
+
+        double loX = Double.POSITIVE_INFINITY, loY = Double.POSITIVE_INFINITY;
+
+        double hiX = Double.NEGATIVE_INFINITY, hiY = Double.NEGATIVE_INFINITY;
+
+        for (int k = lo; k < hi; k++) {
+
+            loX = Math.min(loX, cx[k]);
+
+            hiX = Math.max(hiX, cx[k]);
+
+            loY = Math.min(loY, cy[k]);
+
+            hiY = Math.max(hiY, cy[k]);
+
+        }
+
+        int mid = (lo + hi) >>> 1;
+
+        if (hiX - loX >= hiY - loY) {
+
+            select(order, cx, cy, lo, hi - 1, mid);
+
+        } else {
+
+            select(order, cy, cx, lo, hi - 1, mid);
+
+        }
+
+        int a = build(order, cx, cy, lo, mid), b = build(order, cx, cy, mid, hi);
+
+        int node = allocate();
+
+        child1[node] = a;
+
+        child2[node] = b;
+
+        parent[a] = node;
+
+        parent[b] = node;
+
+        height[node] = 1 + Math.max(height[a], height[b]);
+
+        union(node, a, b);
+
+        return node;
+
+    }
+
+    // Partially sorts order[lo..hi] by key so that order[k] is in its sorted place, smaller keys before it. other moves along.
+    private static void select(int[] order, double[] key, double[] other, int lo, int hi, int k) {
+
+        while (hi > lo) {
+
+            double pivot = key[(lo + hi) >>> 1];
+
+            int i = lo, j = hi;
+
+            while (i <= j) {
+
+                while (key[i] < pivot) {
+                    i++;
+                }
+
+                while (key[j] > pivot) {
+                    j--;
+                }
+
+                if (i <= j) {
+
+                    swap(order, i, j);
+
+                    swap(key, i, j);
+
+                    swap(other, i, j);
+
+                    i++;
+
+                    j--;
+
+                }
+
+            }
+
+            if (k <= j) {
+
+                hi = j;
+
+            } else if (k >= i) {
+
+                lo = i;
+
+            } else {
+
+                return;
+
+            }
+
+        }
+
+    }
+
+    private static void swap(int[] a, int i, int j) {
+
+        int t = a[i];
+
+        a[i] = a[j];
+
+        a[j] = t;
+
+    }
+
+    private static void swap(double[] a, int i, int j) {
+
+        double t = a[i];
+
+        a[i] = a[j];
+
+        a[j] = t;
+
+    }
+
+    // Moves the leaf of ball i to a new fat box if the ball has left its current one. Returns true if it did.
+    boolean move(int i, double x, double y, double r) {
+
+        int leaf = leafOf[i];
+
+        if (x - r >= box[4 * leaf] && y - r >= box[4 * leaf + 1] && x + r <= box[4 * leaf + 2] && y + r <= box[4 * leaf + 3]) {
+
+            return false;
+
+        }
+
+        removeLeaf(leaf);
+
+        fatten(leaf, x, y, r);
+
+        insertLeaf(leaf);
+
+        return true;
+
+    }
+
+    @Override
+    public void rebuild(BallStore balls) {
+
+        this.balls = balls;
+
+        sync(balls.size(), balls.x, balls.y, balls.radius);
+
+    }
+
+    @Override
+    public void update(int i) {
+
+        move(i, balls.x[i], balls.y[i], balls.radius[i]);
+
+    }
+
+    @Override
+    public int query(int i) {
+
+        return query(i, 0);
+
+    }
+
+    @Override
+    public int query(int i, double reach) {
+
+        double r = balls.radius[i] * (1 + SLACK) + reach;
+
+        int count = query(balls.x[i] - r, balls.y[i] - r, balls.x[i] + r, balls.y[i] + r);
+
+        int kept = 0;
+
+        for (int c = 0; c < count; c++) {
+
+            if (found[c] != i) {
+
+                found[kept++] = found[c];
+
+            }
+
+        }
+
+        // The tree holds every ball once, so there is nothing to make unique. Large balls can have many candidates.
+        Arrays.sort(found, 0, kept);
+
+        return kept;
+
+    }
+
+    @Override
+    public int[] candidates() {
+
+        return found;
+
+    }
+
+    /**
+     * Collects every ball whose fat box overlaps the given rectangle, in no particular order. This includes every
+     * ball that overlaps the rectangle and possibly some that are close to it.
+     * Returns the number of balls, see {@link #candidates()}.
+     */
+    int query(double qMinX, double qMinY, double qMaxX, double qMaxY) {
+
+        int count = 0;
+
+        if (root == NULL) {
+
+            return 0;
+
+        }
+
+        int top = 0;
+
+        stack[top++] = root;
+
+        while (top > 0) {
+
+            int node = stack[--top];
+
+            if (box[4 * node + 2] < qMinX || box[4 * node + 3] < qMinY || box[4 * node] > qMaxX || box[4 * node + 1] > qMaxY) {
+                continue;
+            }
+
+            if (child2[node] == NULL) {
+
+                if (count == found.length) {
+
+                    found = Arrays.copyOf(found, count * 2);
+
+                }
+
+                found[count++] = child1[node];
+
+            } else {
+
+                if (top + 2 > stack.length) {
+
+                    stack = Arrays.copyOf(stack, stack.length * 2);
+
+                }
+
+                stack[top++] = child1[node];
+
+                stack[top++] = child2[node];
+
+            }
+
+        }
+
+        return count;
+
+    }
+
+    // The height of the tree, a leaf alone has height 0. Used to check the balancing.
+    int height() {
+
+        return root == NULL ? 0 : height[root];
+
+    }
+
+    private void fatten(int leaf, double x, double y, double r) {
+
+        double fat = r * (1 + MARGIN);
+
+        box[4 * leaf] = x - fat;
+
+        box[4 * leaf + 1] = y - fat;
+
+        box[4 * leaf + 2] = x + fat;
+
+        box[4 * leaf + 3] = y + fat;
+
+    }
+
+    private void insertLeaf(int leaf) {
+
+        if (root == NULL) {
+
+            root = leaf;
+
+            parent[leaf] = NULL;
+
+            return;
+
+        }
+
+        // Walk down to the sibling that makes the tree grow the least, measured by the perimeter of the boxes.
+        int index = root;
+
+        while (child2[index] != NULL) {
+
+            double perimeter = perimeter(index);
+
+            double combined = combinedPerimeter(index, leaf);
+
+            // Cost of making the leaf a sibling of this node, and the cost pushed down to the children if it is not.
+            double cost = 2 * combined;
+
+            double inheritance = 2 * (combined - perimeter);
+
+            double cost1 = descendCost(child1[index], leaf) + inheritance;
+
+            double cost2 = descendCost(child2[index], leaf) + inheritance;
+
+            if (cost < cost1 && cost < cost2) {
+                break;
+            }
+
+            index = cost1 < cost2 ? child1[index] : child2[index];
+
+        }
+
+        int sibling = index;
+
+        int oldParent = parent[sibling];
+
+        int newParent = allocate();
+
+        parent[newParent] = oldParent;
+
+        height[newParent] = height[sibling] + 1;
+
+        if (oldParent != NULL) {
+
+            if (child1[oldParent] == sibling) {
+
+                child1[oldParent] = newParent;
+
+            } else {
+
+                child2[oldParent] = newParent;
+
+            }
+
+        } else {
+
+            root = newParent;
+
+        }
+
+        child1[newParent] = sibling;
+
+        child2[newParent] = leaf;
+
+        parent[sibling] = newParent;
+
+        parent[leaf] = newParent;
+
+        refit(newParent);
+
+    }
+
+    private void removeLeaf(int leaf) {
+
+        if (leaf == root) {
+
+            root = NULL;
+
+            return;
+
+        }
+
+        int p = parent[leaf];
+
+        int grandParent = parent[p];
+
+        int sibling = child1[p] == leaf ? child2[p] : child1[p];
+
+        if (grandParent != NULL) {
+
+            if (child1[grandParent] == p) {
+
+                child1[grandParent] = sibling;
+
+            } else {
+
+                child2[grandParent] = sibling;
+
+            }
+
+            parent[sibling] = grandParent;
+
+            free(p);
+
+            refit(grandParent);
+
+        } else {
+
+            root = sibling;
+
+            parent[sibling] = NULL;
+
+            free(p);
+
+        }
+
+    }
+
+    // Balances the nodes from the given one up to the root and fixes their boxes and heights.
+    private void refit(int index) {
+
+        while (index != NULL) {
+
+            index = balance(index);
+
+            int a = child1[index], b = child2[index];
+
+            height[index] = 1 + Math.max(height[a], height[b]);
+
+            union(index, a, b);
+
+            index = parent[index];
+
+        }
+
+    }
+
+    // Rotates the child that is more than one level higher than its sibling above the given node. Returns the new top.
+    private int balance(int a) {
+
+        if (child2[a] == NULL || height[a] < 2) {
+
+            return a;
+
+        }
+
+        int b = child1[a], c = child2[a];
+
+        int difference = height[c] - height[b];
+
+        if (difference > 1) {
+
+            rotateUp(a, c, b, false);
+
+            return c;
+
+        }
+
+        if (difference < -1) {
+
+            rotateUp(a, b, c, true);
+
+            return b;
+
+        }
+
+        return a;
+
+    }
+
+    /**
+     * Moves the child up in the place of its parent a, which keeps other as one child and takes the lower of the
+     * two children of up as the other. The higher child stays with up. left tells which side up was on.
+     */
+    private void rotateUp(int a, int up, int other, boolean left) {
+
+        int f = child1[up], g = child2[up];
+
+        child1[up] = a;
+
+        parent[up] = parent[a];
+
+        parent[a] = up;
+
+        if (parent[up] != NULL) {
+
+            if (child1[parent[up]] == a) {
+
+                child1[parent[up]] = up;
+
+            } else {
+
+                child2[parent[up]] = up;
+
+            }
+
+        } else {
+
+            root = up;
+
+        }
+
+        int high = height[f] > height[g] ? f : g;
+
+        int low = high == f ? g : f;
+
+        child2[up] = high;
+
+        if (left) {
+
+            child1[a] = low;
+
+        } else {
+
+            child2[a] = low;
+
+        }
+
+        parent[low] = a;
+
+        union(a, other, low);
+
+        union(up, a, high);
+
+        height[a] = 1 + Math.max(height[other], height[low]);
+
+        height[up] = 1 + Math.max(height[a], height[high]);
+
+    }
+
+    // Sets the box of node to the union of the boxes of a and b.
+    private void union(int node, int a, int b) {
+
+        box[4 * node] = Math.min(box[4 * a], box[4 * b]);
+
+        box[4 * node + 1] = Math.min(box[4 * a + 1], box[4 * b + 1]);
+
+        box[4 * node + 2] = Math.max(box[4 * a + 2], box[4 * b + 2]);
+
+        box[4 * node + 3] = Math.max(box[4 * a + 3], box[4 * b + 3]);
+
+    }
+
+    private double perimeter(int node) {
+
+        return 2 * (box[4 * node + 2] - box[4 * node] + box[4 * node + 3] - box[4 * node + 1]);
+
+    }
+
+    private double combinedPerimeter(int a, int b) {
+
+        double width = Math.max(box[4 * a + 2], box[4 * b + 2]) - Math.min(box[4 * a], box[4 * b]);
+
+        double h = Math.max(box[4 * a + 3], box[4 * b + 3]) - Math.min(box[4 * a + 1], box[4 * b + 1]);
+
+        return 2 * (width + h);
+
+    }
+
+    // The cost of going down into child with the leaf, a leaf child would become its sibling.
+    private double descendCost(int child, int leaf) {
+
+        double combined = combinedPerimeter(child, leaf);
+
+        return child2[child] == NULL ? combined : combined - perimeter(child);
+
+    }
+
+    private int allocate() {
+
+        int node;
+
+        if (freeList != NULL) {
+
+            node = freeList;
+
+            freeList = parent[node];
+
+        } else {
+
+            if (nodeCount == parent.length) {
+
+                grow(Math.max(16, nodeCount * 2));
+
+            }
+
+            node = nodeCount++;
+
+        }
+
+        parent[node] = NULL;
+
+        child1[node] = NULL;
+
+        child2[node] = NULL;
+
+        height[node] = 0;
+
+        return node;
+
+    }
+
+    private void free(int node) {
+
+        parent[node] = freeList;
+
+        height[node] = -1;
+
+        freeList = node;
+
+    }
+
+    private void grow(int capacity) {
+
+        box = Arrays.copyOf(box, 4 * capacity);
+
+        parent = Arrays.copyOf(parent, capacity);
+
+        child1 = Arrays.copyOf(child1, capacity);
+
+        child2 = Arrays.copyOf(child2, capacity);
+
+        height = Arrays.copyOf(height, capacity);
+
+    }
+
+}
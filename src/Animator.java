@@ -4,11 +4,18 @@ import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.geom.Ellipse2D;
+import javax.swing.AbstractAction;
+import javax.swing.JComponent;
 import javax.swing.JPanel;
+import javax.swing.KeyStroke;
 import javax.swing.Timer;
 
 /**
- * Animated JPanel drawing the bouncing balls. No modifications are needed in this class.
+ * Animated JPanel drawing the bouncing balls.
+ *
+ * The simulation steps on its own SimulationThread, the timer only repaints the latest snapshot, interpolated between
+ * its last two steps. Painting asks the snapshot for the balls inside the clip and skips the rest, and draws them as
+ * pre-rendered sprites or as shapes, toggled with the S key.
  *
  * @author Simon Robillard
  *
@@ -19,8 +26,8 @@ public final class Animator extends JPanel implements ActionListener {
 	// Drawing scale
 	private static final double pixelsPerMeter = 200;
 
-	//Physical model
-	private Model model;
+	//Runs the model at a fixed time step on its own thread
+	private SimulationThread simulation;
 
 	//Timer that triggers redrawing
 	private Timer timer;
@@ -28,37 +35,87 @@ public final class Animator extends JPanel implements ActionListener {
 	//Time interval between redrawing, also used as time step for the model
 	private double deltaT;
 
+	//Pre-rendered balls, blitted instead of filling an ellipse per ball
+	private final SpriteCache sprites = new SpriteCache();
+
+	//Draw the balls from sprites (true) or as shapes (false), toggled with the S key
+	private boolean spriteRendering = true;
+
+	//Moving average of the time it takes to draw the balls, in milliseconds
+	private double paintMillis;
+
 	public Animator(int pixelWidth, int pixelHeight, int fps) {
 
+		this(pixelWidth, pixelHeight, fps, defaultModel(pixelWidth, pixelHeight));
+
+	}
+
+	// Draws the given simulation, for example a replay of a recorded run, instead of the default model.
+	public Animator(int pixelWidth, int pixelHeight, int fps, Simulation model) {
+
 		super(true);
 
 		this.timer = new Timer(1000 / fps, this);
 
 		this.deltaT = 1.0 / fps;
 
-		Ball[] balls = new Ball[2];
+		this.simulation = new SimulationThread(model, deltaT);
 
-		balls[0] = new Ball(1, 1.9, 1, 0, 0.25, 1);
+		this.setOpaque(false);
 
-		balls[1] = new Ball(2, 2.1, 0, 0, 0.5, 8);
+		this.setPreferredSize(new Dimension(pixelWidth, pixelHeight));
 
-		this.model = new Model(balls, pixelWidth / pixelsPerMeter, pixelHeight / pixelsPerMeter, true, true);
+		this.getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW).put(KeyStroke.getKeyStroke('s'), "toggleSprites");
 
-		this.setOpaque(false);
+		this.getActionMap().put("toggleSprites", new AbstractAction() {
 
-		this.setPreferredSize(new Dimension(pixelWidth, pixelHeight));
+			@Override
+			public void actionPerformed(ActionEvent e) {
+
+				setSpriteRendering(!spriteRendering);
+
+			}
+
+		});
+
+	}
+
+	// The model with two balls shown when no other simulation is given.
+	private static Model defaultModel(int pixelWidth, int pixelHeight) {
+
+		return new Model(Scenes.demo(), pixelWidth / pixelsPerMeter, pixelHeight / pixelsPerMeter, true, true);
 
 	}
 
 	public void start() {
 
+		simulation.start();
+
 		timer.start();
 
 	}
 
+	public void setSpriteRendering(boolean spriteRendering) {
+
+		this.spriteRendering = spriteRendering;
+
+	}
+
+	@Override
+	public void addNotify() {
+
+		super.addNotify();
+
+		// The sprites are made for the screen we are shown on, it may have changed.
+		sprites.clear();
+
+	}
+
 	public void stop() {
 
     	timer.stop();
+
+		simulation.stop();
 		
     }
 
@@ -72,37 +129,82 @@ public final class Animator extends JPanel implements ActionListener {
 
 		g2.fillRect(0, 0, this.getWidth(), this.getHeight());
 
+		long start = System.nanoTime();
+
 		// draw balls
 		g2.setColor(Color.RED);
 
-		for (Ball b : model.balls) {
+		// The latest state of the model, drawn in between its last two steps.
+		Snapshot balls = simulation.latest();
+
+		double alpha = balls.alpha(start);
+
+		// Only the part of the panel that needs repainting, balls entirely outside of it are skipped.
+		Rectangle clip = g2.getClipBounds();
+
+		if (clip == null) {
+
+			clip = new Rectangle(0, 0, this.getWidth(), this.getHeight());
+
+		}
+
+		GraphicsConfiguration configuration = this.getGraphicsConfiguration();
+
+		// Ask the snapshot for the balls in the clip, converted to meters, instead of going through all of them.
+		int count = balls.ballsNear(clip.x / pixelsPerMeter, (this.getHeight() - clip.y - clip.height) / pixelsPerMeter,
+			(clip.x + clip.width) / pixelsPerMeter, (this.getHeight() - clip.y) / pixelsPerMeter);
 
-			double x = b.x - b.radius;
+		int[] visible = balls.candidates();
 
-			double y = b.y + b.radius;
+		for (int c = 0; c < count; c++) {
 
-			// paint balls (y-coordinates are inverted)
-			Ellipse2D.Double e = new Ellipse2D.Double(
+			int i = visible[c];
 
-				x * pixelsPerMeter,
+			double radius = balls.radius[i];
 
-				this.getHeight() - (y * pixelsPerMeter),
+			double x = balls.x(i, alpha) - radius;
 
-				b.radius * 2 * pixelsPerMeter, b.radius * 2 * pixelsPerMeter
+			double y = balls.y(i, alpha) + radius;
 
-			);
+			// top left corner and size of the ball in pixels (y-coordinates are inverted)
+			double px = x * pixelsPerMeter;
+
+			double py = this.getHeight() - (y * pixelsPerMeter);
+
+			double size = radius * 2 * pixelsPerMeter;
+
+			if (px + size < clip.x || py + size < clip.y || px > clip.x + clip.width || py > clip.y + clip.height) {
+				continue;
+			}
+
+			if (spriteRendering) {
+
+				int diameter = (int) Math.round(size);
+
+				g2.drawImage(sprites.get(diameter, Color.RED, configuration), (int) Math.round(px), (int) Math.round(py), null);
+
+			} else {
+
+				g2.fill(new Ellipse2D.Double(px, py, size, size));
+
+			}
 
-			g2.fill(e);
 		}
 
+		// Exponential moving average, so the readout is steady enough to read.
+		paintMillis = 0.9 * paintMillis + 0.1 * (System.nanoTime() - start) / 1e6;
+
+		g2.setColor(Color.BLACK);
+
+		g2.drawString(String.format("%s: %.2f ms per frame (S to toggle)", spriteRendering ? "sprites" : "shapes", paintMillis), 10, 20);
+
 		Toolkit.getDefaultToolkit().sync();
 	}
 
     @Override
     public void actionPerformed(ActionEvent e) {
 
-    	model.step(deltaT);
-
+    	// The model steps on its own thread, the timer only triggers redrawing.
     	this.repaint();
 
     }
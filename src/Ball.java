@@ -1,14 +1,25 @@
 package src;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * Simple class describing balls. We moved this class to its own file to encapsulate it's logic and to separate concerns.
+ *
+ * The model keeps its balls in a {@link BallStore}, so a Ball is either the description of a ball going into a model
+ * or a snapshot of a ball coming out of one.
  */
 public class Ball {
 
-    private static int nextId = 0;
-    
+    // Scenes may be built on several threads at once, see Ensemble.
+    private static final AtomicInteger nextId = new AtomicInteger();
+
     public Ball(double x, double y, double vx, double vy, double r, double m) {
-        this.id = nextId++;
+        this(nextId(), x, y, vx, vy, r, m);
+    }
+
+    // Creates a ball with a known id, used for snapshots of balls that already have one.
+    Ball(int id, double x, double y, double vx, double vy, double r, double m) {
+        this.id = id;
         this.x = x;
         this.y = y;
         this.vx = vx;
@@ -17,6 +28,11 @@ public class Ball {
         this.mass = m;
     }
 
+    // Hands out the next free ball id.
+    static int nextId() {
+        return nextId.getAndIncrement();
+    }
+
     /**
      * Position, speed, radius and mass of the ball. You may wish to add other attributes.
      */
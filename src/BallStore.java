@@ -0,0 +1,242 @@
+package src;
+
+import java.util.Arrays;
+
+/**
+ * Column store holding the state of all balls in a model.
+ *
+ * Every attribute is kept in its own primitive array indexed by the position of the ball in the store,
+ * instead of one heap object per ball. Walking a column is a linear scan over memory, which keeps the
+ * per ball loops in the model cache friendly and leaves no objects behind for the garbage collector.
+ *
+ * The arrays are public so hot loops can read and write them directly, only the first {@link #size()}
+ * entries are valid. Use {@link #get(int)} when a {@link Ball} is more convenient than the columns.
+ */
+public final class BallStore {
+
+    // Position, speed, radius and mass of the balls.
+    public double[] x, y, vx, vy, radius, mass;
+
+    // The id of every ball, as handed out by the Ball class.
+    public int[] id;
+
+    private int size;
+
+    public BallStore(int capacity) {
+
+        this.x = new double[capacity];
+
+        this.y = new double[capacity];
+
+        this.vx = new double[capacity];
+
+        this.vy = new double[capacity];
+
+        this.radius = new double[capacity];
+
+        this.mass = new double[capacity];
+
+        this.id = new int[capacity];
+
+    }
+
+    // Copies the balls into a new store, the balls keep their ids.
+    public static BallStore of(Ball[] balls) {
+
+        BallStore store = new BallStore(balls.length);
+
+        for (Ball b : balls) {
+
+            store.add(b.id, b.x, b.y, b.vx, b.vy, b.radius, b.mass);
+
+        }
+
+        return store;
+
+    }
+
+    // The number of balls in the store.
+    public int size() {
+
+        return size;
+
+    }
+
+    // Appends a new ball with a fresh id and returns its index.
+    public int add(double x, double y, double vx, double vy, double r, double m) {
+
+        return add(Ball.nextId(), x, y, vx, vy, r, m);
+
+    }
+
+    // Appends a ball with the given id and returns its index.
+    public int add(int id, double x, double y, double vx, double vy, double r, double m) {
+
+        if (size == this.x.length) {
+
+            grow(Math.max(8, size * 2));
+
+        }
+
+        int i = size++;
+
+        this.x[i] = x;
+
+        this.y[i] = y;
+
+        this.vx[i] = vx;
+
+        this.vy[i] = vy;
+
+        this.radius[i] = r;
+
+        this.mass[i] = m;
+
+        this.id[i] = id;
+
+        return i;
+
+    }
+
+    // Grows or shrinks the store to the given number of balls. Balls added this way are all zero until they are written.
+    public void resize(int size) {
+
+        if (size > x.length) {
+
+            grow(size);
+
+        }
+
+        if (size > this.size) {
+
+            clear(this.size, size);
+
+        }
+
+        this.size = size;
+
+    }
+
+    // Returns a snapshot of the ball at index i. Changing the snapshot does not change the store.
+    public Ball get(int i) {
+
+        if (i < 0 || i >= size) {
+
+            throw new IndexOutOfBoundsException("Ball index " + i + " out of bounds for size " + size);
+
+        }
+
+        return new Ball(id[i], x[i], y[i], vx[i], vy[i], radius[i], mass[i]);
+
+    }
+
+    // Copies every ball out of the store, mainly useful for tests and debugging.
+    public Ball[] toArray() {
+
+        Ball[] balls = new Ball[size];
+
+        for (int i = 0; i < size; i++) {
+
+            balls[i] = get(i);
+
+        }
+
+        return balls;
+
+    }
+
+    // Kinetic energy of all balls, summed up afresh.
+    public double kineticEnergy() {
+
+        double energy = 0;
+
+        for (int i = 0; i < size; i++) {
+
+            energy += 0.5 * mass[i] * (vx[i] * vx[i] + vy[i] * vy[i]);
+
+        }
+
+        return energy;
+
+    }
+
+    // The sum of mass times speed, the momentum the tests measure.
+    public double momentum() {
+
+        double momentum = 0;
+
+        for (int i = 0; i < size; i++) {
+
+            momentum += mass[i] * Math.sqrt(vx[i] * vx[i] + vy[i] * vy[i]);
+
+        }
+
+        return momentum;
+
+    }
+
+    public double momentumX() {
+
+        double momentum = 0;
+
+        for (int i = 0; i < size; i++) {
+
+            momentum += mass[i] * vx[i];
+
+        }
+
+        return momentum;
+
+    }
+
+    public double momentumY() {
+
+        double momentum = 0;
+
+        for (int i = 0; i < size; i++) {
+
+            momentum += mass[i] * vy[i];
+
+        }
+
+        return momentum;
+
+    }
+
+    private void clear(int from, int to) {
+
+        Arrays.fill(x, from, to, 0);
+
+        Arrays.fill(y, from, to, 0);
+
+        Arrays.fill(vx, from, to, 0);
+
+        Arrays.fill(vy, from, to, 0);
+
+        Arrays.fill(radius, from, to, 0);
+
+        Arrays.fill(mass, from, to, 0);
+
+        Arrays.fill(id, from, to, 0);
+
+    }
+
+    private void grow(int capacity) {
+
+        x = Arrays.copyOf(x, capacity);
+
+        y = Arrays.copyOf(y, capacity);
+
+        vx = Arrays.copyOf(vx, capacity);
+
+        vy = Arrays.copyOf(vy, capacity);
+
+        radius = Arrays.copyOf(radius, capacity);
+
+        mass = Arrays.copyOf(mass, capacity);
+
+        id = Arrays.copyOf(id, capacity);
+
+    }
+
+}
@@ -1,11 +1,21 @@
 package src;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import javax.swing.JFrame;
 
 // The entry point of the application.
 public final class BouncingBalls {
     
     // The main method creates the GUI, a model with two balls and starts the animation.
-    public static void main(String[] args) {
+    // Given the path of a scene file it runs that scene instead, split over n worker processes with slabs=n.
+    // Given a recorded trajectory it replays that.
+    public static void main(String[] args) throws IOException {
+
+        int slabs = args.length > 1 && args[1].startsWith("slabs=")
+            ? Integer.parseInt(args[1].substring("slabs=".length())) : 0;
+
+        final Simulation replay = args.length > 0 ? load(Paths.get(args[0]), slabs) : null;
 
         // Schedule a job for the event-dispatching thread:
         // creating and showing this application's GUI.
@@ -15,7 +25,7 @@ public final class BouncingBalls {
 
                 public void run() {
 
-                    Animator anim = new Animator(800, 600, 60);
+                    Animator anim = replay != null ? new Animator(800, 600, 60, replay) : new Animator(800, 600, 60);
 
                     JFrame frame = new JFrame("Bouncing balls");
 
@@ -38,4 +48,20 @@ public final class BouncingBalls {
 
     }
 
+    private static Simulation load(Path file, int slabs) throws IOException {
+
+        if (!SceneFiles.isScene(file)) {
+
+            return new TrajectoryReplay(file);
+
+        }
+
+        Scene scene = SceneFiles.read(file);
+
+        Scenes.separate(scene.balls, scene.width, scene.height, 100);
+
+        return slabs > 0 ? new SlabModel(scene.balls, scene.width, scene.height, true, slabs) : scene.model(true);
+
+    }
+
 }
@@ -0,0 +1,22 @@
+package src;
+
+/**
+ * The broad phase strategies the model can use to find the balls that might collide with a ball.
+ * 
+ * Every strategy feeds the same narrow phase, so they only differ in how many pairs reach it.
+ */
+public enum BroadPhase {
+
+    // Compare every ball against every other ball, O(n^2) per step. Kept as the reference implementation.
+    ALL_PAIRS,
+
+    // Only compare balls in neighbouring cells of a uniform grid, close to O(n) per step.
+    SPATIAL_HASH,
+
+    // Only compare balls whose extents overlap on the x-axis, kept sorted between steps. Suits widely varying radii.
+    SWEEP_AND_PRUNE,
+
+    // Only compare balls whose boxes overlap in a dynamic bounding volume hierarchy. Suits radii that span orders of magnitude.
+    AABB_TREE
+
+}
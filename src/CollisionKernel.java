@@ -0,0 +1,158 @@
+package src;
+
+import src.linalg.LinAlg;
+import src.linalg.Vector2d;
+
+/**
+ * Narrow phase of the ball to ball collisions.
+ *
+ * All vectors used during a collision are fields of the kernel that are overwritten for every pair,
+ * so resolving a collision allocates nothing. A kernel is therefore not thread safe, every thread
+ * resolving collisions needs its own.
+ */
+final class CollisionKernel {
+
+	// Scratch vectors, see collide.
+	private final Vector2d u1 = new Vector2d(0, 0), u2 = new Vector2d(0, 0);
+
+	private final Vector2d n = new Vector2d(0, 0), t = new Vector2d(0, 0);
+
+	private final Vector2d v1 = new Vector2d(0, 0), v2 = new Vector2d(0, 0), tmp = new Vector2d(0, 0);
+
+	// Pairs tested, pairs that collided and overlaps corrected since the last drain, see StepMetrics.
+	private long tested, collisions, corrections;
+
+	// Applies the collision between the balls at index b and other IFF they collide. Returns true if they collided.
+	boolean collide(BallStore balls, int b, int other) {
+
+		double[] x = balls.x, y = balls.y, vx = balls.vx, vy = balls.vy;
+
+		tested++;
+
+		double dx = x[other] - x[b];
+		double dy = y[other] - y[b];
+
+		double distance = LinAlg.euclideanDistance(x[b], y[b], x[other], y[other]);
+
+		// If the balls are not colliding there is nothing to do.
+		if (distance > balls.radius[b] + balls.radius[other]) {
+
+			return false;
+
+		}
+
+		/* Find the normal vector (the vector between the two balls) as a unit vector. If the centers coincide
+		there is no direction to speak of, so like atan2(0, 0) we pick the x-axis. */
+		if (distance > 0) {
+
+			n.set(dx / distance, dy / distance);
+
+		} else {
+
+			n.set(1, 0);
+
+		}
+
+		collisions++;
+
+		// Since the balls practically never collide perfectly we move the ball initializing the collision back.
+		correctBallOverlap(balls, b, other, distance);
+
+		/*
+		* Our calculation of the transfer of velocity between two balls with (possibly)
+		* different masses in 2d space is built on the formula for calulating the transfer of velocity
+		* in 1d space which itself is derived from the conservation of momentum and kinetic energy.
+		*
+		* The difference when you do it in 2d is simply that you find the velocity in the direction of the
+		* normal vector (the vector between the center of the  two balls) and then just use the same formula
+		* as in 1d space. The velocity in the direction of the tangent does not change since the balls dont exert
+		* any force in that direction.
+		*
+		* We chose a linear algebra approach since it was more intative to us, linear algebra is also a very powerful
+		* tool for solving problems in physics and computer science since the computer can work with vectors
+		* very efficinetly (however this is a bit trivial in this assignment since we arent using hardware acceleration anyways).
+		* Its worth noting that you can solve this problem using equivalently using trigonometry.
+		*/
+
+		// Velocity (before the collision) of the two balls as vectors.
+		u1.set(vx[b], vy[b]);
+		u2.set(vx[other], vy[other]);
+
+		// Mass of the two balls.
+		double m1 = balls.mass[b];
+		double m2 = balls.mass[other];
+
+		// Find the tangent vector, this is easily done by rotating the normal vector 90 degrees.
+		t.set(-n.y, n.x);
+
+		// Find the scalar velocity in the normal direction.
+		double u1n = LinAlg.vDot(u1, n);
+		double u2n = LinAlg.vDot(u2, n);
+
+		// Find the scalar velocity in the tangent direction, it does not change during the collision.
+		double v1t = LinAlg.vDot(u1, t);
+		double v2t = LinAlg.vDot(u2, t);
+
+		/* Find the scalar velocity in the normal direction after the
+		collision using the formula for velocity transfer in 1d space. */
+
+		double v1n = velocityAfterCollision(u1n, u2n, m1, m2);
+		double v2n = velocityAfterCollision(u2n, u1n, m2, m1);
+
+		/* Now that we have our scalar velocities we can use them to scale the normal and tangent vectors
+		* and add them up to get a single total velocity vector for each ball. */
+
+		LinAlg.vAdd(LinAlg.vMul(n, v1n, v1), LinAlg.vMul(t, v1t, tmp), v1);
+		LinAlg.vAdd(LinAlg.vMul(n, v2n, v2), LinAlg.vMul(t, v2t, tmp), v2);
+
+		// Set the new velocities of the balls.
+		vx[b] = v1.x;
+		vy[b] = v1.y;
+		vx[other] = v2.x;
+		vy[other] = v2.y;
+
+		return true;
+
+	}
+
+	// Adds the counts since the last drain to the given StepMetrics counters and starts counting from zero.
+	void drain(long[] counters) {
+
+		counters[StepMetrics.Counter.PAIRS_TESTED.ordinal()] += tested;
+
+		counters[StepMetrics.Counter.COLLISIONS.ordinal()] += collisions;
+
+		counters[StepMetrics.Counter.OVERLAP_CORRECTIONS.ordinal()] += corrections;
+
+		tested = 0;
+
+		collisions = 0;
+
+		corrections = 0;
+
+	}
+
+	// Corrects the overlap between two balls by moving b back along the normal to a position where the balls are not overlapping.
+	private void correctBallOverlap(BallStore balls, int b, int other, double distance) {
+
+		// The overlap between the two balls.
+		double overlap = (balls.radius[b] + balls.radius[other]) - distance;
+
+		if (overlap > 0) {
+			corrections++;
+		}
+
+		// The x and y components of the overlap.
+		balls.x[b] -= overlap * n.x;
+		balls.y[b] -= overlap * n.y;
+
+	}
+
+	// Calculates the velocity of a ball after a collision with another ball in 1d space.
+	private static double velocityAfterCollision(double u1, double u2, double m1, double m2) {
+
+		return (u1 * (m1 - m2) + 2 * m2 * u2) / (m1 + m2);
+
+	}
+
+}
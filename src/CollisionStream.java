@@ -0,0 +1,322 @@
+package src;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Stream of the contacts of a model, ball to ball and ball to wall, for consumers on other threads.
+ *
+ * The events live in a ring buffer that is allocated once, as columns like the balls themselves. The model is the
+ * only producer: it writes an event into the next slot and then publishes it by moving the published count on. Every
+ * consumer has a subscription with its own cursor, the sequence number of the next event it reads, and moves it on
+ * once it has read the events. A slot is only written again after every subscription has moved past it, so nothing
+ * is ever locked and the step never waits for a consumer unless the overflow policy says so.
+ *
+ * What happens to an event when the slowest subscription is a whole ring behind depends on the overflow policy.
+ */
+public final class CollisionStream {
+
+    /**
+     * What the producer does with an event when the ring is full.
+     */
+    public enum Overflow {
+
+        // Drop the event, the step never waits.
+        DROP,
+
+        // Wait until the slowest subscription has read an event, the step waits as long as it takes.
+        BLOCK,
+
+        // Once the ring is half full publish only every n-th event, and drop events while it is full.
+        SAMPLE
+
+    }
+
+    /**
+     * Receives the events of a subscription, see {@link Subscription#poll}. The fields of an event are handed over
+     * one by one so reading the stream allocates nothing.
+     */
+    @FunctionalInterface
+    public interface Handler {
+
+        /**
+         * A contact during step, at time seconds into the simulation, between the balls with ids a and b, or
+         * between ball a and a wall if b is WALL_X or WALL_Y. The impulse is the change of momentum of ball a, the
+         * contact point is where the balls or the ball and the wall touch.
+         */
+        void onContact(long step, double time, int a, int b, double impulse, double x, double y);
+
+    }
+
+    // The id in place of the second ball of a contact with the left or right wall, and with the floor or the ceiling.
+    public static final int WALL_X = -1, WALL_Y = -2;
+
+    // Spins before the producer starts parking while it waits for room, see Overflow.BLOCK.
+    private static final int SPINS = 100;
+
+    private final int capacity, mask;
+
+    private final Overflow overflow;
+
+    private final int sampleEvery;
+
+    // The events, event n is in slot n & mask.
+    private final long[] step;
+
+    private final double[] time, impulse, x, y;
+
+    private final int[] a, b;
+
+    // The number of events published, which is the sequence number of the next one.
+    private final AtomicLong published = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    // The producer may publish up to this sequence number without looking at the cursors again.
+    private long limit;
+
+    // Events offered while the ring was half full, see Overflow.SAMPLE. Only touched by the producer.
+    private long offered;
+
+    // A stream that waits or drops events on overflow, see Overflow.
+    public CollisionStream(int capacity, Overflow overflow) {
+
+        this(capacity, overflow, 1);
+
+    }
+
+    /**
+     * A stream with room for capacity events, rounded up to a power of two. With Overflow.SAMPLE every sampleEvery-th
+     * event is published while the ring is half full.
+     */
+    public CollisionStream(int capacity, Overflow overflow, int sampleEvery) {
+
+        if (capacity < 1 || capacity > 1 << 30 || sampleEvery < 1) {
+
+            throw new IllegalArgumentException("Capacity must be between 1 and 2^30 and sampleEvery at least 1");
+
+        }
+
+        int size = 1;
+
+        while (size < capacity) {
+
+            size <<= 1;
+
+        }
+
+        this.capacity = size;
+
+        this.mask = this.capacity - 1;
+
+        this.overflow = overflow;
+
+        this.sampleEvery = sampleEvery;
+
+        this.step = new long[this.capacity];
+
+        this.time = new double[this.capacity];
+
+        this.impulse = new double[this.capacity];
+
+        this.x = new double[this.capacity];
+
+        this.y = new double[this.capacity];
+
+        this.a = new int[this.capacity];
+
+        this.b = new int[this.capacity];
+
+        this.limit = this.capacity;
+
+    }
+
+    // The number of events the ring holds.
+    public int capacity() {
+
+        return capacity;
+
+    }
+
+    public Overflow overflow() {
+
+        return overflow;
+
+    }
+
+    // The number of events published so far.
+    public long published() {
+
+        return published.get();
+
+    }
+
+    // The number of events dropped because the ring was full, or thinned out by sampling.
+    public long dropped() {
+
+        return dropped.get();
+
+    }
+
+    // A new subscription, which reads the events published from now on.
+    public Subscription subscribe() {
+
+        Subscription subscription = new Subscription(published.get());
+
+        subscriptions.add(subscription);
+
+        /* Until the producer sees the subscription it gates on the others only, and may have published more events
+        in the meantime. Starting after those keeps the subscription from reading slots that are being reused. */
+        subscription.cursor.set(published.get());
+
+        return subscription;
+
+    }
+
+    // Publishes an event, or waits or drops it if the ring is full. Only ever called by the one producer.
+    void publish(long step, double time, int a, int b, double impulse, double x, double y) {
+
+        long next = published.get();
+
+        // The cached limit is a whole ring ahead of the slowest cursor at most, look again before thinning out.
+        if (overflow == Overflow.SAMPLE && next - (limit - capacity) >= capacity / 2) {
+
+            limit = slowest(next) + capacity;
+
+            if (next - (limit - capacity) >= capacity / 2 && offered++ % sampleEvery != 0) {
+
+                dropped.incrementAndGet();
+
+                return;
+
+            }
+
+        }
+
+        if (next >= limit) {
+
+            limit = slowest(next) + capacity;
+
+            for (int spins = 0; overflow == Overflow.BLOCK && next >= limit; spins++) {
+
+                if (spins < SPINS) {
+
+                    Thread.onSpinWait();
+
+                } else {
+
+                    LockSupport.parkNanos(1000);
+
+                }
+
+                limit = slowest(next) + capacity;
+
+            }
+
+            if (next >= limit) {
+
+                dropped.incrementAndGet();
+
+                return;
+
+            }
+
+        }
+
+        int slot = (int) next & mask;
+
+        this.step[slot] = step;
+
+        this.time[slot] = time;
+
+        this.a[slot] = a;
+
+        this.b[slot] = b;
+
+        this.impulse[slot] = impulse;
+
+        this.x[slot] = x;
+
+        this.y[slot] = y;
+
+        // Publishing after the writes makes them visible to every subscription that sees the new count.
+        published.set(next + 1);
+
+    }
+
+    // The cursor of the slowest subscription, or next if there is none.
+    private long slowest(long next) {
+
+        long slowest = next;
+
+        for (Subscription subscription : subscriptions) {
+
+            slowest = Math.min(slowest, subscription.cursor.get());
+
+        }
+
+        return slowest;
+
+    }
+
+    /**
+     * The position of one consumer in the stream. A subscription is read by one thread at a time. Close it when done,
+     * an abandoned subscription holds the producer back once the ring is full.
+     */
+    public final class Subscription implements AutoCloseable {
+
+        // The sequence number of the next event to read.
+        private final AtomicLong cursor;
+
+        private Subscription(long start) {
+
+            this.cursor = new AtomicLong(start);
+
+        }
+
+        /**
+         * Hands the published events this subscription has not read yet to the handler, at most max of them, and
+         * returns how many that were.
+         */
+        public int poll(Handler handler, int max) {
+
+            long next = cursor.get();
+
+            long end = Math.min(published.get(), next + max);
+
+            for (long n = next; n < end; n++) {
+
+                int slot = (int) n & mask;
+
+                handler.onContact(step[slot], time[slot], a[slot], b[slot], impulse[slot], x[slot], y[slot]);
+
+            }
+
+            // Moving the cursor hands the slots back to the producer.
+            cursor.set(end);
+
+            return (int) (end - next);
+
+        }
+
+        // The number of published events this subscription has not read yet.
+        public long lag() {
+
+            return published.get() - cursor.get();
+
+        }
+
+        // Stops reading, the producer no longer waits for this subscription.
+        @Override
+        public void close() {
+
+            subscriptions.remove(this);
+
+        }
+
+    }
+
+}
@@ -0,0 +1,222 @@
+package src;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Debug output of the ball states that costs the simulation next to nothing.
+ *
+ * The simulation only copies the state of a ball into a fixed size ring buffer of primitive records. A background
+ * thread takes the records out, formats them and prints them. The buffer has a single producer and a single
+ * consumer, so handing a record over is one ordered write of a counter on each side and no locks are involved.
+ *
+ * If the printing falls behind and the buffer is full, new records are dropped and counted instead of making the
+ * simulation wait. To keep the volume down only every n-th step and every m-th ball (by id) can be recorded.
+ */
+public final class DebugChannel implements AutoCloseable {
+
+    // How long the printer sleeps when there is nothing to print.
+    private static final long IDLE_NANOS = 1_000_000;
+
+    private final PrintStream out;
+
+    private final int stepInterval, ballInterval;
+
+    // The records, capacity is a power of two so an index is a sequence number masked.
+    private final int mask;
+
+    private final long[] step;
+
+    private final int[] id;
+
+    private final double[] x, y, vx, vy;
+
+    // Sequence number of the next record to write (producer) and to print (consumer).
+    private final AtomicLong tail = new AtomicLong(), head = new AtomicLong();
+
+    // The producer's last look at head, so it only reads the shared counter when the buffer seems full.
+    private long cachedHead;
+
+    private long dropped;
+
+    private volatile boolean closed;
+
+    private final Thread printer;
+
+    // Prints every ball of every step, with room for 64k records.
+    public DebugChannel(PrintStream out) {
+
+        this(out, 1 << 16, 1, 1);
+
+    }
+
+    /**
+     * Records only the steps whose number is a multiple of stepInterval and the balls whose id is a multiple of
+     * ballInterval. The capacity is rounded up to a power of two.
+     */
+    public DebugChannel(PrintStream out, int capacity, int stepInterval, int ballInterval) {
+
+        if (capacity < 1 || stepInterval < 1 || ballInterval < 1) {
+
+            throw new IllegalArgumentException("Capacity and intervals must be positive");
+
+        }
+
+        int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+
+        this.out = out;
+
+        this.stepInterval = stepInterval;
+
+        this.ballInterval = ballInterval;
+
+        this.mask = size - 1;
+
+        this.step = new long[size];
+
+        this.id = new int[size];
+
+        this.x = new double[size];
+
+        this.y = new double[size];
+
+        this.vx = new double[size];
+
+        this.vy = new double[size];
+
+        this.printer = new Thread(this::drain, "debug-printer");
+
+        this.printer.setDaemon(true);
+
+        this.printer.start();
+
+    }
+
+    // True if the given step is sampled, checked once per step so unsampled steps cost nothing per ball.
+    public boolean samples(long stepNumber) {
+
+        return stepNumber % stepInterval == 0;
+
+    }
+
+    // Records the state of ball i, or counts it as dropped if the buffer is full. Call from one thread only.
+    public void record(long stepNumber, BallStore balls, int i) {
+
+        if (balls.id[i] % ballInterval != 0) {
+            return;
+        }
+
+        long t = tail.get();
+
+        if (t - cachedHead > mask) {
+
+            cachedHead = head.get();
+
+            if (t - cachedHead > mask) {
+
+                dropped++;
+
+                return;
+
+            }
+
+        }
+
+        int k = (int) t & mask;
+
+        step[k] = stepNumber;
+
+        id[k] = balls.id[i];
+
+        x[k] = balls.x[i];
+
+        y[k] = balls.y[i];
+
+        vx[k] = balls.vx[i];
+
+        vy[k] = balls.vy[i];
+
+        // Publishes the record, the printer reads tail before it reads the record.
+        tail.lazySet(t + 1);
+
+    }
+
+    // The number of records dropped because the printer could not keep up. Read it from the recording thread.
+    public long dropped() {
+
+        return dropped;
+
+    }
+
+    // Prints what is left in the buffer and stops the printer.
+    @Override
+    public void close() {
+
+        closed = true;
+
+        LockSupport.unpark(printer);
+
+        try {
+
+            printer.join();
+
+        } catch (InterruptedException e) {
+
+            Thread.currentThread().interrupt();
+
+        }
+
+        out.flush();
+
+    }
+
+    private void drain() {
+
+        StringBuilder line = new StringBuilder(96);
+
+        while (true) {
+
+            // Read closed before tail, so after closing everything recorded before close is still printed.
+            boolean last = closed;
+
+            long h = head.get();
+
+            long t = tail.get();
+
+            if (h == t) {
+
+                if (last) {
+                    return;
+                }
+
+                LockSupport.parkNanos(this, IDLE_NANOS);
+
+                continue;
+
+            }
+
+            for (; h < t; h++) {
+
+                int k = (int) h & mask;
+
+                line.setLength(0);
+
+                line.append("Step ").append(step[k]).append(" Ball ").append(id[k])
+                    .append(": x=").append(String.format("%.4f", x[k]))
+                    .append(", y=").append(String.format("%.4f", y[k]))
+                    .append(", vx=").append(String.format("%.4f", vx[k]))
+                    .append(", vy=").append(String.format("%.4f", vy[k]));
+
+                out.println(line);
+
+                // Hands the slot back to the producer once it has been read.
+                head.lazySet(h + 1);
+
+            }
+
+        }
+
+    }
+
+}
@@ -0,0 +1,244 @@
+package src;
+
+import java.util.DoubleSummaryStatistics;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+
+/**
+ * Runs many small independent models side by side, for parameter sweeps over masses, radii and speeds.
+ *
+ * Every run is a task on a work stealing pool that builds its model from the scene generator, steps it and reports
+ * the final state. At most maxRunning models exist at any time: the runs are only handed to the pool as the earlier
+ * ones finish, so a sweep over millions of scenes needs no more memory than maxRunning of them.
+ *
+ * The results go to the consumer as the runs finish, in whatever order that is, one at a time so the consumer does
+ * not have to be thread safe. The generator is called from the pool threads with the index of the run and must be
+ * thread safe. Models from the generator should step on the calling thread, without a step pool of their own, and
+ * are closed once their run is done.
+ */
+public final class Ensemble {
+
+    /**
+     * The final state of one run.
+     */
+    public static final class Result {
+
+        // The index the scene of the run was generated with.
+        public final int run;
+
+        // Kinetic energy, momentum along both axes and the sum of mass times speed of all balls at the end of the run.
+        public final double energy, momentumX, momentumY, momentum;
+
+        // Ball to ball collisions and wall hits during the run.
+        public final long collisions, wallHits;
+
+        // Wall clock time of the run, generating the scene included.
+        public final long nanos;
+
+        Result(int run, BallStore balls, long[] counters, long nanos) {
+
+            this.run = run;
+
+            this.energy = balls.kineticEnergy();
+
+            this.momentumX = balls.momentumX();
+
+            this.momentumY = balls.momentumY();
+
+            this.momentum = balls.momentum();
+
+            this.collisions = counters[StepMetrics.Counter.COLLISIONS.ordinal()];
+
+            this.wallHits = counters[StepMetrics.Counter.WALL_HITS.ordinal()];
+
+            this.nanos = nanos;
+
+        }
+
+    }
+
+    /**
+     * The results of all runs of an ensemble, summed up.
+     */
+    public static final class Summary {
+
+        // Final kinetic energy and sum of mass times speed over the runs.
+        public final DoubleSummaryStatistics energy = new DoubleSummaryStatistics();
+
+        public final DoubleSummaryStatistics momentum = new DoubleSummaryStatistics();
+
+        private long collisions, wallHits;
+
+        // The number of runs that finished.
+        public long runs() {
+
+            return energy.getCount();
+
+        }
+
+        // Ball to ball collisions over all runs.
+        public long collisions() {
+
+            return collisions;
+
+        }
+
+        // Wall hits over all runs.
+        public long wallHits() {
+
+            return wallHits;
+
+        }
+
+        private void add(Result result) {
+
+            energy.accept(result.energy);
+
+            momentum.accept(result.momentum);
+
+            collisions += result.collisions;
+
+            wallHits += result.wallHits;
+
+        }
+
+    }
+
+    private final ForkJoinPool pool;
+
+    private final int maxRunning;
+
+    public Ensemble(ForkJoinPool pool, int maxRunning) {
+
+        if (maxRunning < 1) {
+
+            throw new IllegalArgumentException("At least one run must be able to run");
+
+        }
+
+        this.pool = pool;
+
+        this.maxRunning = maxRunning;
+
+    }
+
+    // An ensemble on the common pool, with a few runs per thread waiting so no thread runs dry.
+    public Ensemble() {
+
+        this(ForkJoinPool.commonPool(), 4 * ForkJoinPool.commonPool().getParallelism());
+
+    }
+
+    /**
+     * Runs the scenes 0 to runs - 1 for steps steps of deltaT each, handing every result to the consumer as soon as
+     * its run finishes. Returns once all runs have finished, with the results summed up. If a run fails no further
+     * runs are started, and once the running ones are done the first failure is thrown.
+     */
+    public Summary run(int runs, IntFunction<Model> scenes, long steps, double deltaT, Consumer<? super Result> results)
+        throws InterruptedException {
+
+        Semaphore running = new Semaphore(maxRunning);
+
+        Summary summary = new Summary();
+
+        RuntimeException[] failure = new RuntimeException[1];
+
+        for (int i = 0; i < runs; i++) {
+
+            running.acquire();
+
+            synchronized (summary) {
+
+                if (failure[0] != null) {
+
+                    running.release();
+
+                    break;
+
+                }
+
+            }
+
+            int run = i;
+
+            pool.execute(() -> {
+
+                try {
+
+                    Result result = run(run, scenes, steps, deltaT);
+
+                    synchronized (summary) {
+
+                        summary.add(result);
+
+                        results.accept(result);
+
+                    }
+
+                } catch (RuntimeException | Error e) {
+
+                    synchronized (summary) {
+
+                        if (failure[0] == null) {
+
+                            failure[0] = new IllegalStateException("Run " + run + " failed", e);
+
+                        }
+
+                    }
+
+                } finally {
+
+                    running.release();
+
+                }
+
+            });
+
+        }
+
+        // All runs have finished once every permit is back.
+        running.acquire(maxRunning);
+
+        running.release(maxRunning);
+
+        synchronized (summary) {
+
+            if (failure[0] != null) {
+
+                throw failure[0];
+
+            }
+
+        }
+
+        return summary;
+
+    }
+
+    private static Result run(int run, IntFunction<Model> scenes, long steps, double deltaT) {
+
+        long start = System.nanoTime();
+
+        // Closing the model stops its debug printer, if the generator turned debug info on.
+        try (Model model = scenes.apply(run)) {
+
+            for (long s = 0; s < steps; s++) {
+
+                model.step(deltaT);
+
+            }
+
+            long[] counters = new long[StepMetrics.COUNTERS];
+
+            model.takeCounters(counters);
+
+            return new Result(run, model.balls(), counters, System.nanoTime() - start);
+
+        }
+
+    }
+
+}
@@ -0,0 +1,611 @@
+package src;
+
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+/**
+ * An event driven alternative to the fixed step Model.
+ *
+ * Between two collisions every ball moves in a straight line, so the time at which two balls (or a ball and a wall)
+ * will touch can be computed exactly. All predicted collisions are kept in a priority queue ordered by time and the
+ * simulation jumps straight from one collision to the next. Nothing is done between collisions and the balls never
+ * overlap, which makes this both faster than stepping when collisions are rare and exact when they are frequent.
+ *
+ * Predictions go stale when one of their balls collides with something else first. Instead of searching the queue
+ * for them, every ball counts its collisions and an event remembers the counts it was predicted with. Stale events
+ * are recognized and dropped when they reach the head of the queue, and go back to a pool to be reused.
+ *
+ * Balls are only predicted against the balls in the cells around them. The area is cut into cells at least as wide
+ * as the largest ball, so balls can only touch when their cells are neighbours. A ball crossing into another cell is
+ * an event of its own, at which it is predicted against the balls in the cells that just became its neighbours.
+ *
+ * The balls in the store are only moved when they are part of an event, every ball remembers the time its state in
+ * the store belongs to. At the end of a step all balls are moved to the current time so they can be drawn.
+ *
+ * Gravity is not supported. A ball resting on the floor (or on other balls) is in permanent contact, which cannot
+ * be expressed as a sequence of separate events.
+ */
+public class EventDrivenModel implements Simulation {
+
+    private final BallStore balls;
+
+    private final double areaWidth, areaHeight;
+
+    // Simulation time in seconds.
+    private double time;
+
+    // The time the state of every ball in the store belongs to.
+    private double[] since;
+
+    // The number of collisions of every ball, used to recognize stale events.
+    private int[] collisions;
+
+    private final PriorityQueue<Event> events = new PriorityQueue<>();
+
+    // Events that have left the queue, ready to be reused.
+    private Event[] free = new Event[64];
+
+    private int freeCount;
+
+    // The grid of cells, columns by rows of cellWidth by cellHeight meters.
+    private final int columns, rows;
+
+    private final double cellWidth, cellHeight;
+
+    // The cell of every ball, and the balls of every cell as a doubly linked list through next and previous.
+    private final int[] cellX, cellY;
+
+    private final int[] head, next, previous;
+
+    // Number of collisions handled so far.
+    private long handled;
+
+    public EventDrivenModel(Ball[] balls, double width, double height) {
+
+        this(BallStore.of(balls), width, height);
+
+    }
+
+    public EventDrivenModel(BallStore balls, double width, double height) {
+
+        this.balls = balls;
+
+        this.areaWidth = width;
+
+        this.areaHeight = height;
+
+        int n = balls.size();
+
+        this.since = new double[n];
+
+        this.collisions = new int[n];
+
+        double maxRadius = 0;
+
+        for (int i = 0; i < n; i++) {
+
+            maxRadius = Math.max(maxRadius, balls.radius[i]);
+
+        }
+
+        // At least the largest diameter, and about one ball per cell so an empty area does not need a huge grid.
+        double cell = Math.max(2 * maxRadius, Math.sqrt(width * height / Math.max(1, n)));
+
+        this.columns = Math.max(1, (int) (width / cell));
+
+        this.rows = Math.max(1, (int) (height / cell));
+
+        this.cellWidth = width / columns;
+
+        this.cellHeight = height / rows;
+
+        this.cellX = new int[n];
+
+        this.cellY = new int[n];
+
+        this.head = new int[columns * rows];
+
+        this.next = new int[n];
+
+        this.previous = new int[n];
+
+        Arrays.fill(head, -1);
+
+        for (int i = 0; i < n; i++) {
+
+            cellX[i] = Math.min(columns - 1, Math.max(0, (int) (balls.x[i] / cellWidth)));
+
+            cellY[i] = Math.min(rows - 1, Math.max(0, (int) (balls.y[i] / cellHeight)));
+
+            link(i);
+
+        }
+
+        // Every pair only once, predict(i) would visit each pair twice.
+        for (int i = 0; i < n; i++) {
+
+            predictWalls(i);
+
+            predictCrossing(i);
+
+            for (int cy = Math.max(0, cellY[i] - 1); cy <= Math.min(rows - 1, cellY[i] + 1); cy++) {
+
+                for (int cx = Math.max(0, cellX[i] - 1); cx <= Math.min(columns - 1, cellX[i] + 1); cx++) {
+
+                    for (int j = head[cy * columns + cx]; j >= 0; j = next[j]) {
+
+                        if (j > i) {
+
+                            predictBall(i, j);
+
+                        }
+
+                    }
+
+                }
+
+            }
+
+        }
+
+    }
+
+    @Override
+    public void step(double deltaT) {
+
+        advanceTo(time + deltaT);
+
+    }
+
+    // Handles every collision up to and including time t, then moves all balls to time t.
+    public void advanceTo(double t) {
+
+        while (!events.isEmpty() && events.peek().time <= t) {
+
+            Event e = events.poll();
+
+            int a = e.a, b = e.b;
+
+            boolean valid = e.isValid();
+
+            double at = e.time;
+
+            recycle(e);
+
+            if (!valid) {
+                continue;
+            }
+
+            time = at;
+
+            move(a);
+
+            if (b == CROSS_X || b == CROSS_Y) {
+
+                cross(a, b);
+
+                continue;
+
+            }
+
+            if (b >= 0) {
+
+                move(b);
+
+                bounce(a, b);
+
+            } else if (b == WALL_X) {
+
+                balls.vx[a] *= -1;
+
+            } else {
+
+                balls.vy[a] *= -1;
+
+            }
+
+            handled++;
+
+            collisions[a]++;
+
+            predict(a, -1);
+
+            if (b >= 0) {
+
+                collisions[b]++;
+
+                predict(b, a);
+
+            }
+
+        }
+
+        time = t;
+
+        for (int i = 0; i < balls.size(); i++) {
+
+            move(i);
+
+        }
+
+    }
+
+    @Override
+    public BallStore balls() {
+
+        return balls;
+
+    }
+
+    // The current simulation time.
+    public double time() {
+
+        return time;
+
+    }
+
+    // The number of collisions (ball to ball and ball to wall) handled since the start.
+    public long collisions() {
+
+        return handled;
+
+    }
+
+    // Moves the ball along its straight line to the current time.
+    private void move(int i) {
+
+        double dt = time - since[i];
+
+        balls.x[i] += balls.vx[i] * dt;
+
+        balls.y[i] += balls.vy[i] * dt;
+
+        since[i] = time;
+
+    }
+
+    /**
+     * Moves ball i into the next cell along the axis of the crossing event and predicts it against the balls in the
+     * row or column of cells that just became its neighbours. Its other predictions are still good, its speed has not
+     * changed, so its collision count stays as it is.
+     */
+    private void cross(int i, int axis) {
+
+        unlink(i);
+
+        int dx = 0, dy = 0;
+
+        if (axis == CROSS_X) {
+
+            dx = balls.vx[i] > 0 ? 1 : -1;
+
+            cellX[i] += dx;
+
+        } else {
+
+            dy = balls.vy[i] > 0 ? 1 : -1;
+
+            cellY[i] += dy;
+
+        }
+
+        link(i);
+
+        // The crossing along the other axis is still queued.
+        if (axis == CROSS_X) {
+
+            predictCrossingX(i);
+
+        } else {
+
+            predictCrossingY(i);
+
+        }
+
+        // The cells one further on in the direction of the crossing.
+        int fromX = dx != 0 ? cellX[i] + dx : cellX[i] - 1, toX = dx != 0 ? fromX : cellX[i] + 1;
+
+        int fromY = dy != 0 ? cellY[i] + dy : cellY[i] - 1, toY = dy != 0 ? fromY : cellY[i] + 1;
+
+        for (int cy = Math.max(0, fromY); cy <= Math.min(rows - 1, toY); cy++) {
+
+            for (int cx = Math.max(0, fromX); cx <= Math.min(columns - 1, toX); cx++) {
+
+                for (int j = head[cy * columns + cx]; j >= 0; j = next[j]) {
+
+                    predictBall(i, j);
+
+                }
+
+            }
+
+        }
+
+    }
+
+    // Predicts the next events of ball i, skipping ball skip, whose prediction with i is done from its own side.
+    private void predict(int i, int skip) {
+
+        predictWalls(i);
+
+        predictCrossing(i);
+
+        for (int cy = Math.max(0, cellY[i] - 1); cy <= Math.min(rows - 1, cellY[i] + 1); cy++) {
+
+            for (int cx = Math.max(0, cellX[i] - 1); cx <= Math.min(columns - 1, cellX[i] + 1); cx++) {
+
+                for (int j = head[cy * columns + cx]; j >= 0; j = next[j]) {
+
+                    if (j != i && j != skip) {
+
+                        predictBall(i, j);
+
+                    }
+
+                }
+
+            }
+
+        }
+
+    }
+
+    private void predictWalls(int i) {
+
+        double r = balls.radius[i];
+
+        double vx = balls.vx[i], vy = balls.vy[i];
+
+        // The store holds the state at since[i], which is not necessarily the current time.
+        double x = balls.x[i] + vx * (time - since[i]);
+
+        double y = balls.y[i] + vy * (time - since[i]);
+
+        if (vx > 0) {
+
+            schedule((areaWidth - r - x) / vx, i, WALL_X);
+
+        } else if (vx < 0) {
+
+            schedule((r - x) / vx, i, WALL_X);
+
+        }
+
+        if (vy > 0) {
+
+            schedule((areaHeight - r - y) / vy, i, WALL_Y);
+
+        } else if (vy < 0) {
+
+            schedule((r - y) / vy, i, WALL_Y);
+
+        }
+
+    }
+
+    // Predicts when the center of ball i leaves its cell, on either axis. The edge of the grid is never crossed.
+    private void predictCrossing(int i) {
+
+        predictCrossingX(i);
+
+        predictCrossingY(i);
+
+    }
+
+    private void predictCrossingX(int i) {
+
+        double vx = balls.vx[i];
+
+        double x = balls.x[i] + vx * (time - since[i]);
+
+        if (vx > 0 && cellX[i] < columns - 1) {
+
+            schedule(((cellX[i] + 1) * cellWidth - x) / vx, i, CROSS_X);
+
+        } else if (vx < 0 && cellX[i] > 0) {
+
+            schedule((cellX[i] * cellWidth - x) / vx, i, CROSS_X);
+
+        }
+
+    }
+
+    private void predictCrossingY(int i) {
+
+        double vy = balls.vy[i];
+
+        double y = balls.y[i] + vy * (time - since[i]);
+
+        if (vy > 0 && cellY[i] < rows - 1) {
+
+            schedule(((cellY[i] + 1) * cellHeight - y) / vy, i, CROSS_Y);
+
+        } else if (vy < 0 && cellY[i] > 0) {
+
+            schedule((cellY[i] * cellHeight - y) / vy, i, CROSS_Y);
+
+        }
+
+    }
+
+    // Predicts when balls i and j will touch, if they ever do.
+    private void predictBall(int i, int j) {
+
+        double[] x = balls.x, y = balls.y, vx = balls.vx, vy = balls.vy;
+
+        // Relative position (at the current time) and velocity of j as seen from i.
+        double dx = (x[j] + vx[j] * (time - since[j])) - (x[i] + vx[i] * (time - since[i]));
+
+        double dy = (y[j] + vy[j] * (time - since[j])) - (y[i] + vy[i] * (time - since[i]));
+
+        double dvx = vx[j] - vx[i];
+
+        double dvy = vy[j] - vy[i];
+
+        double dvdr = dx * dvx + dy * dvy;
+
+        // The balls are moving apart.
+        if (dvdr >= 0) {
+            return;
+        }
+
+        double dvdv = dvx * dvx + dvy * dvy;
+
+        double sigma = balls.radius[i] + balls.radius[j];
+
+        // Solve |d + dv * t| = sigma for the first t.
+        double discriminant = dvdr * dvdr - dvdv * (dx * dx + dy * dy - sigma * sigma);
+
+        // The balls pass each other without touching.
+        if (discriminant < 0) {
+            return;
+        }
+
+        schedule(-(dvdr + Math.sqrt(discriminant)) / dvdv, i, j);
+
+    }
+
+    // Queues an event dt seconds from now. Balls that already overlap get a negative dt, they collide right away.
+    private void schedule(double dt, int a, int b) {
+
+        if (Double.isFinite(dt)) {
+
+            Event e = freeCount > 0 ? free[--freeCount] : new Event();
+
+            e.set(time + Math.max(0, dt), a, b);
+
+            events.add(e);
+
+        }
+
+    }
+
+    // Keeps an event that has left the queue for the next prediction.
+    private void recycle(Event e) {
+
+        if (freeCount == free.length) {
+
+            free = Arrays.copyOf(free, freeCount * 2);
+
+        }
+
+        free[freeCount++] = e;
+
+    }
+
+    private void link(int i) {
+
+        int cell = cellY[i] * columns + cellX[i];
+
+        previous[i] = -1;
+
+        next[i] = head[cell];
+
+        if (head[cell] >= 0) {
+
+            previous[head[cell]] = i;
+
+        }
+
+        head[cell] = i;
+
+    }
+
+    private void unlink(int i) {
+
+        if (previous[i] >= 0) {
+
+            next[previous[i]] = next[i];
+
+        } else {
+
+            head[cellY[i] * columns + cellX[i]] = next[i];
+
+        }
+
+        if (next[i] >= 0) {
+
+            previous[next[i]] = previous[i];
+
+        }
+
+    }
+
+    // Elastic collision of two touching balls, the impulse acts along the line between their centers.
+    private void bounce(int i, int j) {
+
+        double[] x = balls.x, y = balls.y, vx = balls.vx, vy = balls.vy;
+
+        double dx = x[j] - x[i];
+
+        double dy = y[j] - y[i];
+
+        double distance = Math.sqrt(dx * dx + dy * dy);
+
+        double m1 = balls.mass[i];
+
+        double m2 = balls.mass[j];
+
+        // The same 1d velocity transfer as in the fixed step model, written as an impulse along the unit normal.
+        double dvn = ((vx[j] - vx[i]) * dx + (vy[j] - vy[i]) * dy) / distance;
+
+        double impulse = 2 * m1 * m2 * dvn / (m1 + m2);
+
+        double jx = impulse * dx / distance;
+
+        double jy = impulse * dy / distance;
+
+        vx[i] += jx / m1;
+
+        vy[i] += jy / m1;
+
+        vx[j] -= jx / m2;
+
+        vy[j] -= jy / m2;
+
+    }
+
+    // Marks the other side of a ball to wall event, and of a ball leaving its cell along either axis.
+    private static final int WALL_X = -1, WALL_Y = -2, CROSS_X = -3, CROSS_Y = -4;
+
+    // A predicted collision of ball a with ball b, with a wall if b is WALL_X or WALL_Y, or a cell crossing.
+    private final class Event implements Comparable<Event> {
+
+        double time;
+
+        int a, b;
+
+        // The collision counts of the balls when the event was predicted.
+        private int collisionsA, collisionsB;
+
+        void set(double time, int a, int b) {
+
+            this.time = time;
+
+            this.a = a;
+
+            this.b = b;
+
+            this.collisionsA = collisions[a];
+
+            this.collisionsB = b >= 0 ? collisions[b] : 0;
+
+        }
+
+        // An event is stale if one of its balls has collided since it was predicted.
+        boolean isValid() {
+
+            return collisions[a] == collisionsA && (b < 0 || collisions[b] == collisionsB);
+
+        }
+
+        @Override
+        public int compareTo(Event other) {
+
+            return Double.compare(time, other.time);
+
+        }
+
+    }
+
+}
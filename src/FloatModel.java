@@ -0,0 +1,353 @@
+package src;
+
+import java.util.Arrays;
+
+/**
+ * The physics model in single precision, for huge scenes where float accuracy is plenty and memory bandwidth is
+ * what limits the step.
+ *
+ * The balls live in a FloatBallStore and all collision math is done in float. The step is staged like the one of
+ * ParallelStepper: first every ball moves, then the collisions are resolved with the candidates from a uniform grid,
+ * then every ball bounces off the walls and gets gravity. PrecisionDrift compares its energy and momentum drift
+ * with the double precision Model.
+ *
+ * balls() copies the balls into a double precision store for the renderer, which costs a pass over all balls.
+ */
+public final class FloatModel implements Simulation {
+
+    private final float areaWidth, areaHeight;
+
+    private final boolean gravity;
+
+    public final FloatBallStore balls;
+
+    // Double precision copy of the balls, filled in by balls().
+    private final BallStore view = new BallStore(0);
+
+    private long steps;
+
+    private double time;
+
+    // Position of every ball before it moved, used to move balls out of the walls.
+    private float[] oldX = new float[0], oldY = new float[0];
+
+    // Uniform grid of the balls, rebuilt every step by counting sort: the balls of cell c are order[cellStart[c]] up to order[cellStart[c + 1]].
+    private int[] cellOf = new int[0], order = new int[0], cellStart = new int[0];
+
+    private int columns, rows;
+
+    // Corner of the grid, the grid covers the bounding box of the balls rather than the whole area.
+    private float gridX, gridY;
+
+    private float cellSize;
+
+    public FloatModel(BallStore balls, double width, double height, boolean gravity) {
+
+        this(FloatBallStore.of(balls), width, height, gravity);
+
+    }
+
+    public FloatModel(FloatBallStore balls, double width, double height, boolean gravity) {
+
+        this.balls = balls;
+
+        this.areaWidth = (float) width;
+
+        this.areaHeight = (float) height;
+
+        this.gravity = gravity;
+
+    }
+
+    // The balls in double precision, copied from the float store on every call.
+    @Override
+    public BallStore balls() {
+
+        balls.copyTo(view);
+
+        return view;
+
+    }
+
+    public double time() {
+
+        return time;
+
+    }
+
+    public long steps() {
+
+        return steps;
+
+    }
+
+    @Override
+    public void step(double deltaT) {
+
+        steps++;
+
+        time += deltaT;
+
+        int n = balls.size();
+
+        float dt = (float) deltaT;
+
+        if (oldX.length < n) {
+
+            oldX = new float[n];
+
+            oldY = new float[n];
+
+            cellOf = new int[n];
+
+            order = new int[n];
+
+        }
+
+        float[] x = balls.x, y = balls.y, vx = balls.vx, vy = balls.vy, r = balls.radius;
+
+        for (int i = 0; i < n; i++) {
+
+            oldX[i] = x[i];
+
+            oldY[i] = y[i];
+
+            x[i] += dt * vx[i];
+
+            y[i] += dt * vy[i];
+
+        }
+
+        rebuildGrid(n);
+
+        // Walk the balls cell by cell, so neighbouring balls are still in the cache from the cell before.
+        for (int k = 0; k < n; k++) {
+
+            collideWithNeighbours(order[k]);
+
+        }
+
+        float gravityStep = (float) (deltaT * Model.G);
+
+        for (int i = 0; i < n; i++) {
+
+            float radius = r[i];
+
+            if (x[i] <= radius || x[i] >= areaWidth - radius) {
+
+                x[i] = oldX[i];
+
+                vx[i] = -vx[i];
+
+            }
+
+            if (y[i] <= radius || y[i] >= areaHeight - radius) {
+
+                y[i] = oldY[i];
+
+                vy[i] = -vy[i];
+
+            }
+
+            if (gravity && y[i] > radius) {
+
+                vy[i] -= gravityStep;
+
+            }
+
+        }
+
+    }
+
+    // Sorts the balls into cells at least as wide as the largest ball over their bounding box.
+    private void rebuildGrid(int n) {
+
+        float maxRadius = 0;
+
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+
+        for (int i = 0; i < n; i++) {
+
+            maxRadius = Math.max(maxRadius, balls.radius[i]);
+
+            minX = Math.min(minX, balls.x[i]);
+
+            minY = Math.min(minY, balls.y[i]);
+
+            maxX = Math.max(maxX, balls.x[i]);
+
+            maxY = Math.max(maxY, balls.y[i]);
+
+        }
+
+        if (n == 0) {
+
+            minX = minY = maxX = maxY = 0;
+
+        }
+
+        gridX = minX;
+
+        gridY = minY;
+
+        double width = maxX - minX, height = maxY - minY;
+
+        // Never more than about three cells per ball, even when the balls are spread out along a line.
+        double spread = Math.max(Math.sqrt(width * height / Math.max(1, n)), Math.max(width, height) / Math.max(1, n));
+
+        cellSize = (float) Math.max(2 * maxRadius, spread);
+
+        // A zero cell size is only possible if all balls are points on one spot, then one cell holds them all.
+        if (!(cellSize > 0)) {
+
+            cellSize = 1;
+
+        }
+
+        columns = Math.max(1, (int) Math.ceil(width / cellSize));
+
+        rows = Math.max(1, (int) Math.ceil(height / cellSize));
+
+        int cells = columns * rows;
+
+        if (cellStart.length < cells + 1) {
+
+            cellStart = new int[cells + 1];
+
+        }
+
+        Arrays.fill(cellStart, 0, cells + 1, 0);
+
+        for (int i = 0; i < n; i++) {
+
+            int c = cell(column(balls.x[i]), row(balls.y[i]));
+
+            cellOf[i] = c;
+
+            cellStart[c + 1]++;
+
+        }
+
+        for (int c = 0; c < cells; c++) {
+
+            cellStart[c + 1] += cellStart[c];
+
+        }
+
+        // Fill each cell from its end, walking the balls backwards keeps them in index order within a cell.
+        for (int i = n - 1; i >= 0; i--) {
+
+            order[--cellStart[cellOf[i] + 1]] = i;
+
+        }
+
+        // Filling moved every start one cell down, cellStart[c + 1] now holds the start of cell c.
+        System.arraycopy(cellStart, 1, cellStart, 0, cells);
+
+        cellStart[cells] = n;
+
+    }
+
+    // Collides ball i with every other ball in its own and the eight surrounding cells.
+    private void collideWithNeighbours(int i) {
+
+        int column = column(balls.x[i]), row = row(balls.y[i]);
+
+        for (int cy = Math.max(0, row - 1); cy <= Math.min(rows - 1, row + 1); cy++) {
+
+            for (int cx = Math.max(0, column - 1); cx <= Math.min(columns - 1, column + 1); cx++) {
+
+                int c = cell(cx, cy);
+
+                for (int k = cellStart[c]; k < cellStart[c + 1]; k++) {
+
+                    int j = order[k];
+
+                    if (j != i) {
+
+                        collide(i, j);
+
+                    }
+
+                }
+
+            }
+
+        }
+
+    }
+
+    // The same collision as CollisionKernel.collide, written out in float.
+    private void collide(int b, int other) {
+
+        float[] x = balls.x, y = balls.y, vx = balls.vx, vy = balls.vy;
+
+        float dx = x[other] - x[b];
+        float dy = y[other] - y[b];
+
+        float reach = balls.radius[b] + balls.radius[other];
+
+        // Compare squared distances first, most pairs are too far apart to need the square root.
+        if (dx * dx + dy * dy > reach * reach) {
+
+            return;
+
+        }
+
+        float distance = (float) Math.sqrt(dx * dx + dy * dy);
+
+        float nx = 1, ny = 0;
+
+        if (distance > 0) {
+
+            nx = dx / distance;
+
+            ny = dy / distance;
+
+        }
+
+        // Move the ball initializing the collision back along the normal until the balls just touch.
+        float overlap = reach - distance;
+
+        x[b] -= overlap * nx;
+        y[b] -= overlap * ny;
+
+        float m1 = balls.mass[b], m2 = balls.mass[other];
+
+        // Speed along the normal and along the tangent (the normal turned 90 degrees) of both balls.
+        float u1n = vx[b] * nx + vy[b] * ny;
+        float u2n = vx[other] * nx + vy[other] * ny;
+
+        float v1t = vy[b] * nx - vx[b] * ny;
+        float v2t = vy[other] * nx - vx[other] * ny;
+
+        // Only the speed along the normal changes, as in a collision in 1d.
+        float v1n = (u1n * (m1 - m2) + 2 * m2 * u2n) / (m1 + m2);
+        float v2n = (u2n * (m2 - m1) + 2 * m1 * u1n) / (m1 + m2);
+
+        vx[b] = nx * v1n - ny * v1t;
+        vy[b] = ny * v1n + nx * v1t;
+        vx[other] = nx * v2n - ny * v2t;
+        vy[other] = ny * v2n + nx * v2t;
+
+    }
+
+    private int column(float x) {
+
+        return Math.max(0, Math.min(columns - 1, (int) ((x - gridX) / cellSize)));
+
+    }
+
+    private int row(float y) {
+
+        return Math.max(0, Math.min(rows - 1, (int) ((y - gridY) / cellSize)));
+
+    }
+
+    private int cell(int column, int row) {
+
+        return row * columns + column;
+
+    }
+
+}
@@ -0,0 +1,330 @@
+package src;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import javax.management.JMException;
+
+/**
+ * Runs a model without a GUI, as fast as possible, and reports the throughput.
+ *
+ * Usage: HeadlessRunner scene balls steps deltaT [threads] [gravity] [float] [continuous] [deterministic] [events]
+ *                      [metrics[=n]] [record=file] [slabs=n]
+ *
+ * The scene is one of demo, gas, lattice or pile, where the area grows with the number of balls so the density stays
+ * the same, or the path of a scene file, see SceneFiles, in which case balls is ignored and overlapping balls are
+ * pushed apart before the run. With threads > 0 the model steps on a fork/join pool with that many threads. With record
+ * every step is written to the given trajectory file, which BouncingBalls can replay. With metrics the time of every
+ * phase of the step is reported as well, with the energy and momentum at the end, and the metrics can be watched over
+ * JMX while the run goes on. With metrics=n the phases are timed only every n-th step, which keeps the cost of reading
+ * the clock down. With float the scene runs in a FloatModel, in single precision on one thread and without metrics.
+ * With continuous fast balls are swept through the step instead of jumping, which keeps large deltaT correct, see
+ * Model.setContinuous. It only applies to the sequential step of a Model, so it cannot be combined with threads,
+ * float, slabs or events. With deterministic the step pool gives the same result no matter how many threads it has,
+ * see Model.setDeterministic. With slabs the area is split over that many worker processes, see SlabModel, which step
+ * on their own and only take gravity. With events the scene runs in an EventDrivenModel, which jumps from collision to
+ * collision instead of stepping, on one thread and without gravity. Any other option is rejected with the usage.
+ */
+public final class HeadlessRunner {
+
+    // Radius of the balls in the generated scenes.
+    private static final double RADIUS = 0.05;
+
+    // Area per ball in the generated scenes, in square meters. About 8% of the area is covered by balls.
+    private static final double AREA_PER_BALL = 0.1;
+
+    // Hide implicit public constructor.
+    private HeadlessRunner() {
+
+    }
+
+    // Prints how to call the runner and exits.
+    private static void usage() {
+
+        System.err.println("Usage: HeadlessRunner scene balls steps deltaT [threads] [gravity] [float] [continuous] [deterministic] [events] [metrics[=n]] [record=file] [slabs=n]");
+
+        System.exit(2);
+
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        if (args.length < 4) {
+
+            usage();
+
+        }
+
+        String scene = args[0];
+
+        int count = Integer.parseInt(args[1]);
+
+        long steps = Long.parseLong(args[2]);
+
+        double deltaT = Double.parseDouble(args[3]);
+
+        int threads = 0;
+
+        boolean gravity = false;
+
+        boolean single = false;
+
+        boolean continuous = false;
+
+        boolean deterministic = false;
+
+        boolean eventDriven = false;
+
+        // Phases are timed every metricsInterval steps, 0 collects no metrics.
+        int metricsInterval = 0;
+
+        String record = null;
+
+        // Worker processes to split the area over, 0 runs the model in this process.
+        int slabs = 0;
+
+        for (int i = 4; i < args.length; i++) {
+
+            if (args[i].equals("gravity")) {
+
+                gravity = true;
+
+            } else if (args[i].equals("float")) {
+
+                single = true;
+
+            } else if (args[i].equals("continuous")) {
+
+                continuous = true;
+
+            } else if (args[i].equals("deterministic")) {
+
+                deterministic = true;
+
+            } else if (args[i].equals("events")) {
+
+                eventDriven = true;
+
+            } else if (args[i].equals("metrics")) {
+
+                metricsInterval = 1;
+
+            } else if (args[i].startsWith("metrics=")) {
+
+                metricsInterval = Integer.parseInt(args[i].substring("metrics=".length()));
+
+            } else if (args[i].startsWith("slabs=")) {
+
+                slabs = Integer.parseInt(args[i].substring("slabs=".length()));
+
+            } else if (args[i].startsWith("record=")) {
+
+                record = args[i].substring("record=".length());
+
+            } else if (args[i].matches("[0-9]+")) {
+
+                threads = Integer.parseInt(args[i]);
+
+            } else {
+
+                System.err.println("Unknown option: " + args[i]);
+
+                usage();
+
+            }
+
+        }
+
+        // Phase 1, build the scene.
+        long start = System.nanoTime();
+
+        double side = Math.max(4, Math.sqrt(count * AREA_PER_BALL));
+
+        double width = side, height = side;
+
+        BallStore balls;
+
+        switch (scene) {
+
+            case "demo":
+                balls = Scenes.demo();
+                width = height = 4;
+                break;
+
+            case "gas":
+                balls = Scenes.gas(count, side, side, RADIUS, 1);
+                break;
+
+            case "lattice":
+                balls = Scenes.lattice(count, side, side, RADIUS, 1);
+                break;
+
+            case "pile":
+                balls = Scenes.pile(count, side, side, RADIUS, 1);
+                break;
+
+            default:
+
+                if (!Files.isRegularFile(Paths.get(scene))) {
+
+                    throw new IllegalArgumentException("Unknown scene: " + scene);
+
+                }
+
+                Scene file = SceneFiles.read(Paths.get(scene));
+
+                balls = file.balls;
+
+                width = file.width;
+
+                height = file.height;
+
+                long overlaps = Scenes.separate(balls, width, height, 100);
+
+                if (overlaps > 0) {
+
+                    System.err.println(overlaps + " pairs of balls still overlap");
+
+                }
+
+                break;
+
+        }
+
+        if (eventDriven && (gravity || single || slabs > 0 || threads > 0)) {
+
+            throw new IllegalArgumentException("events runs on one thread in double precision and without gravity");
+
+        }
+
+        if (continuous && (threads > 0 || single || slabs > 0 || eventDriven)) {
+
+            throw new IllegalArgumentException("continuous only applies to the sequential step of a Model, not with threads, float, slabs or events");
+
+        }
+
+        FloatModel floatModel = single ? new FloatModel(balls, width, height, gravity) : null;
+
+        SlabModel slabModel = !single && slabs > 0 ? new SlabModel(balls, width, height, gravity, slabs) : null;
+
+        EventDrivenModel eventModel = eventDriven ? new EventDrivenModel(balls, width, height) : null;
+
+        Model model = single || slabModel != null || eventDriven ? null : new Model(balls, width, height, gravity, false);
+
+        Simulation simulation = single ? floatModel : slabModel != null ? slabModel : eventDriven ? eventModel : model;
+
+        if (model != null) {
+
+            model.setContinuous(continuous);
+
+            model.setDeterministic(deterministic);
+
+        }
+
+        if (model != null && threads > 0) {
+
+            model.setStepPool(new ForkJoinPool(threads));
+
+        }
+
+        StepMetrics metrics = model != null && metricsInterval > 0 ? new StepMetrics(metricsInterval) : null;
+
+        Invariants invariants = metrics != null ? new Invariants() : null;
+
+        if (metrics != null) {
+
+            model.setMetrics(metrics);
+
+            model.setInvariants(invariants);
+
+            try {
+
+                metrics.register("headless");
+
+            } catch (JMException e) {
+
+                System.err.println("Could not register the metrics over JMX: " + e);
+
+            }
+
+        }
+
+        long built = System.nanoTime();
+
+        TrajectoryRecorder recorder = record != null ? new TrajectoryRecorder(Paths.get(record)) : null;
+
+        // Phase 2, run the simulation.
+        for (long i = 0; i < steps; i++) {
+
+            if (recorder != null) {
+
+                recorder.record(i, i * deltaT, simulation.balls());
+
+            }
+
+            simulation.step(deltaT);
+
+        }
+
+        if (recorder != null) {
+
+            recorder.record(steps, steps * deltaT, simulation.balls());
+
+            recorder.close();
+
+        }
+
+        long done = System.nanoTime();
+
+        if (slabModel != null) {
+
+            slabModel.close();
+
+        }
+
+        double seconds = (done - built) / 1e9;
+
+        double stepsPerSecond = steps / seconds;
+
+        System.out.println(String.format(Locale.ROOT, "scene=%s balls=%d steps=%d deltaT=%s threads=%d gravity=%b vectorized=%b precision=%s slabs=%d events=%b",
+            scene, balls.size(), steps, deltaT, single ? 1 : threads, gravity, model != null && model.isVectorized(),
+            single ? "float" : "double", slabModel != null ? slabs : 0, eventDriven));
+
+        System.out.println(String.format(Locale.ROOT, "setup: %.3f ms", (built - start) / 1e6));
+
+        System.out.println(String.format(Locale.ROOT, "simulation: %.3f ms", (done - built) / 1e6));
+
+        System.out.println(String.format(Locale.ROOT, "steps/sec: %.1f", stepsPerSecond));
+
+        System.out.println(String.format(Locale.ROOT, "ball-updates/sec: %.1f", stepsPerSecond * balls.size()));
+
+        if (metrics != null) {
+
+            for (StepMetrics.Phase phase : StepMetrics.Phase.values()) {
+
+                System.out.println(String.format(Locale.ROOT, "phase %s: %.3f ms", phase.name().toLowerCase(Locale.ROOT),
+                    metrics.phaseNanos(phase) / 1e6));
+
+            }
+
+            for (StepMetrics.Counter counter : StepMetrics.Counter.values()) {
+
+                System.out.println(String.format(Locale.ROOT, "%s: %d", counter.name().toLowerCase(Locale.ROOT), metrics.count(counter)));
+
+            }
+
+            System.out.println(String.format(Locale.ROOT, "energy: kinetic %.6g J, potential %.6g J, momentum (%.6g, %.6g), center of mass (%.6g, %.6g)",
+                invariants.kineticEnergy(), invariants.potentialEnergy(), invariants.momentumX(), invariants.momentumY(),
+                invariants.centerOfMassX(), invariants.centerOfMassY()));
+
+            System.out.println(String.format(Locale.ROOT, "step latency: mean %.1f us, p50 %.1f us, p99 %.1f us, max %.1f us",
+                metrics.getMeanStepNanos() / 1e3, metrics.getStepNanosP50() / 1e3, metrics.getStepNanosP99() / 1e3,
+                metrics.getMaxStepNanos() / 1e3));
+
+        }
+
+    }
+
+}
@@ -0,0 +1,200 @@
+package src;
+
+/**
+ * Running totals over all balls of a model: kinetic and potential energy, momentum and center of mass, kept up to
+ * date by the step itself, see Model.setInvariants. Reading them costs nothing, there is no pass over the balls.
+ *
+ * The sequential step adds how much a ball changed to the sums once it is done with the ball, and how much the other
+ * ball changed after every collision, while the balls are in the cache anyway. The step pool sums the balls up in its
+ * last stage, which touches every ball once more. Either way the sums are compensated (Kahan-Babuska), so adding
+ * millions of changes a step does not make them drift away from summing the balls up afresh.
+ *
+ * The values are published at the end of every step and can be read from any thread. While the model steps, two
+ * values read one after the other may come from different steps.
+ */
+public final class Invariants {
+
+    // The sums, in the order they are kept in arrays of SUMS doubles.
+    static final int KINETIC = 0, POTENTIAL = 1, MOMENTUM_X = 2, MOMENTUM_Y = 3, MASS_X = 4, MASS_Y = 5, MASS = 6;
+
+    static final int SUMS = 7;
+
+    private final double[] sum = new double[SUMS], compensation = new double[SUMS];
+
+    // Gravitational acceleration for the potential energy, 0 without gravity.
+    private double g;
+
+    private volatile double kinetic, potential, momentumX, momentumY, centerX, centerY, mass;
+
+    // Kinetic energy of all balls, in joule.
+    public double kineticEnergy() {
+
+        return kinetic;
+
+    }
+
+    // Potential energy of all balls, in joule, measured from the bottom of a ball to the floor. 0 without gravity.
+    public double potentialEnergy() {
+
+        return potential;
+
+    }
+
+    public double totalEnergy() {
+
+        return kinetic + potential;
+
+    }
+
+    public double momentumX() {
+
+        return momentumX;
+
+    }
+
+    public double momentumY() {
+
+        return momentumY;
+
+    }
+
+    public double centerOfMassX() {
+
+        return centerX;
+
+    }
+
+    public double centerOfMassY() {
+
+        return centerY;
+
+    }
+
+    // Mass of all balls.
+    public double mass() {
+
+        return mass;
+
+    }
+
+    // Sums up all balls afresh, with gravitational acceleration g for the potential energy, and publishes the sums.
+    void reset(BallStore balls, double g) {
+
+        this.g = g;
+
+        java.util.Arrays.fill(sum, 0);
+
+        java.util.Arrays.fill(compensation, 0);
+
+        for (int i = 0; i < balls.size(); i++) {
+
+            accumulate(sum, compensation, 0, balls, i, g);
+
+        }
+
+        publish();
+
+    }
+
+    // Changes the share of ball i in the sums from what it was at x, y with speed vx, vy to what it is now.
+    void update(BallStore balls, int i, double x, double y, double vx, double vy) {
+
+        double m = balls.mass[i], nx = balls.x[i], ny = balls.y[i], nvx = balls.vx[i], nvy = balls.vy[i];
+
+        add(sum, compensation, KINETIC, 0.5 * m * ((nvx * nvx + nvy * nvy) - (vx * vx + vy * vy)));
+
+        add(sum, compensation, POTENTIAL, m * g * (ny - y));
+
+        add(sum, compensation, MOMENTUM_X, m * (nvx - vx));
+
+        add(sum, compensation, MOMENTUM_Y, m * (nvy - vy));
+
+        add(sum, compensation, MASS_X, m * (nx - x));
+
+        add(sum, compensation, MASS_Y, m * (ny - y));
+
+    }
+
+    // Replaces the sums with the total of parts sums of the balls, SUMS doubles each, summed up by the step pool.
+    void merge(double[] sums, double[] compensations, int parts) {
+
+        java.util.Arrays.fill(sum, 0);
+
+        java.util.Arrays.fill(compensation, 0);
+
+        for (int p = 0; p < parts; p++) {
+
+            for (int q = 0; q < SUMS; q++) {
+
+                add(sum, compensation, q, sums[p * SUMS + q]);
+
+                add(sum, compensation, q, compensations[p * SUMS + q]);
+
+            }
+
+        }
+
+        publish();
+
+    }
+
+    // Makes the sums visible to readers, at the end of a step.
+    void publish() {
+
+        double m = value(MASS);
+
+        kinetic = value(KINETIC);
+
+        potential = value(POTENTIAL);
+
+        momentumX = value(MOMENTUM_X);
+
+        momentumY = value(MOMENTUM_Y);
+
+        centerX = m > 0 ? value(MASS_X) / m : 0;
+
+        centerY = m > 0 ? value(MASS_Y) / m : 0;
+
+        mass = m;
+
+    }
+
+    private double value(int q) {
+
+        return sum[q] + compensation[q];
+
+    }
+
+    // Adds the share of ball i to the SUMS sums starting at offset.
+    static void accumulate(double[] sum, double[] compensation, int offset, BallStore balls, int i, double g) {
+
+        double m = balls.mass[i], vx = balls.vx[i], vy = balls.vy[i];
+
+        add(sum, compensation, offset + KINETIC, 0.5 * m * (vx * vx + vy * vy));
+
+        add(sum, compensation, offset + POTENTIAL, m * g * (balls.y[i] - balls.radius[i]));
+
+        add(sum, compensation, offset + MOMENTUM_X, m * vx);
+
+        add(sum, compensation, offset + MOMENTUM_Y, m * vy);
+
+        add(sum, compensation, offset + MASS_X, m * balls.x[i]);
+
+        add(sum, compensation, offset + MASS_Y, m * balls.y[i]);
+
+        add(sum, compensation, offset + MASS, m);
+
+    }
+
+    // Adds value to sum q, keeping the low order bits the addition loses in the compensation.
+    private static void add(double[] sum, double[] compensation, int q, double value) {
+
+        double s = sum[q], t = s + value;
+
+        compensation[q] += Math.abs(s) >= Math.abs(value) ? (s - t) + value : (value - t) + s;
+
+        sum[q] = t;
+
+    }
+
+}
@@ -1,6 +1,7 @@
 package src;
-import src.linalg.LinAlg;
-import src.linalg.Vector2d;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * The physics model.
@@ -12,248 +13,1209 @@ import src.linalg.Vector2d;
  * @author Simon Robillard
  *
  */
-public class Model {
+public class Model implements Simulation, AutoCloseable {
+
+	// The gravitational acceleration consants on earth (specifically Sweden).
+	static final double G = 9.82;
+
+	private double areaWidth, areaHeight;
+	
+	private Boolean gravity;
+
+	// Where the ball states go when debug info is on, null when it is off.
+	private DebugChannel debug;
+
+	// Whether the model made the debug channel itself, and has to close it.
+	private boolean ownsDebug;
+
+	// The number of steps taken so far, and the simulation time they add up to.
+	private long steps;
+
+	private double time;
+
+	// The state of all balls, stored column wise. See BallStore.
+	public final BallStore balls;
+
+	// How the candidates for ball to ball collisions are found.
+	private BroadPhase broadPhase = BroadPhase.SPATIAL_HASH;
+
+	// Broad phase indexes, rebuilt at the start of every step and updated as the balls move.
+	private final SpatialHashGrid grid = new SpatialHashGrid();
+
+	private final SweepAndPrune sweep = new SweepAndPrune();
+
+	// Also answers the region queries, whatever the broad phase.
+	private final AabbTree tree = new AabbTree();
+
+	// Narrow phase, resolves the collision of a pair of balls without allocating.
+	private final CollisionKernel kernel = new CollisionKernel();
+
+	// Runs the step on a fork/join pool, null when the step runs on the calling thread.
+	private ParallelStepper parallel;
+
+	// Balls slower than sleepSpeed for sleepSteps steps in a row go to sleep, sleepSteps is 0 when balls never sleep.
+	private double sleepSpeed;
+
+	private int sleepSteps;
+
+	// The number of steps in a row each ball has been slower than sleepSpeed, and whether it is asleep.
+	private int[] calmSteps = new int[0];
+
+	private boolean[] asleep = new boolean[0];
+
+	private int sleepers;
+
+	// Whether the step pool uses the vectorised per ball stages when they are available.
+	private boolean vectorized = true;
+
+	// Whether the step pool resolves the collisions in a canonical order, see setDeterministic.
+	private boolean deterministic;
+
+	// Whether balls that move further than their radius in a step are swept instead of jumping, see sweep.
+	private boolean continuous;
+
+	// Where the contacts of the sequential step are published, null when nobody listens.
+	private CollisionStream events;
+
+	// The running totals the step keeps up to date, null when nobody reads them.
+	private Invariants invariants;
+
+	// The most contacts one ball resolves while it is swept through a step, see sweep.
+	private static final int MAX_CONTACTS = 16;
+
+	// How far, relative to the sum of their radii, a swept ball overlaps the ball it stops at, so the kernel sees them collide.
+	private static final double CONTACT = 1e-9;
+
+	// Where the phase times and counters of every step go, null when they are not collected.
+	private StepMetrics metrics;
+
+	// The phase times and counters of the current step, handed to the metrics at the end of the step.
+	private final long[] phaseNanos = new long[StepMetrics.PHASES], counters = new long[StepMetrics.COUNTERS];
+
+	// The balls the model was made from, if it was, which see the state of the model after every step.
+	private final Ball[] views;
+
+	/**
+	 * Makes a model of the given balls. The model steps a copy of them in a BallStore, and writes the state back to
+	 * the balls after every step, so they always show where the model is.
+	 *
+	 * The array is a view for reading only: only position and speed are written back, and nothing flows the other
+	 * way. Changing a ball in the array, its radius and mass included, or putting another one in its place does not
+	 * change the model, and the next step overwrites its position and speed. Change the model through its BallStore.
+	 */
+	public Model(Ball[] balls, double width, double height, boolean gravity, boolean debugInfo) {
+
+		this(BallStore.of(balls), width, height, gravity, debugInfo, balls);
+
+	}
+
+	public Model(BallStore balls, double width, double height, boolean gravity, boolean debugInfo) {
+
+		this(balls, width, height, gravity, debugInfo, null);
+
+	}
+
+	private Model(BallStore balls, double width, double height, boolean gravity, boolean debugInfo, Ball[] views) {
+
+		this.views = views;
+
+		this.areaWidth = width;
+
+		this.areaHeight = height;
+
+		this.balls = balls;
+
+		this.gravity = gravity;
+
+		this.debug = debugInfo ? new DebugChannel(System.out) : null;
+
+		this.ownsDebug = debugInfo;
+
+	}
+
+	// Selects the broad phase, the all pairs loop can be selected to compare results against.
+	public void setBroadPhase(BroadPhase broadPhase) {
+
+		this.broadPhase = broadPhase;
+
+	}
+
+	public BroadPhase getBroadPhase() {
+
+		return broadPhase;
+
+	}
+
+	/**
+	 * Runs the following steps on the given pool, or on the calling thread if the pool is null.
+	 * The parallel step always uses the spatial hash broad phase, see ParallelStepper. Throws an
+	 * IllegalStateException if balls can fall asleep, see setSleeping.
+	 */
+	public void setStepPool(ForkJoinPool pool) {
+
+		if (pool != null && sleepSteps > 0) {
+
+			throw new IllegalStateException("Balls cannot sleep in the step pool");
+
+		}
+
+		this.parallel = pool == null ? null : new ParallelStepper(this, balls, pool);
+
+		if (parallel != null) {
+
+			parallel.setVectorized(vectorized);
+
+			parallel.setDeterministic(deterministic);
+
+		}
+
+	}
+
+	/**
+	 * Makes the step pool find all touching pairs first and then resolve them in the order of their indices, so the
+	 * result of a step is the same bit for bit no matter how many threads the pool has. Otherwise the collisions are
+	 * resolved strip by strip, and how the area is cut into strips depends on the number of threads. Has no effect
+	 * without a step pool, the sequential step is deterministic anyway, but differs from the step pool either way.
+	 */
+	public void setDeterministic(boolean deterministic) {
+
+		this.deterministic = deterministic;
+
+		if (parallel != null) {
+
+			parallel.setDeterministic(deterministic);
+
+		}
+
+	}
+
+	public boolean isDeterministic() {
+
+		return deterministic;
+
+	}
+
+	/**
+	 * Lets the step pool do the per ball stages with SIMD instructions, see PerBallKernel. This needs the JVM to run
+	 * with --add-modules jdk.incubator.vector, returns whether the vectorised stages are used. They are by default
+	 * when available. Has no effect without a step pool, the sequential step handles one ball at a time.
+	 */
+	public boolean setVectorized(boolean vectorized) {
+
+		this.vectorized = vectorized;
+
+		return parallel != null && parallel.setVectorized(vectorized);
+
+	}
+
+	// Whether the step pool does the per ball stages with SIMD instructions.
+	public boolean isVectorized() {
+
+		return parallel != null && parallel.isVectorized();
+
+	}
+
+	public ForkJoinPool getStepPool() {
+
+		return parallel == null ? null : parallel.pool();
+
+	}
+
+	@Override
+	public BallStore balls() {
+
+		return balls;
+
+	}
+
+	/**
+	 * Sends the ball states to the given channel every step, or turns debug info off if it is null. A channel the model
+	 * made for debugInfo is closed, one given here is left to the caller to close.
+	 */
+	public void setDebugChannel(DebugChannel debug) {
+
+		if (ownsDebug && this.debug != debug) {
+
+			this.debug.close();
+
+			ownsDebug = false;
+
+		}
+
+		this.debug = debug;
+
+	}
+
+	/**
+	 * Prints what is left of the debug info and stops its printer thread, if the model was made with debugInfo.
+	 * Models made in bulk should be closed, every debug channel has a thread of its own.
+	 */
+	@Override
+	public void close() {
+
+		setDebugChannel(null);
+
+	}
+
+	public DebugChannel getDebugChannel() {
+
+		return debug;
+
+	}
+
+	/**
+	 * Lets balls that have been slower than speed for steps steps in a row fall asleep, or keeps every ball awake if
+	 * steps is 0. A sleeping ball has its velocity set to zero and is skipped by the step entirely, until a ball that is
+	 * awake touches it. The two then collide like any other pair and the sleeping ball wakes up.
+	 *
+	 * With gravity a ball resting on the floor still moves at about g * deltaT, so speed has to be above that.
+	 * On the other hand steps * deltaT should be well above 2 * speed / g, so a ball at the top of its bounce does
+	 * not fall asleep in mid-air. Sleep only applies to the sequential step, so it cannot be turned on while the model
+	 * has a step pool, and a model with sleeping balls cannot be given one: both throw an IllegalStateException.
+	 */
+	public void setSleeping(double speed, int steps) {
+
+		if (speed < 0 || steps < 0) {
+
+			throw new IllegalArgumentException("Speed and steps must not be negative");
+
+		}
+
+		if (steps > 0 && parallel != null) {
+
+			throw new IllegalStateException("Balls cannot sleep in the step pool");
+
+		}
+
+		this.sleepSpeed = speed;
+
+		this.sleepSteps = steps;
+
+		wakeAll();
+
+	}
+
+	public double getSleepSpeed() {
+
+		return sleepSpeed;
+
+	}
+
+	// The number of calm steps after which a ball falls asleep, 0 when balls never sleep.
+	public int getSleepSteps() {
+
+		return sleepSteps;
+
+	}
+
+	// The calm steps of every ball, see ModelCheckpoint.
+	int[] calmSteps() {
+
+		return Arrays.copyOf(calmSteps, balls.size());
+
+	}
+
+	// Puts the balls back to sleep as they were when saved, see ModelCheckpoint.
+	void restoreSleep(int[] calmSteps, boolean[] asleep) {
+
+		this.calmSteps = calmSteps;
+
+		this.asleep = asleep;
+
+		sleepers = 0;
+
+		for (boolean sleeping : asleep) {
+
+			if (sleeping) {
+				sleepers++;
+			}
+
+		}
+
+	}
+
+	// The number of balls that are asleep.
+	public int sleepers() {
+
+		return sleepers;
+
+	}
+
+	public boolean isAsleep(int i) {
+
+		return i < asleep.length && asleep[i];
+
+	}
+
+	// Wakes every ball and starts counting their calm steps from zero.
+	public void wakeAll() {
+
+		Arrays.fill(asleep, false);
+
+		Arrays.fill(calmSteps, 0);
+
+		sleepers = 0;
+
+	}
+
+	/**
+	 * Sweeps balls that would move further than their radius in one step along their path instead of letting them
+	 * jump, so fast small balls no longer tunnel through other balls or jump past the walls at large deltaT. Such a
+	 * ball moves in sub-steps of at most its radius and stops at the first ball or wall it touches in each, see sweep.
+	 * Slower balls take the ordinary step. Continuous collisions only apply to the sequential step.
+	 */
+	public void setContinuous(boolean continuous) {
+
+		this.continuous = continuous;
+
+	}
+
+	public boolean isContinuous() {
+
+		return continuous;
+
+	}
+
+	/**
+	 * Publishes every ball to ball and ball to wall contact of the following steps to the given stream, or stops
+	 * publishing them if it is null. The model is the only producer of the stream. Contacts are only published by the
+	 * sequential step, the staged step of a step pool resolves them on many threads at once.
+	 */
+	public void setCollisionStream(CollisionStream events) {
+
+		this.events = events;
+
+	}
+
+	public CollisionStream getCollisionStream() {
+
+		return events;
+
+	}
+
+	/**
+	 * Keeps the energy, momentum and center of mass of all balls in the given totals from now on, or stops if null,
+	 * see Invariants. The totals are summed up afresh right away, after that every step keeps them up to date.
+	 */
+	public void setInvariants(Invariants invariants) {
+
+		this.invariants = invariants;
+
+		if (invariants != null) {
+
+			invariants.reset(balls, gravity ? G : 0);
+
+		}
+
+	}
+
+	public Invariants getInvariants() {
+
+		return invariants;
+
+	}
+
+	/**
+	 * Collects the phase times, pair and collision counts and step latencies of the following steps in the given
+	 * metrics, or stops collecting them if it is null. Without metrics the step only counts what it counts anyway.
+	 */
+	public void setMetrics(StepMetrics metrics) {
+
+		// Throw away whatever was counted while no metrics were collected.
+		drainCounters();
+
+		Arrays.fill(counters, 0);
+
+		this.metrics = metrics;
+
+	}
+
+	public StepMetrics getMetrics() {
+
+		return metrics;
+
+	}
+
+	// The simulation time in seconds, the sum of all deltaT stepped so far.
+	public double time() {
+
+		return time;
+
+	}
+
+	// The number of steps taken so far.
+	public long steps() {
+
+		return steps;
+
+	}
+
+	public double getAreaWidth() {
+
+		return areaWidth;
+
+	}
+
+	public double getAreaHeight() {
+
+		return areaHeight;
+
+	}
+
+	public boolean hasGravity() {
+
+		return gravity;
+
+	}
+
+	// Sets the clock of a restored model, see ModelCheckpoint.
+	void restoreClock(long steps, double time) {
+
+		this.steps = steps;
+
+		this.time = time;
+
+	}
+
+	/**
+	 * Returns the indices of the balls that overlap the given rectangle, in increasing order.
+	 * Balls that just touch its border count as inside.
+	 */
+	public int[] ballsIn(double minX, double minY, double maxX, double maxY) {
+
+		// Cheap when the tree is the broad phase, most balls are still inside their boxes since the last step.
+		tree.rebuild(balls);
+
+		int count = tree.query(minX, minY, maxX, maxY);
+
+		int[] found = tree.candidates();
+
+		int inside = 0;
+
+		for (int c = 0; c < count; c++) {
+
+			int i = found[c];
+
+			// The distance from the center of the ball to the closest point of the rectangle.
+			double dx = balls.x[i] - Math.max(minX, Math.min(balls.x[i], maxX));
+			double dy = balls.y[i] - Math.max(minY, Math.min(balls.y[i], maxY));
+
+			if (dx * dx + dy * dy <= balls.radius[i] * balls.radius[i]) {
+
+				found[inside++] = i;
+
+			}
+
+		}
+
+		int[] result = Arrays.copyOf(found, inside);
+
+		Arrays.sort(result);
+
+		return result;
+
+	}
+
+	// Returns a snapshot of the ball at index i.
+	public Ball ball(int i) {
+
+		return balls.get(i);
+
+	}
+
+	@Override
+	public void step(double deltaT) {
+
+		long step = steps++;
+
+		time += deltaT;
+
+		boolean debugInfo = debug != null && debug.samples(step);
+
+		StepMetrics metrics = this.metrics;
+
+		boolean timed = metrics != null && metrics.times(step);
+
+		long start = metrics != null ? System.nanoTime() : 0;
+
+		if (parallel != null) {
+
+			if (debugInfo) {
+
+				for (int i = 0; i < balls.size(); i++) {
+
+					debug.record(step, balls, i);
+
+				}
+
+			}
+
+			parallel.step(deltaT, gravity, timed ? phaseNanos : null, invariants);
+
+		} else {
+
+			stepSequential(step, deltaT, debugInfo, timed, start);
+
+			if (invariants != null) {
+
+				invariants.publish();
+
+			}
+
+		}
+
+		if (views != null) {
+
+			writeBack();
+
+		}
+
+		if (metrics != null) {
+
+			drainCounters();
+
+			metrics.record(System.nanoTime() - start, timed, phaseNanos, counters);
+
+		}
+
+	}
+
+	// Copies position and speed from the store to the balls the model was made from, the rest never changes.
+	private void writeBack() {
+
+		for (int i = 0; i < Math.min(views.length, balls.size()); i++) {
+
+			Ball b = views[i];
+
+			b.x = balls.x[i];
+
+			b.y = balls.y[i];
+
+			b.vx = balls.vx[i];
 
-	// The gravitational acceleration consants on earth (specifically Sweden).
-	private static final double G = 9.82;
+			b.vy = balls.vy[i];
 
-	private double areaWidth, areaHeight;
-	
-	private Boolean gravity, debugInfo;
+		}
 
-	public Ball [] balls;
+	}
 
-	public Model(Ball[] balls, double width, double height, boolean gravity, boolean debugInfo) {
+	// Moves, collides and bounces one ball at a time, timing the phases if timed.
+	private void stepSequential(long step, double deltaT, boolean debugInfo, boolean timed, long start) {
 
-		this.areaWidth = width;
+		NeighbourIndex index = neighbourIndex();
 
-		this.areaHeight = height;
+		if (index != null) {
 
-		this.balls = balls;
+			index.rebuild(balls);
 
-		this.gravity = gravity;
+		}
 
-		this.debugInfo = debugInfo;
+		long t = timed ? StepMetrics.lap(phaseNanos, StepMetrics.Phase.BROAD_PHASE, start) : 0;
 
-	}
+		int wallHits = 0;
 
-	public void step(double deltaT) {
-		
-		for (Ball b : balls) {
+		boolean sleeping = sleepSteps > 0;
+
+		if (sleeping && asleep.length < balls.size()) {
+
+			asleep = Arrays.copyOf(asleep, balls.size());
+
+			calmSteps = Arrays.copyOf(calmSteps, balls.size());
+
+		}
+
+		for (int i = 0; i < balls.size(); i++) {
+
+			// A sleeping ball does not move, so there is nothing to do for it, not even to update the index.
+			if (sleeping && asleep[i]) {
+				continue;
+			}
+
+			// Where the ball starts, the running totals take in how much it changed once it is done.
+			double startX = balls.x[i], startY = balls.y[i], startVx = balls.vx[i], startVy = balls.vy[i];
 
 			if (debugInfo) {
 				
-				printDebugInfo(b);
+				debug.record(step, balls, i);
 
 			}
 
-			// Save the old position of the ball. To fix clipping issues.
-			double oldX = b.x;
-			double oldY = b.y;
+			if (continuous && needsSweep(i, deltaT)) {
+
+				// Move the ball along its path, stopping at every ball and wall it touches.
+				wallHits += sweep(i, deltaT, index);
+
+				if (timed) {
+					t = StepMetrics.lap(phaseNanos, StepMetrics.Phase.BALL_COLLISIONS, t);
+				}
+
+			} else {
+
+				// Save the old position of the ball. To fix clipping issues.
+				double oldX = balls.x[i];
+				double oldY = balls.y[i];
+
+				// Update position by using eulers formula.
+				applyEulersFormula(i, deltaT);
+
+				if (timed) {
+					t = StepMetrics.lap(phaseNanos, StepMetrics.Phase.INTEGRATE, t);
+				}
+
+				// (Maybe) Morph y,x speed and position if the balls hits eachOther during this step.
+				applyBallCollisions(i, index);
+
+				if (timed) {
+					t = StepMetrics.lap(phaseNanos, StepMetrics.Phase.BALL_COLLISIONS, t);
+				}
+				
+				// (Maybe) Morph y,x speed and position if the balls hits a wall during this step.
+				wallHits += bounce(oldX, oldY, i);
 
-			// Update position by using eulers formula.
-			applyEulersFormula(b, deltaT);
+				if (timed) {
+					t = StepMetrics.lap(phaseNanos, StepMetrics.Phase.WALL_COLLISIONS, t);
+				}
 
-			// (Maybe) Morph y,x speed and position if the balls hits eachOther during this step.
-			applyBallCollisions(oldX, oldY, b);
-			
-			// (Maybe) Morph y,x speed and position if the balls hits a wall during this step.
-			applyWallCollisons(oldX, oldY, b);
+			}
 
 			if (gravity) {
 
 				// Morph y speed of ball by applying gravitational acceleration.
-				applyGravity(b, deltaT);
+				applyGravity(i, deltaT);
+
+				if (timed) {
+					t = StepMetrics.lap(phaseNanos, StepMetrics.Phase.GRAVITY, t);
+				}
+
+			}
+
+			if (index != null) {
+
+				// The ball has moved, keep the index up to date for the balls that come after it.
+				index.update(i);
+
+				if (timed) {
+					t = StepMetrics.lap(phaseNanos, StepMetrics.Phase.BROAD_PHASE, t);
+				}
+
+			}
+
+			if (sleeping) {
+
+				settle(i);
+
+			}
+
+			if (invariants != null) {
+
+				invariants.update(balls, i, startX, startY, startVx, startVy);
 
 			}
 
 		}
 
+		counters[StepMetrics.Counter.WALL_HITS.ordinal()] += wallHits;
+
+	}
+
+	// Moves the counts of the narrow phase kernels into the counters of the current step.
+	private void drainCounters() {
+
+		kernel.drain(counters);
+
+		if (parallel != null) {
+
+			parallel.drain(counters);
+
+		}
+
+	}
+
+	// Adds what the steps counted since the last call to totals, indexed by StepMetrics.Counter, without any metrics.
+	void takeCounters(long[] totals) {
+
+		drainCounters();
+
+		for (int c = 0; c < counters.length; c++) {
+
+			totals[c] += counters[c];
+
+			counters[c] = 0;
+
+		}
+
 	}
 
-	// Prints debug information about the ball.
-	private void printDebugInfo(Ball b) {
+	// The index behind the selected broad phase, null for the all pairs loop.
+	private NeighbourIndex neighbourIndex() {
 
-		String vx = String.format("%.4f", b.vx);
+		switch (broadPhase) {
 
-		String vy = String.format("%.4f", b.vy);
+			case SPATIAL_HASH:
+				return grid;
 
-		String x = String.format("%.4f", b.x);
+			case SWEEP_AND_PRUNE:
+				return sweep;
 
-		String y = String.format("%.4f", b.y);
+			case AABB_TREE:
+				return tree;
 
-		System.out.printf("Ball %d: x=%s, y=%s, vx=%s, vy=%s %n", b.id, x, y, vx, vy);
+			default:
+				return null;
+
+		}
 
 	}
 
-	// Applies the collision between two balls IFF they collide.
-	private void applyBallCollisions(double oldX, double oldY, Ball b) {
+	// Applies the collisions between the ball at index i and all other balls it collides with.
+	private void applyBallCollisions(int i, NeighbourIndex index) {
+
+		if (index != null) {
+
+			// The ball has just moved, only the balls the index finds around its new position can be close enough to collide.
+			index.update(i);
+
+			int count = index.query(i);
+
+			int[] candidates = index.candidates();
+
+			int c = 0;
+
+			while (c < count) {
+
+				int j = candidates[c++];
+
+				if (collide(i, j, time)) {
+
+					/* The overlap correction moved the ball, so its neighbours may have changed. Query again
+					and continue after j, this way the pairs are visited exactly like the all pairs loop does. */
+					index.update(i);
+
+					count = index.query(i);
+
+					candidates = index.candidates();
+
+					c = 0;
+
+					while (c < count && candidates[c] <= j) {
+						c++;
+					}
+
+				}
+
+			}
+
+		} else {
 		
-		for (Ball other : balls) {
+			for (int j = 0; j < balls.size(); j++) {
+
+				// Skip the ball if it is the same as the ball we are currently checking.
+				if (j == i) {
+					continue;
+				}
+
+				collide(i, j, time);
 
-			// Skip the ball if it is the same as the ball we are currently checking.
-			if (other == b) {
-				continue;
 			}
 
-			double distance = LinAlg.euclideanDistance(b.x, b.y, other.x, other.y);
+		}
 
-			// If the balls are colliding
-			if (distance <= b.radius + other.radius) {
+	}
 
-				// Since the balls practically never collide perfectly we move the ball initializing the collision back.
-				correctBallOverlap(b, other);
-				
-				/*
-				* Our calculation of the transfer of velocity between two balls with (possibly)
-				* different masses in 2d space is built on the formula for calulating the transfer of velocity
-				* in 1d space which itself is derived from the conservation of momentum and kinetic energy.
-				* 
-				* The difference when you do it in 2d is simply that you find the velocity in the direction of the
-				* normal vector (the vector between the center of the  two balls) and then just use the same formula
-				* as in 1d space. The velocity in the direction of the tangent does not change since the balls dont exert
-				* any force in that direction. 
-				* 
-				* We chose a linear algebra approach since it was more intative to us, linear algebra is also a very powerful
-				* tool for solving problems in physics and computer science since the computer can work with vectors
-				* very efficinetly (however this is a bit trivial in this assignment since we arent using hardware acceleration anyways).
-				* Its worth noting that you can solve this problem using equivalently using trigonometry.
-				*
-				* We also want to say that we know this caluclation can be made much shorter and much more "single expression-y" but
-				* we chose to make it more verbose to make it easier to understand and imrpove readability. Since this task
-				* is about understanding how to model physics rather than maximizing performance we think this is a good tradeoff.
-				*/
-
-				// Velocity (before the collision) of the two balls as vectors.
-				Vector2d u1 = new Vector2d(b.vx, b.vy);
-				Vector2d u2 = new Vector2d(other.vx, other.vy);
-
-				// Mass of the two balls.
-				double m1 = b.mass;
-				double m2 = other.mass;
-
-				// Find the normal vector (the vector between the two balls).
-				Vector2d n = new Vector2d(other.x - b.x, other.y - b.y);
-
-				// Normalize the normal vector to the normal unit vector.
-				n.normalize();
-
-				// Find the tangent vector, this is easily done by rotating the normal vector 90 degrees.
-				Vector2d t = new Vector2d(-n.y, n.x);
-
-				// Find the scalar velocity in the normal direction.
-				double u1n = LinAlg.vDot(u1, n);
-				double u2n = LinAlg.vDot(u2, n);
-
-				// Find the scalar velocity in the tangent direction.
-				double u1t = LinAlg.vDot(u1, t);
-				double u2t = LinAlg.vDot(u2, t);
-
-				// The scalar velocity in the tangent direction does not change.
-				double v1t = u1t;
-				double v2t = u2t;
-
-				/* Find the scalar velocity in the normal direction after the
-				collision using the formula for velocity transfer in 1d space. */
-				
-				double v1n = velocityAfterCollision(u1n, u2n, m1, m2);
-				double v2n = velocityAfterCollision(u2n, u1n, m2, m1);
+	/**
+	 * Collides balls i and j with the kernel and, if they collided, publishes the contact at the given time and wakes
+	 * j if it was asleep. The running totals take in the change of j right away, the change of
+	 * i once the step is done with i.
+	 */
+	private boolean collide(int i, int j, double at) {
+
+		double vx = balls.vx[j], vy = balls.vy[j];
+
+		if (!collideAndPublish(i, j, at)) {
+
+			return false;
+
+		}
+
+		if (sleepSteps > 0 && asleep[j]) {
+
+			wake(j);
+
+		}
+
+		// The kernel only moves ball i, j keeps its place.
+		if (invariants != null) {
+
+			invariants.update(balls, j, balls.x[j], balls.y[j], vx, vy);
+
+		}
+
+		return true;
+
+	}
+
+	// Collides balls i and j with the kernel and publishes the contact, at the given time, if they collided.
+	private boolean collideAndPublish(int i, int j, double at) {
+
+		if (events == null) {
+
+			return kernel.collide(balls, i, j);
+
+		}
+
+		double vx = balls.vx[i], vy = balls.vy[i];
+
+		if (!kernel.collide(balls, i, j)) {
+
+			return false;
+
+		}
+
+		// The overlap has been corrected, the balls touch on the line between their centers.
+		double dx = balls.x[j] - balls.x[i], dy = balls.y[j] - balls.y[i];
+
+		double distance = Math.sqrt(dx * dx + dy * dy);
+
+		double reach = distance > 0 ? balls.radius[i] / distance : 0;
+
+		double impulse = balls.mass[i] * Math.hypot(balls.vx[i] - vx, balls.vy[i] - vy);
+
+		events.publish(steps - 1, at, balls.id[i], balls.id[j], impulse, balls.x[i] + dx * reach, balls.y[i] + dy * reach);
+
+		return true;
+
+	}
+
+	// Bounces ball i off the walls with applyWallCollisons and publishes the walls it hit.
+	private int bounce(double oldX, double oldY, int i) {
+
+		if (events != null) {
 
-				/* Now that we have our scalar velocities we can use them to scale the 
-				* normal and tangent vectors to get the final velocity vectors. In the 
-				* normal and tangent directions */
+			double r = balls.radius[i];
 
-				Vector2d v1nVector = LinAlg.vMul(n, v1n);
-				Vector2d v1tVector = LinAlg.vMul(t, v1t);
-				Vector2d v2nVector = LinAlg.vMul(n, v2n);
-				Vector2d v2tVector = LinAlg.vMul(t, v2t);
+			if (balls.x[i] <= r || balls.x[i] >= areaWidth - r) {
 
-				// Now add the normal and tangent vectors to get a single total velocity vector for each ball.
-				Vector2d v1 = LinAlg.vAdd(v1nVector, v1tVector);
-				Vector2d v2 = LinAlg.vAdd(v2nVector, v2tVector);
+				publishWall(i, CollisionStream.WALL_X, time);
 
-				// Set the new velocities of the balls.
-				b.vx = v1.x;
-				b.vy = v1.y;
-				other.vx = v2.x;
-				other.vy = v2.y;
+			}
+
+			if (balls.y[i] <= r || balls.y[i] >= areaHeight - r) {
+
+				publishWall(i, CollisionStream.WALL_Y, time);
+
+			}
+
+		}
+
+		return applyWallCollisons(oldX, oldY, i);
+
+	}
+
+	// Publishes a contact of ball i with a wall, before its speed turns around, if there is a stream.
+	private void publishWall(int i, int wall, double at) {
+
+		if (events == null) {
+
+			return;
+
+		}
+
+		double x = balls.x[i], y = balls.y[i];
+
+		// The contact point is on the wall the ball is closest to, level with its center.
+		if (wall == CollisionStream.WALL_X) {
+
+			double impulse = 2 * balls.mass[i] * Math.abs(balls.vx[i]);
+
+			events.publish(steps - 1, at, balls.id[i], wall, impulse, x < areaWidth / 2 ? 0 : areaWidth, y);
+
+		} else {
+
+			double impulse = 2 * balls.mass[i] * Math.abs(balls.vy[i]);
+
+			events.publish(steps - 1, at, balls.id[i], wall, impulse, x, y < areaHeight / 2 ? 0 : areaHeight);
+
+		}
+
+	}
+
+	// Whether ball i moves further than its radius in the step, which is when it can jump over a ball or past a wall.
+	private boolean needsSweep(int i, double deltaT) {
+
+		double vx = balls.vx[i], vy = balls.vy[i], r = balls.radius[i];
+
+		return (vx * vx + vy * vy) * deltaT * deltaT > r * r;
+
+	}
+
+	/**
+	 * Moves ball i through the step along its path, the other balls standing still as they do in the ordinary step.
+	 *
+	 * The path is cut into sub-steps of at most the radius of the ball, so the candidates from the index stay close by.
+	 * In every sub-step the ball stops at the first ball or wall its swept circle touches. A ball is collided by the
+	 * kernel, a wall turns the speed around right at the wall instead of moving the ball back to where it started.
+	 * The rest of the sub-step goes on with the new speed. A ball wedged in so tightly that it touches something more
+	 * than MAX_CONTACTS times in one step stops where it is for the rest of the step. Returns the number of walls hit.
+	 */
+	private int sweep(int i, double deltaT, NeighbourIndex index) {
+
+		double[] x = balls.x, y = balls.y, vx = balls.vx, vy = balls.vy;
+
+		double r = balls.radius[i];
+
+		double left = deltaT;
+
+		int hits = 0, contacts = 0;
+
+		while (left > 0 && contacts < MAX_CONTACTS) {
+
+			double speed = Math.sqrt(vx[i] * vx[i] + vy[i] * vy[i]);
+
+			double dt = speed * left > r ? r / speed : left;
+
+			// The first wall on either axis, then the first ball if it comes before them.
+			double wallX = wallTime(x[i], vx[i], r, areaWidth);
+
+			double wallY = wallTime(y[i], vy[i], r, areaHeight);
+
+			double first = Math.min(dt, Math.min(wallX, wallY));
+
+			int other = -1;
+
+			int count = index != null ? index.query(i, speed * dt) : balls.size();
+
+			int[] candidates = index != null ? index.candidates() : null;
+
+			for (int c = 0; c < count; c++) {
+
+				int j = candidates != null ? candidates[c] : c;
+
+				if (j == i) {
+					continue;
+				}
+
+				double impact = timeOfImpact(i, j);
+
+				if (impact < first) {
+
+					first = impact;
+
+					other = j;
+
+				}
+
+			}
+
+			x[i] += first * vx[i];
+			y[i] += first * vy[i];
+
+			left -= first;
+
+			if (other >= 0) {
+
+				contacts++;
+
+				// The step ends at time, the ball is left seconds short of that.
+				collide(i, other, time - left);
+
+			} else {
+
+				if (first == wallX) {
+
+					publishWall(i, CollisionStream.WALL_X, time - left);
+
+					vx[i] *= -1;
+
+					hits++;
+
+				}
+
+				if (first == wallY) {
+
+					publishWall(i, CollisionStream.WALL_Y, time - left);
+
+					vy[i] *= -1;
+
+					hits++;
+
+				}
+
+				if (first == wallX || first == wallY) {
+
+					contacts++;
+
+				}
+
+			}
+
+			if (index != null) {
+
+				index.update(i);
 
 			}
 
 		}
 
+		return hits;
+
+	}
+
+	// The time a ball at position p moving at speed v on one axis takes to touch the wall ahead of it, 0 if it already does.
+	private static double wallTime(double p, double v, double r, double size) {
+
+		if (v > 0) {
+
+			return Math.max(0, (size - r - p) / v);
+
+		}
+
+		if (v < 0) {
+
+			return Math.max(0, (r - p) / v);
+
+		}
+
+		return Double.POSITIVE_INFINITY;
+
+	}
+
+	/**
+	 * The time ball i takes at its speed to touch ball j where j is, or rather to overlap it by CONTACT. It is 0 if
+	 * they already overlap that much and i is moving towards j, and infinite if i never reaches j.
+	 */
+	private double timeOfImpact(int i, int j) {
+
+		double dx = balls.x[j] - balls.x[i];
+		double dy = balls.y[j] - balls.y[i];
+
+		double vx = balls.vx[i], vy = balls.vy[i];
+
+		double approach = dx * vx + dy * vy;
+
+		/* Ball i is moving away from j, or j is moving away from i faster than i follows it. In the second case
+		colliding them would turn the balls that are already parting back towards each other. */
+		if (approach <= 0 || approach <= dx * balls.vx[j] + dy * balls.vy[j]) {
+
+			return Double.POSITIVE_INFINITY;
+
+		}
+
+		double sigma = (balls.radius[i] + balls.radius[j]) * (1 - CONTACT);
+
+		double gap = dx * dx + dy * dy - sigma * sigma;
+
+		if (gap <= 0) {
+
+			return 0;
+
+		}
+
+		double speed = vx * vx + vy * vy;
+
+		// Solve |d - v * t| = sigma for the first t.
+		double discriminant = approach * approach - speed * gap;
+
+		// Ball i passes j without touching it.
+		if (discriminant < 0) {
+
+			return Double.POSITIVE_INFINITY;
+
+		}
+
+		return (approach - Math.sqrt(discriminant)) / speed;
+
 	}
 
-	// Corrects the overlap between two balls by moving b back to a position where the balls are not overlapping.
-	private void correctBallOverlap(Ball b, Ball other) {
+	// Counts the calm steps of ball i and puts it to sleep once it has been calm for long enough.
+	private void settle(int i) {
+
+		double vx = balls.vx[i], vy = balls.vy[i];
+
+		if (vx * vx + vy * vy >= sleepSpeed * sleepSpeed) {
 
-		// The distance between the two balls.
-		double distance = LinAlg.euclideanDistance(b.x, b.y, other.x, other.y);
+			calmSteps[i] = 0;
 
-		// the angle between the two balls.
-		double angle = Math.atan2(other.y - b.y, other.x - b.x);
+		} else if (++calmSteps[i] >= sleepSteps) {
 
-		// The overlap between the two balls.
-		double overlap = (b.radius + other.radius) - distance;
+			asleep[i] = true;
 
-		// The x component of the overlap.
-		b.x -= overlap * Math.cos(angle);
+			balls.vx[i] = 0;
+
+			balls.vy[i] = 0;
+
+			sleepers++;
+
+		}
 
-		// The y component of the overlap.
-		b.y -= overlap * Math.sin(angle);
 	}
 
-	// Calculates the velocity of a ball after a collision with another ball in 1d space.
-	private double velocityAfterCollision(double u1, double u2, double m1, double m2) {
+	// A sleeping ball j was hit, it wakes up and moves on with the speed the collision gave it.
+	private void wake(int j) {
 
-		return (u1 * (m1 - m2) + 2 * m2 * u2) / (m1 + m2);
+		asleep[j] = false;
+
+		calmSteps[j] = 0;
+
+		sleepers--;
 
 	}
 
 	// Applies the eulers formula to the ball. Morphs the position of the ball according to its speed.
-	private void applyEulersFormula(Ball b, double deltaT) {
+	void applyEulersFormula(int i, double deltaT) {
 
 		// compute new position according to the speed of the ball
-		b.x += deltaT * b.vx;
-		b.y += deltaT * b.vy;
+		balls.x[i] += deltaT * balls.vx[i];
+		balls.y[i] += deltaT * balls.vy[i];
 
 	}
 
 	// Applies gravity to the vertical accelration of the ball
-	private void applyGravity(Ball b, double deltaT) {
+	void applyGravity(int i, double deltaT) {
 
 		// If the ball isnt at the floor gravitational de-acceleration should apply.
-		if (b.y > b.radius) {
+		if (balls.y[i] > balls.radius[i]) {
 
-			b.vy -= deltaT * G;
+			balls.vy[i] -= deltaT * G;
 
 		}
 
 	}
 
-	// Applies wall collisons, IFF the ball collides with the wall.
-	private void applyWallCollisons(double oldX, double oldY, Ball b) {
+	// Applies wall collisons, IFF the ball collides with the wall. Returns the number of walls hit.
+	int applyWallCollisons(double oldX, double oldY, int i) {
+
+		double[] x = balls.x, y = balls.y;
+
+		double r = balls.radius[i];
+
+		int hits = 0;
 
 		// detect collision with the left or right border
-		if (b.x <= b.radius || b.x >= areaWidth - b.radius) {
+		if (x[i] <= r || x[i] >= areaWidth - r) {
 
 			/* Always move the ball back to the old position incase it is outside the area. 
 			Since the probability of clipping is high its more efficient to always move the ball back. */
-			b.x = oldX;
+			x[i] = oldX;
+
+			balls.vx[i] *= -1; // change direction of ball if the ball hits the left or right wall.
 
-			b.vx *= -1; // change direction of ball if the ball hits the left or right wall.
+			hits++;
 		}
 		
 		// detect collision with the upper or lower border
-		if (b.y <= b.radius || b.y >= areaHeight - b.radius) {
+		if (y[i] <= r || y[i] >= areaHeight - r) {
 
 			/* Always move the ball back to the old position incase it is outside the area. 
 			Since the probability of clipping is high its more efficient to always move the ball back */
-			b.y = oldY;
+			y[i] = oldY;
 
-			b.vy *= -1; // change direction of ball if the ball hits the upper or lower wall.
+			balls.vy[i] *= -1; // change direction of ball if the ball hits the upper or lower wall.
+
+			hits++;
 
 		}
+
+		return hits;
 		
 	}
 	
@@ -0,0 +1,319 @@
+package src;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Saves the complete state of a model to a file and restores it, so long runs can be resumed.
+ *
+ * The state is the area, the gravity flag, the broad phase, the continuous and deterministic flags, the sleep
+ * settings, the clock (steps and time) and every ball, with how long it has been calm and whether it sleeps when
+ * balls can fall asleep. A restored model continues exactly like the saved one would have: every number is stored as
+ * its raw bits. The balls keep the ids they were saved with, the ids handed out to new balls are left alone, so
+ * restoring does not disturb the other models in the JVM.
+ *
+ * What is attached to a model rather than part of it is not saved: the step pool, the debug channel, the collision
+ * stream, the step metrics and the running totals of Invariants. They have to be attached to the restored model again
+ * and start from zero there. The metrics count from the restore on, and the running totals are summed up afresh from
+ * the restored balls, so any drift they had picked up before the checkpoint is gone.
+ *
+ * The balls are written column by column through a direct buffer, each column as one bulk copy of its array, so
+ * saving and restoring is limited by the disk rather than by encoding. The file starts with a magic number and a
+ * version so the format can change later without misreading old files.
+ *
+ * Layout, little endian:
+ *
+ *   int magic "BBCK", int version, double width, double height, int gravity, int broad phase, int flags
+ *   (1 continuous, 2 deterministic), double sleep speed, int sleep steps, long steps, double time,
+ *   int count, then the columns x, y, vx, vy, radius, mass (double) and id (int), and if sleep steps is not 0 the
+ *   columns calm steps (int) and asleep (byte)
+ */
+public final class ModelCheckpoint {
+
+    static final int MAGIC = 0x4242434b;
+
+    static final int VERSION = 3;
+
+    private static final int HEADER_BYTES = 4 + 4 + 8 + 8 + 4 + 4 + 4 + 8 + 4 + 8 + 8 + 4;
+
+    // Bits of the flags.
+    private static final int CONTINUOUS = 1, DETERMINISTIC = 2;
+
+    // Size of the buffer the columns pass through.
+    static final int CHUNK = 1 << 20;
+
+    // Hide implicit public constructor.
+    private ModelCheckpoint() {
+
+    }
+
+    public static void save(Model model, Path file) throws IOException {
+
+        BallStore balls = model.balls;
+
+        int n = balls.size();
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+
+            buffer.putInt(MAGIC).putInt(VERSION)
+                .putDouble(model.getAreaWidth()).putDouble(model.getAreaHeight())
+                .putInt(model.hasGravity() ? 1 : 0).putInt(model.getBroadPhase().ordinal())
+                .putInt((model.isContinuous() ? CONTINUOUS : 0) | (model.isDeterministic() ? DETERMINISTIC : 0))
+                .putDouble(model.getSleepSpeed()).putInt(model.getSleepSteps())
+                .putLong(model.steps()).putDouble(model.time())
+                .putInt(n);
+
+            flush(channel, buffer);
+
+            for (double[] column : new double[][] { balls.x, balls.y, balls.vx, balls.vy, balls.radius, balls.mass }) {
+
+                for (int from = 0; from < n; from += CHUNK / Double.BYTES) {
+
+                    int length = Math.min(n - from, CHUNK / Double.BYTES);
+
+                    buffer.asDoubleBuffer().put(column, from, length);
+
+                    buffer.position(length * Double.BYTES);
+
+                    flush(channel, buffer);
+
+                }
+
+            }
+
+            for (int from = 0; from < n; from += CHUNK / Integer.BYTES) {
+
+                int length = Math.min(n - from, CHUNK / Integer.BYTES);
+
+                buffer.asIntBuffer().put(balls.id, from, length);
+
+                buffer.position(length * Integer.BYTES);
+
+                flush(channel, buffer);
+
+            }
+
+            if (model.getSleepSteps() > 0) {
+
+                int[] calm = model.calmSteps();
+
+                for (int from = 0; from < n; from += CHUNK / Integer.BYTES) {
+
+                    int length = Math.min(n - from, CHUNK / Integer.BYTES);
+
+                    buffer.asIntBuffer().put(calm, from, length);
+
+                    buffer.position(length * Integer.BYTES);
+
+                    flush(channel, buffer);
+
+                }
+
+                for (int from = 0; from < n; from += CHUNK) {
+
+                    int length = Math.min(n - from, CHUNK);
+
+                    for (int i = from; i < from + length; i++) {
+
+                        buffer.put((byte) (model.isAsleep(i) ? 1 : 0));
+
+                    }
+
+                    flush(channel, buffer);
+
+                }
+
+            }
+
+        }
+
+    }
+
+    // Restores a model. Like the model constructor the debug info is off, and the model steps on the calling thread.
+    public static Model restore(Path file) throws IOException {
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+
+            fill(channel, buffer, HEADER_BYTES);
+
+            if (buffer.getInt() != MAGIC) {
+
+                throw new IOException(file + " is not a model checkpoint");
+
+            }
+
+            int version = buffer.getInt();
+
+            if (version != VERSION) {
+
+                throw new IOException("Unsupported checkpoint version " + version);
+
+            }
+
+            double width = buffer.getDouble();
+
+            double height = buffer.getDouble();
+
+            boolean gravity = buffer.getInt() != 0;
+
+            int phase = buffer.getInt();
+
+            if (phase < 0 || phase >= BroadPhase.values().length) {
+
+                throw new IOException("Unknown broad phase " + phase);
+
+            }
+
+            BroadPhase broadPhase = BroadPhase.values()[phase];
+
+            int flags = buffer.getInt();
+
+            double sleepSpeed = buffer.getDouble();
+
+            int sleepSteps = buffer.getInt();
+
+            if (!(sleepSpeed >= 0) || sleepSteps < 0) {
+
+                throw new IOException("Invalid sleep settings " + sleepSpeed + ", " + sleepSteps);
+
+            }
+
+            long steps = buffer.getLong();
+
+            double time = buffer.getDouble();
+
+            int n = buffer.getInt();
+
+            // Every ball takes six doubles and an int, and when balls can sleep an int and a byte more.
+            long ballBytes = 6 * Double.BYTES + Integer.BYTES + (sleepSteps > 0 ? Integer.BYTES + 1 : 0);
+
+            if (n < 0 || n * ballBytes > channel.size() - HEADER_BYTES) {
+
+                throw new IOException("corrupt checkpoint, " + n + " balls do not fit in " + file);
+
+            }
+
+            BallStore balls = new BallStore(n);
+
+            balls.resize(n);
+
+            for (double[] column : new double[][] { balls.x, balls.y, balls.vx, balls.vy, balls.radius, balls.mass }) {
+
+                for (int from = 0; from < n; from += CHUNK / Double.BYTES) {
+
+                    int length = Math.min(n - from, CHUNK / Double.BYTES);
+
+                    fill(channel, buffer, length * Double.BYTES);
+
+                    buffer.asDoubleBuffer().get(column, from, length);
+
+                }
+
+            }
+
+            for (int from = 0; from < n; from += CHUNK / Integer.BYTES) {
+
+                int length = Math.min(n - from, CHUNK / Integer.BYTES);
+
+                fill(channel, buffer, length * Integer.BYTES);
+
+                buffer.asIntBuffer().get(balls.id, from, length);
+
+            }
+
+            Model model = new Model(balls, width, height, gravity, false);
+
+            model.setBroadPhase(broadPhase);
+
+            model.setContinuous((flags & CONTINUOUS) != 0);
+
+            model.setDeterministic((flags & DETERMINISTIC) != 0);
+
+            model.setSleeping(sleepSpeed, sleepSteps);
+
+            if (sleepSteps > 0) {
+
+                int[] calm = new int[n];
+
+                boolean[] asleep = new boolean[n];
+
+                for (int from = 0; from < n; from += CHUNK / Integer.BYTES) {
+
+                    int length = Math.min(n - from, CHUNK / Integer.BYTES);
+
+                    fill(channel, buffer, length * Integer.BYTES);
+
+                    buffer.asIntBuffer().get(calm, from, length);
+
+                }
+
+                for (int from = 0; from < n; from += CHUNK) {
+
+                    int length = Math.min(n - from, CHUNK);
+
+                    fill(channel, buffer, length);
+
+                    for (int i = from; i < from + length; i++) {
+
+                        asleep[i] = buffer.get() != 0;
+
+                    }
+
+                }
+
+                model.restoreSleep(calm, asleep);
+
+            }
+
+            model.restoreClock(steps, time);
+
+            return model;
+
+        }
+
+    }
+
+    // Writes everything before the position of the buffer and clears it.
+    static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+
+        buffer.flip();
+
+        while (buffer.hasRemaining()) {
+
+            channel.write(buffer);
+
+        }
+
+        buffer.clear();
+
+    }
+
+    // Reads exactly bytes bytes into the buffer and flips it for reading.
+    static void fill(FileChannel channel, ByteBuffer buffer, int bytes) throws IOException {
+
+        buffer.clear().limit(bytes);
+
+        while (buffer.hasRemaining()) {
+
+            if (channel.read(buffer) < 0) {
+
+                throw new IOException("File is truncated");
+
+            }
+
+        }
+
+        buffer.flip();
+
+    }
+
+}
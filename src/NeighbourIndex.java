@@ -0,0 +1,33 @@
+package src;
+
+/**
+ * A broad phase that can be kept up to date while the balls of a step are processed one after the other.
+ *
+ * The model rebuilds the index at the start of a step and tells it every time a ball has moved. Until then
+ * the index may still use the old position of that ball, but only for that ball.
+ */
+interface NeighbourIndex {
+
+    // Prepares the index for a new step, the balls may have moved or changed in number since the last one.
+    void rebuild(BallStore balls);
+
+    // Ball i has moved.
+    void update(int i);
+
+    /**
+     * Collects every ball that might touch ball i at its current position. The candidates are sorted by index,
+     * so they are visited in the same order as the all pairs loop would visit them.
+     * Returns the number of candidates, see {@link #candidates()}.
+     */
+    int query(int i);
+
+    /**
+     * Like {@link #query(int)}, but for ball i moved anywhere up to reach away from its current position, so the
+     * candidates cover the path of a ball sweeping through a sub-step.
+     */
+    int query(int i, double reach);
+
+    // The buffer holding the result of the last query.
+    int[] candidates();
+
+}
@@ -0,0 +1,797 @@
+package src;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+import src.linalg.LinAlg;
+
+/**
+ * Runs the steps of a model on a fork/join pool.
+ *
+ * The sequential step moves, collides and bounces one ball at a time. Here every stage is done for
+ * all balls before the next one starts, so each stage can be split over the pool:
+ *
+ * 1. Euler integration, every ball on its own.
+ * 2. Ball collisions. The area is cut into vertical strips at least as wide as the largest ball, so
+ *    two touching balls are always in the same or neighbouring strips. Processing the balls of a strip
+ *    writes to that strip and its two neighbours, so strips three apart never touch the same ball.
+ *    The strips are coloured by index modulo three and all strips of a colour run at once.
+ * 3. Wall collisions and gravity, every ball on its own.
+ *
+ * The per ball stages go through the vectorised PerBallKernel when the Vector API is available, see setVectorized.
+ *
+ * Since the collisions are resolved in a different order than in the sequential step the trajectories
+ * are not bit-identical to it, but momentum and energy are conserved the same way.
+ *
+ * The strips depend on the number of threads, and so does the order the collisions are resolved in. In deterministic
+ * mode the collision stage instead finds every pair of touching balls first, in chunks of balls of a fixed size, and
+ * lists them ordered by the indices of both balls. Every pair is put in the level after the last level either of its
+ * balls is in, so the pairs of a level share no ball and resolve in parallel in any order, and resolving level by
+ * level gives exactly what resolving the list from start to end would. Nothing depends on the number of threads.
+ */
+final class ParallelStepper {
+
+    // Balls per leaf task of the per ball stages.
+    private static final int CHUNK = 4096;
+
+    // The vectorised per ball stages, null when the JVM runs without the Vector API.
+    private static final PerBallKernel VECTOR = loadVectorKernel();
+
+    // Strips per worker thread, more strips balance the load better when the balls are unevenly spread.
+    private static final int STRIPS_PER_THREAD = 8;
+
+    // Balls per task looking for touching pairs, and pairs per task resolving them, in deterministic mode.
+    private static final int CONTACT_CHUNK = 1024;
+
+    private final Model model;
+
+    private final BallStore balls;
+
+    private final ForkJoinPool pool;
+
+    // Rebuilt after the integration stage and read only during the collision stage.
+    private final SpatialHashGrid grid = new SpatialHashGrid();
+
+    // Position of every ball before the integration, used to move balls out of the walls.
+    private double[] oldX = new double[0], oldY = new double[0];
+
+    // The strip of every ball, and the balls sorted by strip (stripStart[s] is the first ball of strip s in order).
+    private int[] stripOf = new int[0], order = new int[0], stripStart = new int[1];
+
+    private int strips;
+
+    // One narrow phase and candidate buffer per strip, since strips run concurrently.
+    private CollisionKernel[] kernels = new CollisionKernel[0];
+
+    private SpatialHashGrid.Candidates[] candidates = new SpatialHashGrid.Candidates[0];
+
+    // The kernel the per ball stages use, null for the scalar code in Model.
+    private PerBallKernel perBall = VECTOR;
+
+    // Wall hits of the wall stage, added once per leaf task.
+    private final LongAdder wallHits = new LongAdder();
+
+    // Whether the collisions are resolved in the canonical order, see the class comment.
+    private boolean deterministic;
+
+    // The touching pairs every chunk of balls found, in deterministic mode.
+    private Contacts[] found = new Contacts[0];
+
+    // All touching pairs ordered by level (levelStart[l] is the first pair of level l), and the level of every pair.
+    private int[] first = new int[0], second = new int[0], level = new int[0], levelStart = new int[2];
+
+    // All touching pairs in the order they were found, and the last level of every ball.
+    private int[] foundFirst = new int[0], foundSecond = new int[0], lastLevel = new int[0];
+
+    private int levels;
+
+    // The running totals of the current step, null if there are none, and the sums of every chunk of the last stage.
+    private Invariants invariants;
+
+    private double[] sums = new double[0], compensations = new double[0];
+
+    ParallelStepper(Model model, BallStore balls, ForkJoinPool pool) {
+
+        this.model = model;
+
+        this.balls = balls;
+
+        this.pool = pool;
+
+    }
+
+    ForkJoinPool pool() {
+
+        return pool;
+
+    }
+
+    // Uses the vectorised per ball stages if they are available, returns whether they are used.
+    boolean setVectorized(boolean vectorized) {
+
+        perBall = vectorized ? VECTOR : null;
+
+        return perBall != null;
+
+    }
+
+    boolean isVectorized() {
+
+        return perBall != null;
+
+    }
+
+    void setDeterministic(boolean deterministic) {
+
+        this.deterministic = deterministic;
+
+    }
+
+    // Loads the kernel from src.simd, if the Vector API is there and the kernel was compiled.
+    private static PerBallKernel loadVectorKernel() {
+
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+
+            return null;
+
+        }
+
+        try {
+
+            return (PerBallKernel) Class.forName("src.simd.VectorPerBallKernel").getDeclaredConstructor().newInstance();
+
+        } catch (ReflectiveOperationException | LinkageError e) {
+
+            return null;
+
+        }
+
+    }
+
+    /**
+     * Steps all balls. Given an array of phase times, adds the time of every stage to it, see StepMetrics. Given
+     * running totals, sums the balls up into them in the last stage.
+     */
+    void step(double deltaT, boolean gravity, long[] nanos, Invariants invariants) {
+
+        long t = nanos != null ? System.nanoTime() : 0;
+
+        int n = balls.size();
+
+        if (oldX.length < n) {
+
+            oldX = new double[n];
+
+            oldY = new double[n];
+
+            stripOf = new int[n];
+
+            order = new int[n];
+
+        }
+
+        pool.invoke(new PerBall(0, n, deltaT, gravity, false));
+
+        if (nanos != null) {
+            t = StepMetrics.lap(nanos, StepMetrics.Phase.INTEGRATE, t);
+        }
+
+        grid.rebuild(balls);
+
+        if (deterministic) {
+
+            findContacts(n);
+
+        } else {
+
+            partition(n);
+
+        }
+
+        if (nanos != null) {
+            t = StepMetrics.lap(nanos, StepMetrics.Phase.BROAD_PHASE, t);
+        }
+
+        if (deterministic) {
+
+            for (int l = 0; l < levels; l++) {
+
+                pool.invoke(new Resolve(levelStart[l], levelStart[l], levelStart[l + 1]));
+
+            }
+
+        } else {
+
+            for (int colour = 0; colour < 3; colour++) {
+
+                pool.invoke(new Strips(colour, 0, (strips - colour + 2) / 3));
+
+            }
+
+        }
+
+        if (nanos != null) {
+            t = StepMetrics.lap(nanos, StepMetrics.Phase.BALL_COLLISIONS, t);
+        }
+
+        int chunks = (n + CHUNK - 1) / CHUNK;
+
+        if (invariants != null && sums.length < chunks * Invariants.SUMS) {
+
+            sums = new double[chunks * Invariants.SUMS];
+
+            compensations = new double[chunks * Invariants.SUMS];
+
+        }
+
+        this.invariants = invariants;
+
+        pool.invoke(new PerBall(0, n, deltaT, gravity, true));
+
+        if (invariants != null) {
+
+            invariants.merge(sums, compensations, chunks);
+
+        }
+
+        if (nanos != null) {
+            StepMetrics.lap(nanos, StepMetrics.Phase.WALL_COLLISIONS, t);
+        }
+
+    }
+
+    // Adds the counts of all strips since the last drain to the given StepMetrics counters.
+    void drain(long[] counters) {
+
+        for (CollisionKernel kernel : kernels) {
+
+            kernel.drain(counters);
+
+        }
+
+        counters[StepMetrics.Counter.WALL_HITS.ordinal()] += wallHits.sumThenReset();
+
+    }
+
+    // Assigns every ball to a strip and sorts the balls by strip, keeping them in index order within a strip.
+    private void partition(int n) {
+
+        double minX = Double.POSITIVE_INFINITY, maxX = Double.NEGATIVE_INFINITY;
+
+        for (int i = 0; i < n; i++) {
+
+            minX = Math.min(minX, balls.x[i]);
+
+            maxX = Math.max(maxX, balls.x[i]);
+
+        }
+
+        int maxStrips = Math.max(1, pool.getParallelism() * STRIPS_PER_THREAD);
+
+        strips = n == 0 ? 1 : (int) Math.max(1, Math.min(maxStrips, Math.floor((maxX - minX) / grid.cellSize())));
+
+        double width = n == 0 ? 1 : Math.max((maxX - minX) / strips, Double.MIN_VALUE);
+
+        if (stripStart.length < strips + 1) {
+
+            stripStart = new int[strips + 1];
+
+        }
+
+        ensureKernels(strips);
+
+        // Counting sort by strip.
+        java.util.Arrays.fill(stripStart, 0, strips + 1, 0);
+
+        for (int i = 0; i < n; i++) {
+
+            int s = Math.min(strips - 1, (int) ((balls.x[i] - minX) / width));
+
+            stripOf[i] = s;
+
+            stripStart[s + 1]++;
+
+        }
+
+        for (int s = 0; s < strips; s++) {
+
+            stripStart[s + 1] += stripStart[s];
+
+        }
+
+        for (int i = 0; i < n; i++) {
+
+            order[stripStart[stripOf[i]]++] = i;
+
+        }
+
+        // The fill loop has moved every start to the start of the next strip, shift them back.
+        for (int s = strips; s > 0; s--) {
+
+            stripStart[s] = stripStart[s - 1];
+
+        }
+
+        stripStart[0] = 0;
+
+    }
+
+    // Lists the touching pairs ordered by the indices of both balls, and sorts them into levels.
+    private void findContacts(int n) {
+
+        int chunks = (n + CONTACT_CHUNK - 1) / CONTACT_CHUNK;
+
+        if (found.length < chunks) {
+
+            int old = found.length;
+
+            found = java.util.Arrays.copyOf(found, chunks);
+
+            for (int c = old; c < chunks; c++) {
+
+                found[c] = new Contacts();
+
+            }
+
+        }
+
+        pool.invoke(new Find(0, chunks, n));
+
+        int pairs = 0;
+
+        for (int c = 0; c < chunks; c++) {
+
+            pairs += found[c].size;
+
+        }
+
+        if (foundFirst.length < pairs) {
+
+            foundFirst = new int[pairs];
+
+            foundSecond = new int[pairs];
+
+            first = new int[pairs];
+
+            second = new int[pairs];
+
+            level = new int[pairs];
+
+        }
+
+        if (lastLevel.length < n) {
+
+            lastLevel = new int[n];
+
+        }
+
+        // The chunks are in index order, so are their pairs.
+        for (int c = 0, k = 0; c < chunks; k += found[c++].size) {
+
+            System.arraycopy(found[c].first, 0, foundFirst, k, found[c].size);
+
+            System.arraycopy(found[c].second, 0, foundSecond, k, found[c].size);
+
+        }
+
+        levels = 0;
+
+        for (int k = 0; k < pairs; k++) {
+
+            int a = foundFirst[k], b = foundSecond[k];
+
+            int l = Math.max(lastLevel[a], lastLevel[b]);
+
+            lastLevel[a] = l + 1;
+
+            lastLevel[b] = l + 1;
+
+            level[k] = l;
+
+            levels = Math.max(levels, l + 1);
+
+        }
+
+        // Counting sort by level, keeping the pairs of a level in order.
+        if (levelStart.length < levels + 1) {
+
+            levelStart = new int[levels + 1];
+
+        }
+
+        java.util.Arrays.fill(levelStart, 0, levels + 1, 0);
+
+        for (int k = 0; k < pairs; k++) {
+
+            levelStart[level[k] + 1]++;
+
+            lastLevel[foundFirst[k]] = 0;
+
+            lastLevel[foundSecond[k]] = 0;
+
+        }
+
+        int widest = 0;
+
+        for (int l = 0; l < levels; l++) {
+
+            widest = Math.max(widest, levelStart[l + 1]);
+
+            levelStart[l + 1] += levelStart[l];
+
+        }
+
+        for (int k = 0; k < pairs; k++) {
+
+            int at = levelStart[level[k]]++;
+
+            first[at] = foundFirst[k];
+
+            second[at] = foundSecond[k];
+
+        }
+
+        // The fill loop has moved every start to the start of the next level, shift them back.
+        for (int l = levels; l > 0; l--) {
+
+            levelStart[l] = levelStart[l - 1];
+
+        }
+
+        levelStart[0] = 0;
+
+        // One kernel per chunk of the widest level, since the chunks of a level run concurrently.
+        ensureKernels((widest + CONTACT_CHUNK - 1) / CONTACT_CHUNK);
+
+    }
+
+    // Collects the pairs of touching balls of the chunk, each pair once with the lower index first.
+    private void findChunk(int chunk, int n) {
+
+        Contacts contacts = found[chunk];
+
+        contacts.size = 0;
+
+        for (int i = chunk * CONTACT_CHUNK; i < Math.min(n, (chunk + 1) * CONTACT_CHUNK); i++) {
+
+            int count = grid.query(balls.x[i], balls.y[i], i, contacts.candidates);
+
+            int[] candidates = contacts.candidates.indices;
+
+            for (int c = 0; c < count; c++) {
+
+                int j = candidates[c];
+
+                // The same test the kernel starts with, so the pairs listed are the pairs it would collide now.
+                if (j > i && LinAlg.euclideanDistance(balls.x[i], balls.y[i], balls.x[j], balls.y[j])
+                    <= balls.radius[i] + balls.radius[j]) {
+
+                    contacts.add(i, j);
+
+                }
+
+            }
+
+        }
+
+    }
+
+    private void ensureKernels(int count) {
+
+        if (kernels.length < count) {
+
+            int old = kernels.length;
+
+            kernels = java.util.Arrays.copyOf(kernels, count);
+
+            candidates = java.util.Arrays.copyOf(candidates, count);
+
+            for (int s = old; s < count; s++) {
+
+                kernels[s] = new CollisionKernel();
+
+                candidates[s] = new SpatialHashGrid.Candidates();
+
+            }
+
+        }
+
+    }
+
+    // Resolves the collisions of every ball in the strip.
+    private void collideStrip(int s) {
+
+        CollisionKernel kernel = kernels[s];
+
+        SpatialHashGrid.Candidates buffer = candidates[s];
+
+        for (int k = stripStart[s]; k < stripStart[s + 1]; k++) {
+
+            int i = order[k];
+
+            int count = grid.query(balls.x[i], balls.y[i], i, buffer);
+
+            int[] found = buffer.indices;
+
+            for (int c = 0; c < count; c++) {
+
+                int j = found[c];
+
+                /* Touching balls are never more than one strip apart, but a ball pushed around by overlap
+                corrections may reach a candidate further away. That ball could be written by another task, so
+                skip it, the pair is picked up again from the other side or in the next step. */
+                if (Math.abs(stripOf[j] - s) > 1) {
+                    continue;
+                }
+
+                kernel.collide(balls, i, j);
+
+            }
+
+        }
+
+    }
+
+    // The colour of strips with index from * 3 + colour to to * 3 + colour, exclusive.
+    @SuppressWarnings("serial")
+    private final class Strips extends RecursiveAction {
+
+        private final int colour, from, to;
+
+        Strips(int colour, int from, int to) {
+
+            this.colour = colour;
+
+            this.from = from;
+
+            this.to = to;
+
+        }
+
+        @Override
+        protected void compute() {
+
+            if (to - from <= 1) {
+
+                if (to > from) {
+
+                    collideStrip(from * 3 + colour);
+
+                }
+
+                return;
+
+            }
+
+            int mid = (from + to) >>> 1;
+
+            invokeAll(new Strips(colour, from, mid), new Strips(colour, mid, to));
+
+        }
+
+    }
+
+    // The touching pairs found by one task, see findChunk.
+    private static final class Contacts {
+
+        private final SpatialHashGrid.Candidates candidates = new SpatialHashGrid.Candidates();
+
+        private int[] first = new int[64], second = new int[64];
+
+        private int size;
+
+        private void add(int a, int b) {
+
+            if (size == first.length) {
+
+                first = java.util.Arrays.copyOf(first, size * 2);
+
+                second = java.util.Arrays.copyOf(second, size * 2);
+
+            }
+
+            first[size] = a;
+
+            second[size++] = b;
+
+        }
+
+    }
+
+    // Finds the touching pairs of the chunks of balls from to to, exclusive.
+    @SuppressWarnings("serial")
+    private final class Find extends RecursiveAction {
+
+        private final int from, to, n;
+
+        Find(int from, int to, int n) {
+
+            this.from = from;
+
+            this.to = to;
+
+            this.n = n;
+
+        }
+
+        @Override
+        protected void compute() {
+
+            if (to - from <= 1) {
+
+                if (to > from) {
+
+                    findChunk(from, n);
+
+                }
+
+                return;
+
+            }
+
+            int mid = (from + to) >>> 1;
+
+            invokeAll(new Find(from, mid, n), new Find(mid, to, n));
+
+        }
+
+    }
+
+    // Resolves the pairs from to to, exclusive, of the level starting at start. The pairs share no ball.
+    @SuppressWarnings("serial")
+    private final class Resolve extends RecursiveAction {
+
+        private final int start, from, to;
+
+        Resolve(int start, int from, int to) {
+
+            this.start = start;
+
+            this.from = from;
+
+            this.to = to;
+
+        }
+
+        @Override
+        protected void compute() {
+
+            if (to - from > CONTACT_CHUNK) {
+
+                // Split on chunk boundaries, every chunk has a kernel of its own.
+                int chunks = (to - from + CONTACT_CHUNK - 1) / CONTACT_CHUNK;
+
+                int mid = from + chunks / 2 * CONTACT_CHUNK;
+
+                invokeAll(new Resolve(start, from, mid), new Resolve(start, mid, to));
+
+                return;
+
+            }
+
+            CollisionKernel kernel = kernels[(from - start) / CONTACT_CHUNK];
+
+            for (int k = from; k < to; k++) {
+
+                kernel.collide(balls, first[k], second[k]);
+
+            }
+
+        }
+
+    }
+
+    // The integration stage, or the wall and gravity stage, over the balls with index from to to, exclusive.
+    @SuppressWarnings("serial")
+    private final class PerBall extends RecursiveAction {
+
+        private final int from, to;
+
+        private final double deltaT;
+
+        private final boolean gravity;
+
+        // False for the integration stage, true for the wall and gravity stage.
+        private final boolean bounce;
+
+        PerBall(int from, int to, double deltaT, boolean gravity, boolean bounce) {
+
+            this.from = from;
+
+            this.to = to;
+
+            this.deltaT = deltaT;
+
+            this.gravity = gravity;
+
+            this.bounce = bounce;
+
+        }
+
+        @Override
+        protected void compute() {
+
+            if (to - from > CHUNK) {
+
+                // Split on chunk boundaries, every chunk has its own running totals.
+                int mid = from + (to - from + CHUNK - 1) / CHUNK / 2 * CHUNK;
+
+                invokeAll(new PerBall(from, mid, deltaT, gravity, bounce), new PerBall(mid, to, deltaT, gravity, bounce));
+
+                return;
+
+            }
+
+            int hits = 0;
+
+            PerBallKernel kernel = perBall;
+
+            if (kernel != null) {
+
+                if (bounce) {
+
+                    hits = kernel.bounce(balls, oldX, oldY, from, to, model.getAreaWidth(), model.getAreaHeight(),
+                        gravity, deltaT * Model.G);
+
+                } else {
+
+                    kernel.integrate(balls, oldX, oldY, from, to, deltaT);
+
+                }
+
+            } else {
+
+                for (int i = from; i < to; i++) {
+
+                    if (bounce) {
+
+                        hits += model.applyWallCollisons(oldX[i], oldY[i], i);
+
+                        if (gravity) {
+
+                            model.applyGravity(i, deltaT);
+
+                        }
+
+                    } else {
+
+                        oldX[i] = balls.x[i];
+
+                        oldY[i] = balls.y[i];
+
+                        model.applyEulersFormula(i, deltaT);
+
+                    }
+
+                }
+
+            }
+
+            if (hits > 0) {
+
+                wallHits.add(hits);
+
+            }
+
+            // The balls are done for this step, and still in the cache.
+            if (bounce && invariants != null && to > from) {
+
+                int offset = from / CHUNK * Invariants.SUMS;
+
+                java.util.Arrays.fill(sums, offset, offset + Invariants.SUMS, 0);
+
+                java.util.Arrays.fill(compensations, offset, offset + Invariants.SUMS, 0);
+
+                for (int i = from; i < to; i++) {
+
+                    Invariants.accumulate(sums, compensations, offset, balls, i, gravity ? Model.G : 0);
+
+                }
+
+            }
+
+        }
+
+    }
+
+}
@@ -0,0 +1,23 @@
+package src;
+
+/**
+ * The per ball stages of a staged step, done for a whole range of balls at once so they can use SIMD instructions.
+ * The results are bit for bit those of the scalar code in Model, see Model.applyEulersFormula, applyWallCollisons
+ * and applyGravity.
+ *
+ * The implementation lives in src.simd and uses the incubating Vector API, which is only there when the JVM runs with
+ * --add-modules jdk.incubator.vector. Without it the staged step falls back to the scalar code, see ParallelStepper.
+ */
+public interface PerBallKernel {
+
+    // Remembers the positions of the balls from to to, exclusive, in oldX and oldY and moves them by their speed.
+    void integrate(BallStore balls, double[] oldX, double[] oldY, int from, int to, double deltaT);
+
+    /**
+     * Moves the balls that hit a wall back to their old position and turns their speed around, then applies gravity
+     * (a speed change of gravityStep) to the balls above the floor if gravity is on. Returns the number of wall hits.
+     */
+    int bounce(BallStore balls, double[] oldX, double[] oldY, int from, int to, double width, double height,
+        boolean gravity, double gravityStep);
+
+}
@@ -0,0 +1,174 @@
+package src;
+
+import java.util.Locale;
+
+/**
+ * Validation harness for FloatModel: runs the same scene in double and in single precision and reports how far the
+ * kinetic energy and the momentum of each drift from their value at the start.
+ *
+ * Usage: PrecisionDrift [steps] [balls]
+ *
+ * The scenes are the two balls of the long running conservation tests in BouncingBallsTest, a gas of the given number
+ * of balls and a cloud of balls far from the walls. The drift is the largest distance from the start value seen at
+ * any step, relative to the start value for the energy and to the sum of mass times speed for the momentum. The walls
+ * turn the momentum around, so the momentum drift only means something in the cloud, which never reaches them.
+ */
+public final class PrecisionDrift {
+
+    // The time step of the runs, one frame at 60 fps.
+    public static final double DELTA_T = 1.0 / 60;
+
+    /**
+     * The largest relative drift of kinetic energy and of momentum seen in a run.
+     */
+    public static final class Drift {
+
+        public final double energy, momentum;
+
+        Drift(double energy, double momentum) {
+
+            this.energy = energy;
+
+            this.momentum = momentum;
+
+        }
+
+        @Override
+        public String toString() {
+
+            return String.format(Locale.ROOT, "energy drift %.3e, momentum drift %.3e", energy, momentum);
+
+        }
+
+    }
+
+    // Hide implicit public constructor.
+    private PrecisionDrift() {
+
+    }
+
+    // The two balls of testKineticEnergyConservationAdvanced and testMomentumConservationAdvanced, in a 10 x 10 area.
+    public static BallStore twoBalls() {
+
+        BallStore balls = new BallStore(2);
+
+        balls.add(4, 5, 1, -1, 0.15, 1);
+
+        balls.add(5.1, 5, 1, 1, 0.30, 8);
+
+        return balls;
+
+    }
+
+    // Balls of equal size in a square in the middle of an area so large that none of them reaches a wall in time seconds.
+    public static BallStore cloud(int count, double time, long seed) {
+
+        double side = Math.sqrt(count * 0.1);
+
+        BallStore balls = Scenes.gas(count, side, side, 0.05, seed);
+
+        double margin = margin(balls, time);
+
+        for (int i = 0; i < count; i++) {
+
+            balls.x[i] += margin;
+
+            balls.y[i] += margin;
+
+        }
+
+        return balls;
+
+    }
+
+    // The side of the area around a cloud, see cloud.
+    public static double cloudArea(BallStore cloud, double time) {
+
+        return Math.sqrt(cloud.size() * 0.1) + 2 * margin(cloud, time);
+
+    }
+
+    // Collisions can give a ball at most all the kinetic energy there is, which bounds how far it gets in time seconds.
+    private static double margin(BallStore balls, double time) {
+
+        double lightest = Double.MAX_VALUE;
+
+        for (int i = 0; i < balls.size(); i++) {
+
+            lightest = Math.min(lightest, balls.mass[i]);
+
+        }
+
+        return Math.sqrt(2 * balls.kineticEnergy() / lightest) * time + 1;
+
+    }
+
+    // Steps the simulation and returns the largest drift seen.
+    public static Drift measure(Simulation simulation, long steps, double deltaT) {
+
+        BallStore start = simulation.balls();
+
+        double energyBefore = start.kineticEnergy();
+
+        double px = start.momentumX(), py = start.momentumY(), scale = start.momentum();
+
+        double energy = 0, momentum = 0;
+
+        for (long i = 0; i < steps; i++) {
+
+            simulation.step(deltaT);
+
+            BallStore balls = simulation.balls();
+
+            energy = Math.max(energy, Math.abs(balls.kineticEnergy() - energyBefore) / energyBefore);
+
+            momentum = Math.max(momentum, Math.hypot(balls.momentumX() - px, balls.momentumY() - py) / scale);
+
+        }
+
+        return new Drift(energy, momentum);
+
+    }
+
+    public static void main(String[] args) {
+
+        long steps = args.length > 0 ? Long.parseLong(args[0]) : 1000000;
+
+        int count = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+
+        compare("two balls", twoBalls(), 10, steps, false);
+
+        double side = Math.sqrt(count * 0.1);
+
+        compare("gas of " + count, Scenes.gas(count, side, side, 0.05, 1), side, steps / 100, false);
+
+        double time = steps / 100 * DELTA_T;
+
+        BallStore cloud = cloud(count, time, 1);
+
+        compare("cloud of " + count, cloud, cloudArea(cloud, time), steps / 100, true);
+
+    }
+
+    private static void compare(String scene, BallStore balls, double side, long steps, boolean open) {
+
+        FloatModel single = new FloatModel(balls, side, side, false);
+
+        Model full = new Model(balls, side, side, false, false);
+
+        System.out.println(String.format(Locale.ROOT, "%s, %d steps of %.4f s", scene, steps, DELTA_T));
+
+        print("double", measure(full, steps, DELTA_T), open);
+
+        print("float", measure(single, steps, DELTA_T), open);
+
+    }
+
+    private static void print(String precision, Drift drift, boolean open) {
+
+        System.out.println(String.format(Locale.ROOT, "  %-6s energy drift %.3e", precision, drift.energy)
+            + (open ? String.format(Locale.ROOT, ", momentum drift %.3e", drift.momentum) : ""));
+
+    }
+
+}
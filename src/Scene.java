@@ -0,0 +1,46 @@
+package src;
+
+/**
+ * A room full of balls as read from a scene file, see SceneFiles: the size of the area and the balls in it.
+ */
+public final class Scene {
+
+    public final BallStore balls;
+
+    public final double width, height;
+
+    public Scene(BallStore balls, double width, double height) {
+
+        this.balls = balls;
+
+        this.width = width;
+
+        this.height = height;
+
+    }
+
+    // The scene with the smallest area reaching from the origin that holds every ball.
+    public static Scene around(BallStore balls) {
+
+        double width = 0, height = 0;
+
+        for (int i = 0; i < balls.size(); i++) {
+
+            width = Math.max(width, balls.x[i] + balls.radius[i]);
+
+            height = Math.max(height, balls.y[i] + balls.radius[i]);
+
+        }
+
+        return new Scene(balls, width, height);
+
+    }
+
+    // A model of the scene, stepping the balls of the scene itself.
+    public Model model(boolean gravity) {
+
+        return new Model(balls, width, height, gravity, false);
+
+    }
+
+}
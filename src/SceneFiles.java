@@ -0,0 +1,529 @@
+package src;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+
+/**
+ * Reads and writes scenes, the area and the balls in it, as CSV or in a compact binary format.
+ *
+ * Both readers stream the file through one buffer straight into the columns of a BallStore, without a Ball or a
+ * String per ball, so tens of millions of balls load in seconds. The balls get fresh ids. Neither reader checks
+ * whether the balls overlap, see Scenes.rejectOverlaps and Scenes.separate.
+ *
+ * CSV has one ball per line, x,y,vx,vy,radius,mass, and may start with a line naming the columns. Lines starting
+ * with # are comments, except "# area width height" before the first ball, which gives the size of the area. Without
+ * it the area is the smallest one around the balls.
+ *
+ * The binary format is laid out like a checkpoint, little endian:
+ *
+ *   int magic "BBSC", int version, double width, double height, int count, then the columns x, y, vx, vy, radius
+ *   and mass (double)
+ */
+public final class SceneFiles {
+
+    static final int MAGIC = 0x42425343;
+
+    static final int VERSION = 1;
+
+    private static final int HEADER_BYTES = 4 + 4 + 8 + 8 + 4;
+
+    // The columns of a CSV line, in order.
+    private static final int FIELDS = 6;
+
+    // Powers of ten that are exact doubles, see parse.
+    private static final double[] POWERS = new double[23];
+
+    static {
+
+        POWERS[0] = 1;
+
+        for (int i = 1; i < POWERS.length; i++) {
+
+            POWERS[i] = POWERS[i - 1] * 10;
+
+        }
+
+    }
+
+    // Hide implicit public constructor.
+    private SceneFiles() {
+
+    }
+
+    // Reads a scene in either format, told apart by the magic number of the binary one.
+    public static Scene read(Path file) throws IOException {
+
+        return isBinary(file) ? readBinary(file) : readCsv(file);
+
+    }
+
+    // Whether the file is a scene, a binary one or a CSV file.
+    public static boolean isScene(Path file) throws IOException {
+
+        return isBinary(file) || file.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".csv");
+
+    }
+
+    private static boolean isBinary(Path file) throws IOException {
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+
+            ByteBuffer magic = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+
+            while (magic.hasRemaining() && channel.read(magic) >= 0) {
+                continue;
+            }
+
+            return !magic.hasRemaining() && magic.getInt(0) == MAGIC;
+
+        }
+
+    }
+
+    public static void writeBinary(Scene scene, Path file) throws IOException {
+
+        BallStore balls = scene.balls;
+
+        int n = balls.size();
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(ModelCheckpoint.CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+
+            buffer.putInt(MAGIC).putInt(VERSION).putDouble(scene.width).putDouble(scene.height).putInt(n);
+
+            ModelCheckpoint.flush(channel, buffer);
+
+            for (double[] column : new double[][] { balls.x, balls.y, balls.vx, balls.vy, balls.radius, balls.mass }) {
+
+                for (int from = 0; from < n; from += ModelCheckpoint.CHUNK / Double.BYTES) {
+
+                    int length = Math.min(n - from, ModelCheckpoint.CHUNK / Double.BYTES);
+
+                    buffer.asDoubleBuffer().put(column, from, length);
+
+                    buffer.position(length * Double.BYTES);
+
+                    ModelCheckpoint.flush(channel, buffer);
+
+                }
+
+            }
+
+        }
+
+    }
+
+    public static Scene readBinary(Path file) throws IOException {
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(ModelCheckpoint.CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+
+            ModelCheckpoint.fill(channel, buffer, HEADER_BYTES);
+
+            if (buffer.getInt() != MAGIC) {
+
+                throw new IOException(file + " is not a binary scene");
+
+            }
+
+            int version = buffer.getInt();
+
+            if (version != VERSION) {
+
+                throw new IOException("Unsupported scene version " + version);
+
+            }
+
+            double width = buffer.getDouble();
+
+            double height = buffer.getDouble();
+
+            int n = buffer.getInt();
+
+            BallStore balls = new BallStore(n);
+
+            balls.resize(n);
+
+            for (double[] column : new double[][] { balls.x, balls.y, balls.vx, balls.vy, balls.radius, balls.mass }) {
+
+                for (int from = 0; from < n; from += ModelCheckpoint.CHUNK / Double.BYTES) {
+
+                    int length = Math.min(n - from, ModelCheckpoint.CHUNK / Double.BYTES);
+
+                    ModelCheckpoint.fill(channel, buffer, length * Double.BYTES);
+
+                    buffer.asDoubleBuffer().get(column, from, length);
+
+                }
+
+            }
+
+            for (int i = 0; i < n; i++) {
+
+                balls.id[i] = Ball.nextId();
+
+            }
+
+            return new Scene(balls, width, height);
+
+        }
+
+    }
+
+    // Writes the scene as CSV, every number with as many digits as it takes to read back exactly the same double.
+    public static void writeCsv(Scene scene, Path file) throws IOException {
+
+        BallStore balls = scene.balls;
+
+        try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.US_ASCII)) {
+
+            out.write("# area " + scene.width + " " + scene.height + "\n");
+
+            out.write("x,y,vx,vy,radius,mass\n");
+
+            StringBuilder line = new StringBuilder();
+
+            for (int i = 0; i < balls.size(); i++) {
+
+                line.setLength(0);
+
+                line.append(balls.x[i]).append(',').append(balls.y[i]).append(',').append(balls.vx[i]).append(',')
+                    .append(balls.vy[i]).append(',').append(balls.radius[i]).append(',').append(balls.mass[i]).append('\n');
+
+                out.append(line);
+
+            }
+
+        }
+
+    }
+
+    public static Scene readCsv(Path file) throws IOException {
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+
+            return new CsvReader(channel, file).read();
+
+        }
+
+    }
+
+    /**
+     * Parses the number in bytes from to to, exclusive. Numbers of up to 15 digits with a small exponent, which is
+     * what CSV files are full of, are computed directly: the digits and the power of ten are exact doubles, so one
+     * multiplication or division rounds correctly. Anything else goes to Double.parseDouble.
+     */
+    static double parse(byte[] bytes, int from, int to) {
+
+        int i = from;
+
+        boolean negative = false;
+
+        if (i < to && (bytes[i] == '-' || bytes[i] == '+')) {
+
+            negative = bytes[i++] == '-';
+
+        }
+
+        long digits = 0;
+
+        int count = 0, exponent = 0;
+
+        boolean seen = false;
+
+        for (; i < to && bytes[i] >= '0' && bytes[i] <= '9'; i++, seen = true) {
+
+            if (digits != 0 || bytes[i] != '0') {
+
+                digits = digits * 10 + (bytes[i] - '0');
+
+                count++;
+
+            }
+
+        }
+
+        if (i < to && bytes[i] == '.') {
+
+            for (i++; i < to && bytes[i] >= '0' && bytes[i] <= '9'; i++, seen = true) {
+
+                if (digits != 0 || bytes[i] != '0') {
+
+                    digits = digits * 10 + (bytes[i] - '0');
+
+                    count++;
+
+                }
+
+                exponent--;
+
+            }
+
+        }
+
+        if (seen && i < to && (bytes[i] == 'e' || bytes[i] == 'E')) {
+
+            int j = i + 1;
+
+            boolean negativeExponent = false;
+
+            if (j < to && (bytes[j] == '-' || bytes[j] == '+')) {
+
+                negativeExponent = bytes[j++] == '-';
+
+            }
+
+            int power = 0;
+
+            boolean digit = false;
+
+            for (; j < to && bytes[j] >= '0' && bytes[j] <= '9' && power < 10000; j++, digit = true) {
+
+                power = power * 10 + (bytes[j] - '0');
+
+            }
+
+            if (digit) {
+
+                exponent += negativeExponent ? -power : power;
+
+                i = j;
+
+            }
+
+        }
+
+        if (!seen || i != to || count > 15 || exponent < -22 || exponent > 22) {
+
+            return Double.parseDouble(new String(bytes, from, to - from, StandardCharsets.US_ASCII));
+
+        }
+
+        double value = exponent < 0 ? digits / POWERS[-exponent] : digits * POWERS[exponent];
+
+        return negative ? -value : value;
+
+    }
+
+    /**
+     * Reads a CSV scene through one buffer. The complete lines in the buffer are parsed in place, then the start of
+     * the line the buffer ends in is moved to the front and the buffer is filled up again behind it.
+     */
+    private static final class CsvReader {
+
+        private final FileChannel channel;
+
+        private final Path file;
+
+        private final ByteBuffer buffer = ByteBuffer.allocate(ModelCheckpoint.CHUNK);
+
+        private final byte[] bytes = buffer.array();
+
+        private final double[] fields = new double[FIELDS];
+
+        private final BallStore balls = new BallStore(1024);
+
+        private double width = -1, height = -1;
+
+        private long line;
+
+        // Whether a line that is not a comment has been seen, only the first one may name the columns.
+        private boolean started;
+
+        CsvReader(FileChannel channel, Path file) throws IOException {
+
+            this.channel = channel;
+
+            this.file = file;
+
+            // Size the store for the file right away, guessing at about 40 bytes per line.
+            long size = channel.size();
+
+            if (size / 40 > 1024) {
+
+                balls.resize((int) Math.min(size / 40, Integer.MAX_VALUE - 8));
+
+                balls.resize(0);
+
+            }
+
+        }
+
+        Scene read() throws IOException {
+
+            boolean end = false;
+
+            while (!end) {
+
+                end = channel.read(buffer) < 0;
+
+                int limit = buffer.position();
+
+                int start = 0;
+
+                for (int i = 0; i < limit; i++) {
+
+                    if (bytes[i] == '\n') {
+
+                        line(start, i);
+
+                        start = i + 1;
+
+                    }
+
+                }
+
+                if (end) {
+
+                    line(start, limit);
+
+                } else if (start == 0 && limit == bytes.length) {
+
+                    throw new IOException(file + ": line " + (line + 1) + " is too long");
+
+                }
+
+                // Move the incomplete line to the front.
+                System.arraycopy(bytes, start, bytes, 0, limit - start);
+
+                buffer.position(limit - start);
+
+            }
+
+            if (width < 0) {
+
+                return Scene.around(balls);
+
+            }
+
+            return new Scene(balls, width, height);
+
+        }
+
+        // Parses the line in bytes from to to, exclusive.
+        private void line(int from, int to) throws IOException {
+
+            line++;
+
+            while (from < to && isBlank(bytes[from])) {
+                from++;
+            }
+
+            while (to > from && isBlank(bytes[to - 1])) {
+                to--;
+            }
+
+            if (from == to) {
+                return;
+            }
+
+            if (bytes[from] == '#') {
+
+                comment(from, to);
+
+                return;
+
+            }
+
+            boolean first = !started;
+
+            started = true;
+
+            // The first line may name the columns instead.
+            if (first && Character.isLetter(bytes[from])) {
+                return;
+            }
+
+            int field = 0;
+
+            for (int start = from, i = from; i <= to; i++) {
+
+                if (i == to || bytes[i] == ',') {
+
+                    if (field == FIELDS) {
+
+                        throw new IOException(file + ": line " + line + " has more than " + FIELDS + " fields");
+
+                    }
+
+                    int a = start, b = i;
+
+                    while (a < b && isBlank(bytes[a])) {
+                        a++;
+                    }
+
+                    while (b > a && isBlank(bytes[b - 1])) {
+                        b--;
+                    }
+
+                    try {
+
+                        fields[field++] = parse(bytes, a, b);
+
+                    } catch (NumberFormatException e) {
+
+                        throw new IOException(file + ": line " + line + " has a field that is not a number", e);
+
+                    }
+
+                    start = i + 1;
+
+                }
+
+            }
+
+            if (field != FIELDS) {
+
+                throw new IOException(file + ": line " + line + " has " + field + " fields instead of " + FIELDS);
+
+            }
+
+            balls.add(fields[0], fields[1], fields[2], fields[3], fields[4], fields[5]);
+
+        }
+
+        // Takes the size of the area from an area comment before the first ball, ignores any other comment.
+        private void comment(int from, int to) throws IOException {
+
+            String text = new String(bytes, from + 1, to - from - 1, StandardCharsets.US_ASCII).trim();
+
+            if (started || !text.startsWith("area")) {
+                return;
+            }
+
+            String[] size = text.substring("area".length()).trim().split("\\s+");
+
+            try {
+
+                width = Double.parseDouble(size[0]);
+
+                height = Double.parseDouble(size[1]);
+
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+
+                throw new IOException(file + ": line " + line + " should be # area width height", e);
+
+            }
+
+        }
+
+        private static boolean isBlank(byte b) {
+
+            return b == ' ' || b == '\t' || b == '\r';
+
+        }
+
+    }
+
+}
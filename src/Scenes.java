@@ -0,0 +1,264 @@
+package src;
+
+import java.util.Random;
+
+/**
+ * Ready made scenes, written straight into a ball store.
+ */
+public final class Scenes {
+
+    // Hide implicit public constructor.
+    private Scenes() {
+
+    }
+
+    // The two balls the animator shows by default.
+    public static BallStore demo() {
+
+        BallStore balls = new BallStore(2);
+
+        balls.add(1, 1.9, 1, 0, 0.25, 1);
+
+        balls.add(2, 2.1, 0, 0, 0.5, 8);
+
+        return balls;
+
+    }
+
+    // Balls of equal size at random positions with random velocities up to 1 m/s in each direction.
+    public static BallStore gas(int count, double width, double height, double radius, long seed) {
+
+        Random random = new Random(seed);
+
+        BallStore balls = new BallStore(count);
+
+        for (int i = 0; i < count; i++) {
+
+            balls.add(
+
+                radius + random.nextDouble() * (width - 2 * radius),
+
+                radius + random.nextDouble() * (height - 2 * radius),
+
+                random.nextDouble() * 2 - 1, random.nextDouble() * 2 - 1, radius, 1
+
+            );
+
+        }
+
+        return balls;
+
+    }
+
+    // Balls of equal size on a square lattice filling the area row by row from the bottom, with random velocities.
+    public static BallStore lattice(int count, double width, double height, double radius, long seed) {
+
+        Random random = new Random(seed);
+
+        BallStore balls = new BallStore(count);
+
+        // Leave a quarter radius of space between neighbours so the balls do not start out touching.
+        double spacing = 2.5 * radius;
+
+        int columns = Math.max(1, (int) ((width - 2 * radius) / spacing));
+
+        for (int i = 0; i < count; i++) {
+
+            balls.add(
+
+                2 * radius + (i % columns) * spacing,
+
+                2 * radius + (i / columns) * spacing,
+
+                random.nextDouble() * 2 - 1, random.nextDouble() * 2 - 1, radius, 1
+
+            );
+
+        }
+
+        return balls;
+
+    }
+
+    // Balls of equal size packed as densely as they go, in hexagonal rows from the floor up, nearly at rest.
+    public static BallStore pile(int count, double width, double height, double radius, long seed) {
+
+        Random random = new Random(seed);
+
+        BallStore balls = new BallStore(count);
+
+        // A hair of space between neighbours so the balls do not start out touching.
+        double spacing = 2 * radius * (1 + 1e-6);
+
+        double rise = spacing * Math.sqrt(3) / 2;
+
+        int columns = Math.max(1, (int) ((width - spacing / 2 - 2 * radius) / spacing) + 1);
+
+        for (int i = 0; i < count; i++) {
+
+            int row = i / columns;
+
+            balls.add(
+
+                radius + (row % 2) * spacing / 2 + (i % columns) * spacing,
+
+                radius + row * rise,
+
+                (random.nextDouble() * 2 - 1) * 1e-3, (random.nextDouble() * 2 - 1) * 1e-3, radius, 1
+
+            );
+
+        }
+
+        return balls;
+
+    }
+
+    // The number of pairs of balls that overlap, found through a spatial hash grid in about linear time.
+    public static long overlaps(BallStore balls) {
+
+        SpatialHashGrid grid = new SpatialHashGrid();
+
+        grid.rebuild(balls);
+
+        long overlaps = 0;
+
+        for (int i = 0; i < balls.size(); i++) {
+
+            int count = grid.query(i);
+
+            int[] candidates = grid.candidates();
+
+            for (int k = 0; k < count; k++) {
+
+                if (candidates[k] > i && overlap(balls, i, candidates[k]) > 0) {
+
+                    overlaps++;
+
+                }
+
+            }
+
+        }
+
+        return overlaps;
+
+    }
+
+    // Throws an IllegalArgumentException naming the first pair of balls that overlap, if any do.
+    public static void rejectOverlaps(BallStore balls) {
+
+        SpatialHashGrid grid = new SpatialHashGrid();
+
+        grid.rebuild(balls);
+
+        for (int i = 0; i < balls.size(); i++) {
+
+            int count = grid.query(i);
+
+            int[] candidates = grid.candidates();
+
+            for (int k = 0; k < count; k++) {
+
+                int j = candidates[k];
+
+                if (j > i && overlap(balls, i, j) > 0) {
+
+                    throw new IllegalArgumentException("Balls " + balls.id[i] + " and " + balls.id[j] + " overlap");
+
+                }
+
+            }
+
+        }
+
+    }
+
+    /**
+     * Pushes overlapping balls apart, each by half the overlap, and back into the area, for at most rounds rounds.
+     * Pushing one pair apart can make another overlap, so on a crowded scene a few rounds may be needed. Returns the
+     * number of pairs that still overlap.
+     */
+    public static long separate(BallStore balls, double width, double height, int rounds) {
+
+        SpatialHashGrid grid = new SpatialHashGrid();
+
+        grid.rebuild(balls);
+
+        for (int round = 0; round < rounds; round++) {
+
+            long pushed = 0;
+
+            for (int i = 0; i < balls.size(); i++) {
+
+                int count = grid.query(i);
+
+                int[] candidates = grid.candidates();
+
+                for (int k = 0; k < count; k++) {
+
+                    int j = candidates[k];
+
+                    double overlap = j > i ? overlap(balls, i, j) : 0;
+
+                    if (overlap <= 0) {
+                        continue;
+                    }
+
+                    double dx = balls.x[j] - balls.x[i], dy = balls.y[j] - balls.y[i];
+
+                    double d = Math.sqrt(dx * dx + dy * dy);
+
+                    // Balls on the same spot are pushed apart sideways.
+                    double nx = d > 0 ? dx / d : 1, ny = d > 0 ? dy / d : 0;
+
+                    // A little more than half the overlap each, so rounding does not leave them touching.
+                    double push = overlap / 2 + 1e-9 * (balls.radius[i] + balls.radius[j]);
+
+                    move(balls, i, -nx * push, -ny * push, width, height);
+
+                    move(balls, j, nx * push, ny * push, width, height);
+
+                    grid.update(i);
+
+                    grid.update(j);
+
+                    pushed++;
+
+                }
+
+            }
+
+            if (pushed == 0) {
+
+                return 0;
+
+            }
+
+        }
+
+        return overlaps(balls);
+
+    }
+
+    // How far balls i and j overlap, negative if they do not.
+    private static double overlap(BallStore balls, int i, int j) {
+
+        double dx = balls.x[j] - balls.x[i], dy = balls.y[j] - balls.y[i];
+
+        return balls.radius[i] + balls.radius[j] - Math.sqrt(dx * dx + dy * dy);
+
+    }
+
+    // Moves ball i, keeping it inside the area.
+    private static void move(BallStore balls, int i, double dx, double dy, double width, double height) {
+
+        double r = balls.radius[i];
+
+        balls.x[i] = Math.min(Math.max(balls.x[i] + dx, r), Math.max(r, width - r));
+
+        balls.y[i] = Math.min(Math.max(balls.y[i] + dy, r), Math.max(r, height - r));
+
+    }
+
+}
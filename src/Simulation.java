@@ -0,0 +1,14 @@
+package src;
+
+/**
+ * Something the animator can draw: a set of balls that can be advanced in time.
+ */
+public interface Simulation {
+
+    // Advances the simulation by deltaT seconds.
+    void step(double deltaT);
+
+    // The balls, as they are at the end of the last step.
+    BallStore balls();
+
+}
@@ -0,0 +1,181 @@
+package src;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs a simulation on its own thread at a fixed time step, independently of how fast it is drawn.
+ *
+ * After every step the positions are copied into a snapshot that the renderer can read at any time. There are three
+ * snapshots: the one the simulation is writing, the one the renderer is reading and the latest finished one in
+ * between. Publishing and picking up a snapshot is a single atomic swap with the one in between, so neither side
+ * ever waits for the other. A slow paint does not slow down the physics and a slow step only means the renderer
+ * draws the same snapshot (interpolated) a bit longer.
+ *
+ * Only one thread may read the snapshots, in the animator that is the event dispatch thread.
+ */
+public final class SimulationThread {
+
+    // Set on the index in between when the snapshot there has not been picked up yet.
+    private static final int FRESH = 4;
+
+    private static final int INDEX = 3;
+
+    // Never catch up more than this many steps at once, after a long stall the simulation rather falls behind.
+    private static final int MAX_CATCH_UP = 5;
+
+    private final Simulation simulation;
+
+    private final double deltaT;
+
+    private final long stepNanos;
+
+    private final Snapshot[] snapshots = { new Snapshot(), new Snapshot(), new Snapshot() };
+
+    // Written by the simulation thread only, read by the renderer only, and swapped between the two.
+    private int back = 0, front = 1;
+
+    private final AtomicInteger middle = new AtomicInteger(2);
+
+    // Positions after the last step, they become the previous positions of the next snapshot.
+    private double[] lastX = new double[0], lastY = new double[0];
+
+    private double time;
+
+    private volatile boolean running;
+
+    private Thread thread;
+
+    public SimulationThread(Simulation simulation, double deltaT) {
+
+        this.simulation = simulation;
+
+        this.deltaT = deltaT;
+
+        this.stepNanos = Math.round(deltaT * 1e9);
+
+        // Publish the initial state so the renderer has something to draw before the first step.
+        remember();
+
+        publish();
+
+        front = middle.getAndSet(front) & INDEX;
+
+    }
+
+    public synchronized void start() {
+
+        if (running) {
+            return;
+        }
+
+        running = true;
+
+        thread = new Thread(this::run, "simulation");
+
+        thread.setDaemon(true);
+
+        thread.start();
+
+    }
+
+    public synchronized void stop() {
+
+        running = false;
+
+        if (thread != null) {
+
+            LockSupport.unpark(thread);
+
+            thread = null;
+
+        }
+
+    }
+
+    // The latest published snapshot. Call from the rendering thread only.
+    public Snapshot latest() {
+
+        if ((middle.get() & FRESH) != 0) {
+
+            front = middle.getAndSet(front) & INDEX;
+
+        }
+
+        return snapshots[front];
+
+    }
+
+    private void run() {
+
+        long next = System.nanoTime();
+
+        while (running) {
+
+            int steps = 0;
+
+            // Do every step that is due, but do not try to catch up forever.
+            while (running && System.nanoTime() >= next && steps < MAX_CATCH_UP) {
+
+                simulation.step(deltaT);
+
+                time += deltaT;
+
+                publish();
+
+                remember();
+
+                next += stepNanos;
+
+                steps++;
+
+            }
+
+            if (steps == MAX_CATCH_UP) {
+
+                next = System.nanoTime();
+
+            }
+
+            long wait = next - System.nanoTime();
+
+            if (wait > 0) {
+
+                LockSupport.parkNanos(this, wait);
+
+            }
+
+        }
+
+    }
+
+    // Writes the back snapshot and swaps it with the one in between.
+    private void publish() {
+
+        snapshots[back].capture(simulation.balls(), lastX, lastY, time, stepNanos);
+
+        back = middle.getAndSet(back | FRESH) & INDEX;
+
+    }
+
+    private void remember() {
+
+        BallStore balls = simulation.balls();
+
+        int n = balls.size();
+
+        if (lastX.length < n) {
+
+            lastX = new double[n];
+
+            lastY = new double[n];
+
+        }
+
+        System.arraycopy(balls.x, 0, lastX, 0, n);
+
+        System.arraycopy(balls.y, 0, lastY, 0, n);
+
+    }
+
+}
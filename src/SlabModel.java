@@ -0,0 +1,412 @@
+package src;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a model split over several worker processes on this machine, for scenes too large for one heap.
+ *
+ * The area is cut into slabs of equal width along x, and every slab is owned by a SlabWorker process that steps the
+ * balls inside it in a Model of its own. Balls close enough to the edge of a slab to touch a ball on the other side
+ * during the step are sent to the neighbour as ghosts before the step: both workers collide the pair, and each keeps
+ * the result for its own ball only. After the step balls that left a slab migrate to the neighbour. Ghosts and
+ * migrants only ever go to the slab next door, so every slab has to be wider than the ghost zone and no ball may
+ * cross a whole slab in one step.
+ *
+ * This coordinator starts the workers, drives the steps over a socket per worker and gathers the balls into one
+ * global view when balls() is asked for, so the animator can draw the run like any other simulation. The view keeps
+ * every ball at the index it had in the scene. The workers talk to their neighbours over sockets of their own.
+ *
+ * The workers collide their balls in the order of their index in the scene, like a single Model does, so both
+ * workers of an edge collide the pairs across it alike. Only chains of collisions that reach across the ghost zone
+ * within one step can still make a run differ from the same run in a single Model.
+ */
+public final class SlabModel implements Simulation, AutoCloseable {
+
+    // Commands to the workers.
+    static final int INIT = 1, STEP = 2, GATHER = 3, QUIT = 4;
+
+    private final BallStore balls;
+
+    private final double width, height;
+
+    private final boolean gravity;
+
+    private final double slabWidth, maxRadius;
+
+    private final Process[] workers;
+
+    private final Socket[] sockets;
+
+    private final DataInputStream[] in;
+
+    private final DataOutputStream[] out;
+
+    // The fastest ball at the end of the last step, which sets how wide the ghost zone of the next one is.
+    private double maxSpeed;
+
+    // Whether the global view is older than the last step.
+    private boolean stale;
+
+    private long steps;
+
+    private double time;
+
+    // Splits the scene over the given number of worker processes, each with the default heap.
+    public SlabModel(BallStore balls, double width, double height, boolean gravity, int slabs) throws IOException {
+
+        this(balls, width, height, gravity, slabs, null);
+
+    }
+
+    /**
+     * Splits the scene over slabs worker processes, started with the given heap size (for example "2g") or the
+     * default one if null. The ball store becomes the global view.
+     */
+    public SlabModel(BallStore balls, double width, double height, boolean gravity, int slabs, String heap)
+        throws IOException {
+
+        if (slabs < 1) {
+
+            throw new IllegalArgumentException("There must be at least one slab");
+
+        }
+
+        this.balls = balls;
+
+        this.width = width;
+
+        this.height = height;
+
+        this.gravity = gravity;
+
+        this.slabWidth = width / slabs;
+
+        this.workers = new Process[slabs];
+
+        this.sockets = new Socket[slabs];
+
+        this.in = new DataInputStream[slabs];
+
+        this.out = new DataOutputStream[slabs];
+
+        double radius = 0;
+
+        for (int i = 0; i < balls.size(); i++) {
+
+            radius = Math.max(radius, balls.radius[i]);
+
+            maxSpeed = Math.max(maxSpeed, Math.hypot(balls.vx[i], balls.vy[i]));
+
+        }
+
+        this.maxRadius = radius;
+
+        try (ServerSocket control = new ServerSocket(0, slabs, InetAddress.getLoopbackAddress())) {
+
+            control.setSoTimeout((int) TimeUnit.SECONDS.toMillis(60));
+
+            for (int s = 0; s < slabs; s++) {
+
+                workers[s] = start(control.getLocalPort(), s, heap);
+
+            }
+
+            // The workers connect in whatever order they come up, each tells which slab it is and where it listens.
+            int[] ports = new int[slabs];
+
+            for (int s = 0; s < slabs; s++) {
+
+                Socket socket = control.accept();
+
+                DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+                int slab = input.readInt();
+
+                ports[slab] = input.readInt();
+
+                sockets[slab] = socket;
+
+                in[slab] = input;
+
+                out[slab] = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+            }
+
+            for (int s = 0; s < slabs; s++) {
+
+                init(s, s + 1 < slabs ? ports[s + 1] : -1);
+
+            }
+
+        } catch (IOException e) {
+
+            close();
+
+            throw e;
+
+        }
+
+    }
+
+    private static Process start(int port, int slab, String heap) throws IOException {
+
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+
+        ProcessBuilder builder = heap != null
+            ? new ProcessBuilder(java, "-Xmx" + heap, "-cp", System.getProperty("java.class.path"),
+                SlabWorker.class.getName(), Integer.toString(port), Integer.toString(slab))
+            : new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), SlabWorker.class.getName(),
+                Integer.toString(port), Integer.toString(slab));
+
+        return builder.redirectOutput(ProcessBuilder.Redirect.INHERIT).redirectError(ProcessBuilder.Redirect.INHERIT)
+            .start();
+
+    }
+
+    // Hands slab s its part of the area, the balls in it and where its right neighbour listens.
+    private void init(int s, int rightPort) throws IOException {
+
+        double x0 = s * slabWidth;
+
+        double x1 = s == workers.length - 1 ? width : (s + 1) * slabWidth;
+
+        DataOutputStream output = out[s];
+
+        output.writeInt(INIT);
+
+        output.writeDouble(width);
+
+        output.writeDouble(height);
+
+        output.writeBoolean(gravity);
+
+        output.writeDouble(x0);
+
+        output.writeDouble(x1);
+
+        output.writeInt(rightPort);
+
+        int count = 0;
+
+        for (int i = 0; i < balls.size(); i++) {
+
+            if (slabOf(balls.x[i]) == s) {
+                count++;
+            }
+
+        }
+
+        output.writeInt(count);
+
+        // The workers know the balls by their index in the global view.
+        for (int i = 0; i < balls.size(); i++) {
+
+            if (slabOf(balls.x[i]) == s) {
+
+                SlabWorker.writeBall(output, balls, i, i);
+
+            }
+
+        }
+
+        output.flush();
+
+    }
+
+    private int slabOf(double x) {
+
+        return Math.min(workers.length - 1, Math.max(0, (int) (x / slabWidth)));
+
+    }
+
+    // The number of worker processes.
+    public int slabs() {
+
+        return workers.length;
+
+    }
+
+    public double time() {
+
+        return time;
+
+    }
+
+    public long steps() {
+
+        return steps;
+
+    }
+
+    @Override
+    public void step(double deltaT) {
+
+        /* A pair can only touch during the step if it is closer than two radii plus the way both balls move. The
+        ghost zone is twice that, so the balls a ghost can touch come along as ghosts too. */
+        double speed = maxSpeed + (gravity ? Model.G * deltaT : 0);
+
+        double reach = 2 * (2 * maxRadius + 2 * speed * deltaT);
+
+        if (reach > slabWidth) {
+
+            throw new IllegalStateException("The slabs are " + slabWidth + " wide but the ghost zone is " + reach
+                + ", use fewer slabs or a smaller deltaT");
+
+        }
+
+        try {
+
+            for (DataOutputStream output : out) {
+
+                output.writeInt(STEP);
+
+                output.writeDouble(deltaT);
+
+                output.writeDouble(reach);
+
+                output.flush();
+
+            }
+
+            double fastest = 0;
+
+            for (DataInputStream input : in) {
+
+                fastest = Math.max(fastest, input.readDouble());
+
+            }
+
+            maxSpeed = fastest;
+
+        } catch (IOException e) {
+
+            throw new IllegalStateException("Lost a worker in step " + steps, e);
+
+        }
+
+        steps++;
+
+        time += deltaT;
+
+        stale = true;
+
+    }
+
+    // The balls of all slabs, gathered from the workers if they have stepped since the last call.
+    @Override
+    public BallStore balls() {
+
+        if (!stale) {
+            return balls;
+        }
+
+        try {
+
+            for (DataOutputStream output : out) {
+
+                output.writeInt(GATHER);
+
+                output.flush();
+
+            }
+
+            for (DataInputStream input : in) {
+
+                for (int count = input.readInt(); count > 0; count--) {
+
+                    int i = input.readInt();
+
+                    balls.x[i] = input.readDouble();
+
+                    balls.y[i] = input.readDouble();
+
+                    balls.vx[i] = input.readDouble();
+
+                    balls.vy[i] = input.readDouble();
+
+                    balls.radius[i] = input.readDouble();
+
+                    balls.mass[i] = input.readDouble();
+
+                }
+
+            }
+
+        } catch (IOException e) {
+
+            throw new IllegalStateException("Lost a worker gathering step " + steps, e);
+
+        }
+
+        stale = false;
+
+        return balls;
+
+    }
+
+    // Stops the workers and waits for them to exit.
+    @Override
+    public void close() {
+
+        for (int s = 0; s < workers.length; s++) {
+
+            try {
+
+                if (out[s] != null) {
+
+                    out[s].writeInt(QUIT);
+
+                    out[s].flush();
+
+                }
+
+            } catch (IOException e) {
+
+                // The worker is gone already.
+
+            }
+
+        }
+
+        for (int s = 0; s < workers.length; s++) {
+
+            try {
+
+                if (sockets[s] != null) {
+
+                    sockets[s].close();
+
+                }
+
+                if (workers[s] != null && !workers[s].waitFor(10, TimeUnit.SECONDS)) {
+
+                    workers[s].destroyForcibly();
+
+                }
+
+            } catch (IOException e) {
+
+                // Closing a broken socket, nothing left to do.
+
+            } catch (InterruptedException e) {
+
+                workers[s].destroyForcibly();
+
+                Thread.currentThread().interrupt();
+
+            }
+
+        }
+
+    }
+
+}
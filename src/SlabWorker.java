@@ -0,0 +1,475 @@
+package src;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+
+/**
+ * One slab of a SlabModel, run in a process of its own.
+ *
+ * Usage: SlabWorker port slab, started by the SlabModel listening on the port.
+ *
+ * The worker keeps the balls of its slab in a Model of its own, the balls it owns first and during a step the ghosts
+ * from its neighbours behind them. The exchanges with the neighbours go in two phases so no pair of workers ever
+ * waits on each other: first every even slab talks to the slab on its right, then every odd one. Of the two workers
+ * on an edge the left one writes first and the right one reads first.
+ */
+public final class SlabWorker {
+
+    private final int slab;
+
+    private final DataInputStream control;
+
+    private final DataOutputStream reply;
+
+    private final BallStore balls = new BallStore(1024);
+
+    private double x0, x1;
+
+    private Model model;
+
+    // The sockets to the neighbours, null at the edges of the area.
+    private DataInputStream leftIn, rightIn;
+
+    private DataOutputStream leftOut, rightOut;
+
+    // Reused list of the balls to send.
+    private int[] outgoing = new int[64];
+
+    // Scratch space for sorting the balls, and which of the sorted balls are ghosts.
+    private long[] keys = new long[0];
+
+    private int[] order = new int[0];
+
+    private double[] column = new double[0];
+
+    private int[] ids = new int[0];
+
+    private boolean[] ghost = new boolean[0];
+
+    private SlabWorker(int slab, DataInputStream control, DataOutputStream reply) {
+
+        this.slab = slab;
+
+        this.control = control;
+
+        this.reply = reply;
+
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        int port = Integer.parseInt(args[0]);
+
+        int slab = Integer.parseInt(args[1]);
+
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+
+        try (ServerSocket neighbours = new ServerSocket(0, 1, loopback); Socket socket = new Socket(loopback, port)) {
+
+            socket.setTcpNoDelay(true);
+
+            DataOutputStream reply = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+
+            reply.writeInt(slab);
+
+            reply.writeInt(neighbours.getLocalPort());
+
+            reply.flush();
+
+            SlabWorker worker = new SlabWorker(slab,
+                new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16)), reply);
+
+            worker.run(neighbours);
+
+        }
+
+    }
+
+    private void run(ServerSocket neighbours) throws IOException {
+
+        try {
+
+            for (int command = control.readInt(); command != SlabModel.QUIT; command = control.readInt()) {
+
+                switch (command) {
+
+                    case SlabModel.INIT:
+                        init(neighbours);
+                        break;
+
+                    case SlabModel.STEP:
+                        step(control.readDouble(), control.readDouble());
+                        break;
+
+                    case SlabModel.GATHER:
+                        gather();
+                        break;
+
+                    default:
+                        throw new IOException("Unknown command " + command);
+
+                }
+
+            }
+
+        } catch (EOFException e) {
+
+            // The coordinator is gone, so is the run.
+
+        }
+
+    }
+
+    private void init(ServerSocket neighbours) throws IOException {
+
+        double width = control.readDouble();
+
+        double height = control.readDouble();
+
+        boolean gravity = control.readBoolean();
+
+        x0 = control.readDouble();
+
+        x1 = control.readDouble();
+
+        int rightPort = control.readInt();
+
+        for (int count = control.readInt(); count > 0; count--) {
+
+            readBall(control, balls);
+
+        }
+
+        model = new Model(balls, width, height, gravity, false);
+
+        // The right neighbour is listening already, and connecting does not wait for it to accept.
+        if (rightPort >= 0) {
+
+            Socket right = new Socket(neighbours.getInetAddress(), rightPort);
+
+            right.setTcpNoDelay(true);
+
+            rightIn = new DataInputStream(new BufferedInputStream(right.getInputStream(), 1 << 16));
+
+            rightOut = new DataOutputStream(new BufferedOutputStream(right.getOutputStream(), 1 << 16));
+
+        }
+
+        if (slab > 0) {
+
+            Socket left = neighbours.accept();
+
+            left.setTcpNoDelay(true);
+
+            leftIn = new DataInputStream(new BufferedInputStream(left.getInputStream(), 1 << 16));
+
+            leftOut = new DataOutputStream(new BufferedOutputStream(left.getOutputStream(), 1 << 16));
+
+        }
+
+    }
+
+    // Steps the slab with the ghosts within reach of its edges, then hands the balls that left it to the neighbours.
+    private void step(double deltaT, double reach) throws IOException {
+
+        int owned = balls.size();
+
+        for (int phase = 0; phase < 2; phase++) {
+
+            if (rightOut != null && slab % 2 == phase) {
+
+                exchange(rightIn, rightOut, true, x1 - reach, Double.POSITIVE_INFINITY, owned, false);
+
+            }
+
+            if (leftOut != null && (slab - 1) % 2 == phase) {
+
+                exchange(leftIn, leftOut, false, Double.NEGATIVE_INFINITY, x0 + reach, owned, false);
+
+            }
+
+        }
+
+        sortById(owned);
+
+        model.step(deltaT);
+
+        // The neighbours step their own balls, the ghosts have served their purpose.
+        int kept = 0;
+
+        for (int i = 0; i < balls.size(); i++) {
+
+            if (!ghost[i]) {
+
+                move(i, kept++);
+
+            }
+
+        }
+
+        balls.resize(kept);
+
+        for (int phase = 0; phase < 2; phase++) {
+
+            if (rightOut != null && slab % 2 == phase) {
+
+                exchange(rightIn, rightOut, true, x1, Double.POSITIVE_INFINITY, balls.size(), true);
+
+            }
+
+            if (leftOut != null && (slab - 1) % 2 == phase) {
+
+                exchange(leftIn, leftOut, false, Double.NEGATIVE_INFINITY, x0, balls.size(), true);
+
+            }
+
+        }
+
+        double maxSpeed = 0;
+
+        for (int i = 0; i < balls.size(); i++) {
+
+            maxSpeed = Math.max(maxSpeed, balls.vx[i] * balls.vx[i] + balls.vy[i] * balls.vy[i]);
+
+        }
+
+        reply.writeDouble(Math.sqrt(maxSpeed));
+
+        reply.flush();
+
+    }
+
+    /**
+     * Sends the first count balls with from <= x < to over the link and appends the balls that come the other way.
+     * The left worker of the edge writes first. Migrating balls leave this slab, ghosts stay.
+     */
+    private void exchange(DataInputStream in, DataOutputStream out, boolean left, double from, double to, int count,
+        boolean migrate) throws IOException {
+
+        if (!left) {
+
+            receive(in);
+
+        }
+
+        int sent = 0;
+
+        for (int i = 0; i < count; i++) {
+
+            if (balls.x[i] >= from && balls.x[i] < to) {
+
+                if (sent == outgoing.length) {
+
+                    outgoing = Arrays.copyOf(outgoing, sent * 2);
+
+                }
+
+                outgoing[sent++] = i;
+
+            }
+
+        }
+
+        out.writeInt(sent);
+
+        for (int k = 0; k < sent; k++) {
+
+            writeBall(out, balls, outgoing[k], balls.id[outgoing[k]]);
+
+        }
+
+        out.flush();
+
+        // The balls that stay keep their order, see sortById.
+        if (migrate) {
+
+            int kept = 0;
+
+            for (int i = 0, k = 0; i < balls.size(); i++) {
+
+                if (k < sent && outgoing[k] == i) {
+
+                    k++;
+
+                } else {
+
+                    move(i, kept++);
+
+                }
+
+            }
+
+            balls.resize(kept);
+
+        }
+
+        if (left) {
+
+            receive(in);
+
+        }
+
+    }
+
+    private void receive(DataInputStream in) throws IOException {
+
+        for (int count = in.readInt(); count > 0; count--) {
+
+            readBall(in, balls);
+
+        }
+
+    }
+
+    /**
+     * Puts the balls, owned and ghosts, in the order of their index in the global view, marking the ghosts. The model
+     * collides the balls in the order they are stored in, so both workers of an edge see the pairs across it in the
+     * same order, the order a single model would see them in, and agree on how they collide.
+     *
+     * The owned balls are still in order from the last step, except for the migrants that came in behind them. Only
+     * those and the ghosts are sorted, and then merged with the rest.
+     */
+    private void sortById(int owned) {
+
+        int n = balls.size();
+
+        if (ghost.length < n) {
+
+            keys = new long[n];
+
+            order = new int[n];
+
+            column = new double[n];
+
+            ids = new int[n];
+
+            ghost = new boolean[n];
+
+        }
+
+        int sorted = 1;
+
+        while (sorted < n && balls.id[sorted - 1] < balls.id[sorted]) {
+            sorted++;
+        }
+
+        // The ghosts may have come in behind the owned balls in order already, they are still ghosts.
+        if (sorted >= n) {
+
+            for (int k = 0; k < n; k++) {
+
+                ghost[k] = k >= owned;
+
+            }
+
+            return;
+
+        }
+
+        int tail = n - sorted;
+
+        for (int t = 0; t < tail; t++) {
+
+            keys[t] = (long) balls.id[sorted + t] << 32 | (sorted + t);
+
+        }
+
+        Arrays.sort(keys, 0, tail);
+
+        for (int k = 0, a = 0, t = 0; k < n; k++) {
+
+            order[k] = t == tail || a < sorted && balls.id[a] < (int) (keys[t] >>> 32) ? a++ : (int) keys[t++];
+
+        }
+
+        for (double[] values : new double[][] { balls.x, balls.y, balls.vx, balls.vy, balls.radius, balls.mass }) {
+
+            for (int k = 0; k < n; k++) {
+
+                column[k] = values[order[k]];
+
+            }
+
+            System.arraycopy(column, 0, values, 0, n);
+
+        }
+
+        for (int k = 0; k < n; k++) {
+
+            ids[k] = balls.id[order[k]];
+
+            ghost[k] = order[k] >= owned;
+
+        }
+
+        System.arraycopy(ids, 0, balls.id, 0, n);
+
+    }
+
+    private void move(int from, int to) {
+
+        balls.x[to] = balls.x[from];
+
+        balls.y[to] = balls.y[from];
+
+        balls.vx[to] = balls.vx[from];
+
+        balls.vy[to] = balls.vy[from];
+
+        balls.radius[to] = balls.radius[from];
+
+        balls.mass[to] = balls.mass[from];
+
+        balls.id[to] = balls.id[from];
+
+    }
+
+    private void gather() throws IOException {
+
+        reply.writeInt(balls.size());
+
+        for (int i = 0; i < balls.size(); i++) {
+
+            writeBall(reply, balls, i, balls.id[i]);
+
+        }
+
+        reply.flush();
+
+    }
+
+    // Writes ball i of the store under the given id, see readBall.
+    static void writeBall(DataOutputStream out, BallStore balls, int i, int id) throws IOException {
+
+        out.writeInt(id);
+
+        out.writeDouble(balls.x[i]);
+
+        out.writeDouble(balls.y[i]);
+
+        out.writeDouble(balls.vx[i]);
+
+        out.writeDouble(balls.vy[i]);
+
+        out.writeDouble(balls.radius[i]);
+
+        out.writeDouble(balls.mass[i]);
+
+    }
+
+    private static void readBall(DataInputStream in, BallStore balls) throws IOException {
+
+        balls.add(in.readInt(), in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble(),
+            in.readDouble());
+
+    }
+
+}
@@ -0,0 +1,130 @@
+package src;
+
+/**
+ * The positions of all balls after a step of a simulation, together with their positions one step earlier,
+ * so a renderer can draw the balls anywhere in between.
+ *
+ * Snapshots are reused by the simulation thread, so a snapshot must only be read until the next one is taken.
+ * The same goes for the region queries, which also keep their result in the snapshot.
+ */
+public final class Snapshot {
+
+    // Positions after the step, positions before the step and the radius of every ball.
+    public double[] x = new double[0], y = new double[0], prevX = new double[0], prevY = new double[0], radius = new double[0];
+
+    public int size;
+
+    // The simulation time after the step.
+    public double time;
+
+    // System.nanoTime() when the snapshot was published.
+    public long publishedAt;
+
+    // The length of the step in nanoseconds, used to interpolate.
+    public long stepNanos;
+
+    // Indexes the current positions for region queries. Kept from one capture to the next, so it only changes where balls have moved.
+    private final AabbTree index = new AabbTree();
+
+    // How far any ball has moved along either axis since the previous positions.
+    private double maxMove;
+
+    // Position of ball i at a fraction alpha (0 to 1) of the way from the previous to the current step.
+    public double x(int i, double alpha) {
+
+        return prevX[i] + (x[i] - prevX[i]) * alpha;
+
+    }
+
+    public double y(int i, double alpha) {
+
+        return prevY[i] + (y[i] - prevY[i]) * alpha;
+
+    }
+
+    /**
+     * Collects the balls that may overlap the given rectangle anywhere between their previous and current positions,
+     * in no particular order. Returns their number, see {@link #candidates()}.
+     */
+    public int ballsNear(double minX, double minY, double maxX, double maxY) {
+
+        return index.query(minX - maxMove, minY - maxMove, maxX + maxMove, maxY + maxMove);
+
+    }
+
+    // The buffer holding the result of the last call to ballsNear.
+    public int[] candidates() {
+
+        return index.candidates();
+
+    }
+
+    /**
+     * How far to interpolate at the given System.nanoTime(). The renderer shows the simulation one step behind,
+     * so a snapshot is drawn at its previous positions when it is published and reaches its current positions
+     * one step later, when the next snapshot should be there.
+     */
+    public double alpha(long now) {
+
+        if (stepNanos <= 0) {
+
+            return 1;
+
+        }
+
+        return Math.max(0, Math.min(1, (now - publishedAt) / (double) stepNanos));
+
+    }
+
+    // Copies the balls into the snapshot, the current positions become the previous ones.
+    void capture(BallStore balls, double[] lastX, double[] lastY, double time, long stepNanos) {
+
+        int n = balls.size();
+
+        if (x.length < n) {
+
+            x = new double[n];
+
+            y = new double[n];
+
+            prevX = new double[n];
+
+            prevY = new double[n];
+
+            radius = new double[n];
+
+        }
+
+        System.arraycopy(lastX, 0, prevX, 0, n);
+
+        System.arraycopy(lastY, 0, prevY, 0, n);
+
+        System.arraycopy(balls.x, 0, x, 0, n);
+
+        System.arraycopy(balls.y, 0, y, 0, n);
+
+        System.arraycopy(balls.radius, 0, radius, 0, n);
+
+        double move = 0;
+
+        for (int i = 0; i < n; i++) {
+
+            move = Math.max(move, Math.max(Math.abs(x[i] - prevX[i]), Math.abs(y[i] - prevY[i])));
+
+        }
+
+        this.maxMove = move;
+
+        index.sync(n, x, y, radius);
+
+        this.size = n;
+
+        this.time = time;
+
+        this.stepNanos = stepNanos;
+
+        this.publishedAt = System.nanoTime();
+
+    }
+
+}
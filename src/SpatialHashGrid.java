@@ -0,0 +1,282 @@
+package src;
+
+/**
+ * A uniform grid broad phase where each cell is hashed into a fixed size table.
+ * 
+ * The cells are as wide as the largest ball, so two touching balls are always in the same or
+ * in neighbouring cells. Hashing the cells (instead of allocating the whole grid) keeps the memory
+ * proportional to the number of balls no matter how large the area is or where the balls are.
+ * Hash collisions only add extra candidates, which the narrow phase filters out anyway.
+ * 
+ * The buckets are doubly linked lists stored in int arrays, indexed by the position of the ball in the
+ * ball store, so a ball can be moved between cells in O(1) without allocating.
+ */
+final class SpatialHashGrid implements NeighbourIndex {
+
+    // Marks the end of a bucket list.
+    private static final int NONE = -1;
+
+    private double cellSize = 1;
+
+    private int mask;
+
+    // First ball of every bucket.
+    private int[] head = new int[0];
+
+    // Links between the balls of a bucket and the bucket every ball currently is in.
+    private int[] next = new int[0], prev = new int[0], bucket = new int[0];
+
+    // The balls of the last rebuild.
+    private BallStore balls;
+
+    // Reused buffer for the candidates of a query.
+    private final Candidates candidates = new Candidates();
+
+    // Rebuilds the grid from scratch, the cell size is derived from the largest ball.
+    @Override
+    public void rebuild(BallStore balls) {
+
+        this.balls = balls;
+
+        int n = balls.size();
+
+        double maxRadius = 0;
+
+        for (int i = 0; i < n; i++) {
+
+            maxRadius = Math.max(maxRadius, balls.radius[i]);
+
+        }
+
+        cellSize = maxRadius > 0 ? 2 * maxRadius : 1;
+
+        // At least twice as many buckets as balls, rounded up to a power of two so we can mask instead of mod.
+        int size = Integer.highestOneBit(Math.max(n, 4) * 2 - 1) << 1;
+
+        if (head.length != size) {
+
+            head = new int[size];
+
+        }
+
+        mask = size - 1;
+
+        java.util.Arrays.fill(head, NONE);
+
+        if (next.length < n) {
+
+            next = new int[n];
+
+            prev = new int[n];
+
+            bucket = new int[n];
+
+        }
+
+        for (int i = 0; i < n; i++) {
+
+            insert(i, bucketOf(balls.x[i], balls.y[i]));
+
+        }
+
+    }
+
+    // Moves the ball to its new cell if it has left its old one.
+    @Override
+    public void update(int i) {
+
+        int h = bucketOf(balls.x[i], balls.y[i]);
+
+        if (h != bucket[i]) {
+
+            remove(i);
+
+            insert(i, h);
+
+        }
+
+    }
+
+    // The balls in the cell of ball i and the eight cells around it.
+    @Override
+    public int query(int i) {
+
+        return query(balls.x[i], balls.y[i], i, candidates);
+
+    }
+
+    // The balls in the cells around ball i, as many rings of them as it takes to cover reach.
+    @Override
+    public int query(int i, double reach) {
+
+        return query(balls.x[i], balls.y[i], reach, i, candidates);
+
+    }
+
+    /**
+     * Collects the balls in the cell of the position and the eight cells around it, except the ball self,
+     * sorted by index and free of duplicates. As long as the grid is not modified, several threads can
+     * query it at the same time with a buffer each.
+     */
+    int query(double x, double y, int self, Candidates out) {
+
+        return query(x, y, 0, self, out);
+
+    }
+
+    // The same, with as many more rings of cells around them as it takes to cover reach.
+    private int query(double x, double y, double reach, int self, Candidates out) {
+
+        int[] candidates = out.indices;
+
+        int cx = cell(x);
+
+        int cy = cell(y);
+
+        int rings = 1 + (int) Math.ceil(reach / cellSize);
+
+        int count = 0;
+
+        for (int dx = -rings; dx <= rings; dx++) {
+
+            for (int dy = -rings; dy <= rings; dy++) {
+
+                for (int j = head[hash(cx + dx, cy + dy)]; j != NONE; j = next[j]) {
+
+                    if (j == self) {
+                        continue;
+                    }
+
+                    if (count == candidates.length) {
+
+                        candidates = out.indices = java.util.Arrays.copyOf(candidates, count * 2);
+
+                    }
+
+                    candidates[count++] = j;
+
+                }
+
+            }
+
+        }
+
+        return sortUnique(candidates, count);
+
+    }
+
+    @Override
+    public int[] candidates() {
+
+        return candidates.indices;
+
+    }
+
+    // The width of a cell, no two touching balls are further apart than this.
+    double cellSize() {
+
+        return cellSize;
+
+    }
+
+    private int bucketOf(double x, double y) {
+
+        return hash(cell(x), cell(y));
+
+    }
+
+    private int cell(double coordinate) {
+
+        return (int) Math.floor(coordinate / cellSize);
+
+    }
+
+    private int hash(int cx, int cy) {
+
+        return ((cx * 73856093) ^ (cy * 19349663)) & mask;
+
+    }
+
+    private void insert(int i, int h) {
+
+        bucket[i] = h;
+
+        prev[i] = NONE;
+
+        next[i] = head[h];
+
+        if (head[h] != NONE) {
+
+            prev[head[h]] = i;
+
+        }
+
+        head[h] = i;
+
+    }
+
+    private void remove(int i) {
+
+        if (prev[i] != NONE) {
+
+            next[prev[i]] = next[i];
+
+        } else {
+
+            head[bucket[i]] = next[i];
+
+        }
+
+        if (next[i] != NONE) {
+
+            prev[next[i]] = prev[i];
+
+        }
+
+    }
+
+    // Growable buffer for the candidates of a query.
+    static final class Candidates {
+
+        int[] indices = new int[16];
+
+    }
+
+    // Insertion sort, the candidate lists are short. Duplicates (from hash collisions) are dropped.
+    static int sortUnique(int[] a, int count) {
+
+        for (int i = 1; i < count; i++) {
+
+            int v = a[i];
+
+            int j = i - 1;
+
+            while (j >= 0 && a[j] > v) {
+
+                a[j + 1] = a[j];
+
+                j--;
+
+            }
+
+            a[j + 1] = v;
+
+        }
+
+        int unique = 0;
+
+        for (int i = 0; i < count; i++) {
+
+            if (unique == 0 || a[unique - 1] != a[i]) {
+
+                a[unique++] = a[i];
+
+            }
+
+        }
+
+        return unique;
+
+    }
+
+}
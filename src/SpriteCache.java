@@ -0,0 +1,70 @@
+package src;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.RenderingHints;
+import java.awt.Transparency;
+import java.awt.geom.Ellipse2D;
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Pre-rendered images of filled discs, one per diameter (in whole pixels) and colour.
+ *
+ * Rasterising an antialiased ellipse is expensive, copying an image that is already in the format of the screen
+ * is cheap, so every disc is rendered only once and then blitted for every ball of the same size and colour.
+ */
+final class SpriteCache {
+
+    private final Map<Long, BufferedImage> sprites = new HashMap<>();
+
+    // The disc with the given diameter and colour, rendered on first use.
+    BufferedImage get(int diameter, Color colour, GraphicsConfiguration configuration) {
+
+        long key = ((long) diameter << 32) | (colour.getRGB() & 0xffffffffL);
+
+        BufferedImage sprite = sprites.get(key);
+
+        if (sprite == null) {
+
+            sprite = render(Math.max(1, diameter), colour, configuration);
+
+            sprites.put(key, sprite);
+
+        }
+
+        return sprite;
+
+    }
+
+    // Forgets every sprite, for example when the component moves to a screen with a different format.
+    void clear() {
+
+        sprites.clear();
+
+    }
+
+    private static BufferedImage render(int diameter, Color colour, GraphicsConfiguration configuration) {
+
+        // A compatible image can be copied to the screen without conversion, fall back to plain ARGB when not showing.
+        BufferedImage sprite = configuration != null
+            ? configuration.createCompatibleImage(diameter, diameter, Transparency.TRANSLUCENT)
+            : new BufferedImage(diameter, diameter, BufferedImage.TYPE_INT_ARGB);
+
+        Graphics2D g = sprite.createGraphics();
+
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+
+        g.setColor(colour);
+
+        g.fill(new Ellipse2D.Double(0, 0, diameter, diameter));
+
+        g.dispose();
+
+        return sprite;
+
+    }
+
+}
@@ -0,0 +1,381 @@
+package src;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Where the time of Model.step goes: the time spent in every phase, how many ball pairs were tested and how many
+ * of them collided, and a histogram of the step latency.
+ *
+ * A model only collects metrics when it has a StepMetrics, see Model.setMetrics. The model sums up the phases of a
+ * step in plain arrays and hands them over once at the end of the step, so the metrics can be read from any thread
+ * (through the getters, or over JMX after register) while the model keeps stepping.
+ *
+ * The latency histogram has eight buckets per power of two, so a percentile is accurate to within 12.5%.
+ *
+ * Timing the phases reads the clock several times per ball, which can cost as much as the phases themselves in the
+ * sequential step. Counters and step latencies are cheap. With a phase interval of n only every n-th step has its
+ * phases timed, the phase times then add up the timed steps only, see getTimedSteps.
+ */
+public final class StepMetrics implements StepMetricsMBean {
+
+    // The phases of a step. With a step pool the wall collisions and the gravity are one stage, counted as walls.
+    public enum Phase {
+        INTEGRATE, BROAD_PHASE, BALL_COLLISIONS, WALL_COLLISIONS, GRAVITY
+    }
+
+    public enum Counter {
+        PAIRS_TESTED, COLLISIONS, OVERLAP_CORRECTIONS, WALL_HITS
+    }
+
+    static final int PHASES = Phase.values().length;
+
+    static final int COUNTERS = Counter.values().length;
+
+    // Buckets per power of two are 1 << SUB_BITS.
+    private static final int SUB_BITS = 3;
+
+    private static final int BUCKETS = (64 - SUB_BITS) << SUB_BITS;
+
+    private final AtomicLongArray phaseNanos = new AtomicLongArray(PHASES);
+
+    private final AtomicLongArray counts = new AtomicLongArray(COUNTERS);
+
+    private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+    // Number of steps, their summed latency, the slowest one and the number of steps with timed phases.
+    private final AtomicLongArray totals = new AtomicLongArray(4);
+
+    private final int phaseInterval;
+
+    private ObjectName name;
+
+    // Times the phases of every step.
+    public StepMetrics() {
+
+        this(1);
+
+    }
+
+    public StepMetrics(int phaseInterval) {
+
+        if (phaseInterval < 1) {
+
+            throw new IllegalArgumentException("Phase interval must be positive");
+
+        }
+
+        this.phaseInterval = phaseInterval;
+
+    }
+
+    // True if the phases of the given step are timed.
+    boolean times(long stepNumber) {
+
+        return stepNumber % phaseInterval == 0;
+
+    }
+
+    // Adds the time since since to the given phase and returns the current time, so phases can be timed back to back.
+    static long lap(long[] nanos, Phase phase, long since) {
+
+        long now = System.nanoTime();
+
+        nanos[phase.ordinal()] += now - since;
+
+        return now;
+
+    }
+
+    // Adds one step to the metrics and clears the arrays the step was summed up in.
+    void record(long stepNanos, boolean timed, long[] nanos, long[] counters) {
+
+        for (int p = 0; p < PHASES; p++) {
+
+            if (nanos[p] != 0) {
+
+                phaseNanos.getAndAdd(p, nanos[p]);
+
+                nanos[p] = 0;
+
+            }
+
+        }
+
+        for (int c = 0; c < COUNTERS; c++) {
+
+            if (counters[c] != 0) {
+
+                counts.getAndAdd(c, counters[c]);
+
+                counters[c] = 0;
+
+            }
+
+        }
+
+        histogram.getAndIncrement(bucket(stepNanos));
+
+        totals.getAndIncrement(0);
+
+        totals.getAndAdd(1, stepNanos);
+
+        totals.accumulateAndGet(2, stepNanos, Math::max);
+
+        if (timed) {
+
+            totals.getAndIncrement(3);
+
+        }
+
+    }
+
+    // The time spent in the given phase over all steps.
+    public long phaseNanos(Phase phase) {
+
+        return phaseNanos.get(phase.ordinal());
+
+    }
+
+    public long count(Counter counter) {
+
+        return counts.get(counter.ordinal());
+
+    }
+
+    /**
+     * The step latency below which the given fraction of the steps lie, for example 0.99 for the 99th percentile.
+     * Returns the upper end of the histogram bucket the percentile falls in, or 0 if no step was recorded.
+     */
+    public long stepNanosPercentile(double fraction) {
+
+        long[] buckets = new long[BUCKETS];
+
+        long total = 0;
+
+        for (int b = 0; b < BUCKETS; b++) {
+
+            buckets[b] = histogram.get(b);
+
+            total += buckets[b];
+
+        }
+
+        long rank = (long) Math.ceil(fraction * total);
+
+        long seen = 0;
+
+        for (int b = 0; b < BUCKETS; b++) {
+
+            seen += buckets[b];
+
+            if (seen > 0 && seen >= rank) {
+
+                return upperBound(b);
+
+            }
+
+        }
+
+        return 0;
+
+    }
+
+    @Override
+    public long getSteps() {
+
+        return totals.get(0);
+
+    }
+
+    @Override
+    public long getTimedSteps() {
+
+        return totals.get(3);
+
+    }
+
+    @Override
+    public long getIntegrateNanos() {
+
+        return phaseNanos(Phase.INTEGRATE);
+
+    }
+
+    @Override
+    public long getBroadPhaseNanos() {
+
+        return phaseNanos(Phase.BROAD_PHASE);
+
+    }
+
+    @Override
+    public long getBallCollisionNanos() {
+
+        return phaseNanos(Phase.BALL_COLLISIONS);
+
+    }
+
+    @Override
+    public long getWallCollisionNanos() {
+
+        return phaseNanos(Phase.WALL_COLLISIONS);
+
+    }
+
+    @Override
+    public long getGravityNanos() {
+
+        return phaseNanos(Phase.GRAVITY);
+
+    }
+
+    @Override
+    public long getPairsTested() {
+
+        return count(Counter.PAIRS_TESTED);
+
+    }
+
+    @Override
+    public long getCollisions() {
+
+        return count(Counter.COLLISIONS);
+
+    }
+
+    @Override
+    public long getOverlapCorrections() {
+
+        return count(Counter.OVERLAP_CORRECTIONS);
+
+    }
+
+    @Override
+    public long getWallHits() {
+
+        return count(Counter.WALL_HITS);
+
+    }
+
+    @Override
+    public double getMeanStepNanos() {
+
+        long steps = totals.get(0);
+
+        return steps == 0 ? 0 : (double) totals.get(1) / steps;
+
+    }
+
+    @Override
+    public long getMaxStepNanos() {
+
+        return totals.get(2);
+
+    }
+
+    @Override
+    public long getStepNanosP50() {
+
+        return stepNanosPercentile(0.5);
+
+    }
+
+    @Override
+    public long getStepNanosP99() {
+
+        return stepNanosPercentile(0.99);
+
+    }
+
+    // Sets everything back to zero. A step that is recorded at the same time may be partly kept.
+    @Override
+    public void reset() {
+
+        for (int p = 0; p < PHASES; p++) {
+
+            phaseNanos.set(p, 0);
+
+        }
+
+        for (int c = 0; c < COUNTERS; c++) {
+
+            counts.set(c, 0);
+
+        }
+
+        for (int b = 0; b < BUCKETS; b++) {
+
+            histogram.set(b, 0);
+
+        }
+
+        for (int t = 0; t < 4; t++) {
+
+            totals.set(t, 0);
+
+        }
+
+    }
+
+    // Registers the metrics with the platform MBean server as src:type=StepMetrics,name=<name>.
+    public synchronized void register(String name) throws JMException {
+
+        ObjectName objectName = new ObjectName("src:type=StepMetrics,name=" + ObjectName.quote(name));
+
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+
+        this.name = objectName;
+
+    }
+
+    public synchronized void unregister() throws JMException {
+
+        if (name != null) {
+
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+            server.unregisterMBean(name);
+
+            name = null;
+
+        }
+
+    }
+
+    // The bucket of a latency, the first 1 << SUB_BITS values get a bucket each, after that every power of two is split in 1 << SUB_BITS.
+    static int bucket(long nanos) {
+
+        if (nanos < (1 << SUB_BITS)) {
+
+            return (int) Math.max(0, nanos);
+
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+
+        return ((exponent - SUB_BITS + 1) << SUB_BITS) + (int) ((nanos >>> (exponent - SUB_BITS)) & ((1 << SUB_BITS) - 1));
+
+    }
+
+    // The largest latency that falls in the given bucket.
+    static long upperBound(int bucket) {
+
+        if (bucket < (1 << SUB_BITS)) {
+
+            return bucket;
+
+        }
+
+        int exponent = (bucket >> SUB_BITS) + SUB_BITS - 1;
+
+        long lower = (long) ((1 << SUB_BITS) + (bucket & ((1 << SUB_BITS) - 1))) << (exponent - SUB_BITS);
+
+        return lower + (1L << (exponent - SUB_BITS)) - 1;
+
+    }
+
+}
@@ -0,0 +1,41 @@
+package src;
+
+/**
+ * The management interface of StepMetrics, so the metrics of a running model can be watched with JConsole
+ * or any other JMX client. All times are in nanoseconds.
+ */
+public interface StepMetricsMBean {
+
+    long getSteps();
+
+    long getTimedSteps();
+
+    long getIntegrateNanos();
+
+    long getBroadPhaseNanos();
+
+    long getBallCollisionNanos();
+
+    long getWallCollisionNanos();
+
+    long getGravityNanos();
+
+    long getPairsTested();
+
+    long getCollisions();
+
+    long getOverlapCorrections();
+
+    long getWallHits();
+
+    double getMeanStepNanos();
+
+    long getMaxStepNanos();
+
+    long getStepNanosP50();
+
+    long getStepNanosP99();
+
+    void reset();
+
+}
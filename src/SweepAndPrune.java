@@ -0,0 +1,217 @@
+package src;
+
+import java.util.Arrays;
+
+/**
+ * Sort and sweep broad phase along the x-axis.
+ *
+ * The balls are kept sorted by the left edge of their extent on the x-axis (x - radius). Two balls can only touch
+ * if their extents overlap, so the candidates of a ball are found by walking outwards from it in the sorted order
+ * until the extents stop overlapping. Unlike a grid this works equally well for any mix of radii.
+ *
+ * The order is kept between steps. Balls only move a little per step, so the order is almost sorted already and
+ * insertion sort repairs it in close to O(n). During a step a ball that has moved is moved to its new place in the
+ * order right away, which is O(1) for the same reason.
+ */
+final class SweepAndPrune implements NeighbourIndex {
+
+    private BallStore balls;
+
+    // The balls sorted by left edge, and the position of every ball in that order.
+    private int[] order = new int[0], rank = new int[0];
+
+    // The largest radius, it bounds how far to the left an overlapping ball can start.
+    private double maxRadius;
+
+    // Reused buffer for the candidates of a query.
+    private final SpatialHashGrid.Candidates candidates = new SpatialHashGrid.Candidates();
+
+    @Override
+    public void rebuild(BallStore balls) {
+
+        this.balls = balls;
+
+        int n = balls.size();
+
+        maxRadius = 0;
+
+        for (int i = 0; i < n; i++) {
+
+            maxRadius = Math.max(maxRadius, balls.radius[i]);
+
+        }
+
+        if (order.length != n) {
+
+            // New or different balls, there is no order to repair so sort from scratch. This only happens once.
+            Integer[] sorted = new Integer[n];
+
+            for (int i = 0; i < n; i++) {
+
+                sorted[i] = i;
+
+            }
+
+            Arrays.sort(sorted, (a, b) -> Double.compare(left(a), left(b)));
+
+            order = new int[n];
+
+            rank = new int[n];
+
+            for (int k = 0; k < n; k++) {
+
+                order[k] = sorted[k];
+
+            }
+
+        } else {
+
+            // Insertion sort, close to O(n) since the balls have barely moved since the last step.
+            for (int k = 1; k < n; k++) {
+
+                int i = order[k];
+
+                double key = left(i);
+
+                int m = k - 1;
+
+                while (m >= 0 && left(order[m]) > key) {
+
+                    order[m + 1] = order[m];
+
+                    m--;
+
+                }
+
+                order[m + 1] = i;
+
+            }
+
+        }
+
+        for (int k = 0; k < n; k++) {
+
+            rank[order[k]] = k;
+
+        }
+
+    }
+
+    // Moves the ball to its new place in the order.
+    @Override
+    public void update(int i) {
+
+        int n = balls.size();
+
+        int k = rank[i];
+
+        double key = left(i);
+
+        while (k > 0 && left(order[k - 1]) > key) {
+
+            order[k] = order[k - 1];
+
+            rank[order[k]] = k;
+
+            k--;
+
+        }
+
+        while (k < n - 1 && left(order[k + 1]) < key) {
+
+            order[k] = order[k + 1];
+
+            rank[order[k]] = k;
+
+            k++;
+
+        }
+
+        order[k] = i;
+
+        rank[i] = k;
+
+    }
+
+    // The balls whose extents overlap the extent of ball i on both axes.
+    @Override
+    public int query(int i) {
+
+        return query(i, 0);
+
+    }
+
+    // The same with the extent of ball i grown by reach on every side.
+    @Override
+    public int query(int i, double reach) {
+
+        double[] x = balls.x, y = balls.y, radius = balls.radius;
+
+        int[] found = candidates.indices;
+
+        int n = balls.size();
+
+        int k = rank[i];
+
+        double left = x[i] - radius[i] - reach;
+
+        double right = x[i] + radius[i] + reach;
+
+        int count = 0;
+
+        // To the right every ball starting before the right edge of i overlaps it.
+        for (int m = k + 1; m < n && left(order[m]) <= right; m++) {
+
+            int j = order[m];
+
+            if (Math.abs(y[j] - y[i]) <= radius[i] + radius[j] + reach) {
+
+                if (count == found.length) {
+
+                    found = candidates.indices = Arrays.copyOf(found, count * 2);
+
+                }
+
+                found[count++] = j;
+
+            }
+
+        }
+
+        // To the left a ball overlaps if it reaches the left edge of i, and none that starts a diameter further away can.
+        for (int m = k - 1; m >= 0 && left(order[m]) >= left - 2 * maxRadius; m--) {
+
+            int j = order[m];
+
+            if (x[j] + radius[j] >= left && Math.abs(y[j] - y[i]) <= radius[i] + radius[j] + reach) {
+
+                if (count == found.length) {
+
+                    found = candidates.indices = Arrays.copyOf(found, count * 2);
+
+                }
+
+                found[count++] = j;
+
+            }
+
+        }
+
+        return SpatialHashGrid.sortUnique(found, count);
+
+    }
+
+    @Override
+    public int[] candidates() {
+
+        return candidates.indices;
+
+    }
+
+    private double left(int i) {
+
+        return balls.x[i] - balls.radius[i];
+
+    }
+
+}
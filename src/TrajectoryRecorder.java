@@ -0,0 +1,230 @@
+package src;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Records the state of a simulation step by step into a compact binary file, see TrajectoryReplay to play it back.
+ *
+ * The file is written through a memory mapped window that moves forward as the file grows, so recording a frame
+ * is a series of puts into memory and the operating system writes the pages out in the background.
+ *
+ * Layout, all numbers big endian:
+ *
+ *   header   int magic "BBTR", int version, long reserved
+ *   frame    int magic "BBFR", long step, double time, int count, then count times
+ *            (int id, double x, y, vx, vy, radius, mass)
+ *   ...
+ *   index    long offset of every frame, long offset of the index, int frame count, int magic "BBIX"
+ *
+ * The index is written on close. A file without one (the recording was cut short) can still be replayed,
+ * the frames are then found by walking the file once. The magic number at the start of every frame tells real
+ * frames apart from the zeros the unused end of the last mapped window is filled with.
+ */
+public final class TrajectoryRecorder implements AutoCloseable {
+
+    static final int MAGIC = 0x42425452;
+
+    static final int FRAME_MAGIC = 0x42424652;
+
+    static final int INDEX_MAGIC = 0x42424958;
+
+    static final int VERSION = 2;
+
+    static final int HEADER_BYTES = 16;
+
+    static final int FRAME_HEADER_BYTES = 24;
+
+    static final int RECORD_BYTES = 52;
+
+    // Bytes after the frame offsets of the index.
+    static final int TRAILER_BYTES = 16;
+
+    // How much of the file is mapped at once, the window moves on when a frame does not fit anymore.
+    private static final long WINDOW = 64L << 20;
+
+    // Unsafe.invokeCleaner and the instance to call it on, null if this JVM does not have it, see unmap.
+    private static final Object UNSAFE;
+
+    private static final Method INVOKE_CLEANER;
+
+    static {
+
+        Object unsafe = null;
+
+        Method invokeCleaner = null;
+
+        try {
+
+            Class<?> type = Class.forName("sun.misc.Unsafe");
+
+            Field field = type.getDeclaredField("theUnsafe");
+
+            field.setAccessible(true);
+
+            unsafe = field.get(null);
+
+            invokeCleaner = type.getMethod("invokeCleaner", ByteBuffer.class);
+
+        } catch (ReflectiveOperationException | RuntimeException e) {
+
+            // Mappings are then released when the garbage collector gets to them.
+
+        }
+
+        UNSAFE = unsafe;
+
+        INVOKE_CLEANER = invokeCleaner;
+
+    }
+
+    private final FileChannel channel;
+
+    private MappedByteBuffer window;
+
+    // File offset of the start of the window.
+    private long windowStart;
+
+    // Where the next frame goes.
+    private long position = HEADER_BYTES;
+
+    private long[] frames = new long[1024];
+
+    private int frameCount;
+
+    public TrajectoryRecorder(Path file) throws IOException {
+
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).putInt(MAGIC).putInt(VERSION).putLong(0);
+
+        header.flip();
+
+        channel.write(header, 0);
+
+    }
+
+    // Appends the state of all balls as the next frame.
+    public void record(long step, double time, BallStore balls) throws IOException {
+
+        int n = balls.size();
+
+        long bytes = FRAME_HEADER_BYTES + (long) n * RECORD_BYTES;
+
+        // The window is indexed by int, a frame has to fit into one.
+        if (bytes > Integer.MAX_VALUE) {
+
+            throw new IOException("A frame of " + n + " balls takes " + bytes + " bytes, more than a window can map");
+
+        }
+
+        ensureMapped(bytes);
+
+        MappedByteBuffer w = window;
+
+        w.position((int) (position - windowStart));
+
+        w.putInt(FRAME_MAGIC).putLong(step).putDouble(time).putInt(n);
+
+        for (int i = 0; i < n; i++) {
+
+            w.putInt(balls.id[i]).putDouble(balls.x[i]).putDouble(balls.y[i]).putDouble(balls.vx[i])
+                .putDouble(balls.vy[i]).putDouble(balls.radius[i]).putDouble(balls.mass[i]);
+
+        }
+
+        if (frameCount == frames.length) {
+
+            frames = Arrays.copyOf(frames, frameCount * 2);
+
+        }
+
+        frames[frameCount++] = position;
+
+        position += bytes;
+
+    }
+
+    // The number of frames recorded so far.
+    public int frames() {
+
+        return frameCount;
+
+    }
+
+    // Writes the index, cuts the file to its real length and closes it.
+    @Override
+    public void close() throws IOException {
+
+        // A file cannot be cut while part of it is still mapped on every platform.
+        unmap(window);
+
+        window = null;
+
+        ByteBuffer index = ByteBuffer.allocate(frameCount * Long.BYTES + TRAILER_BYTES);
+
+        for (int f = 0; f < frameCount; f++) {
+
+            index.putLong(frames[f]);
+
+        }
+
+        index.putLong(position).putInt(frameCount).putInt(INDEX_MAGIC);
+
+        index.flip();
+
+        channel.truncate(position);
+
+        channel.write(index, position);
+
+        channel.close();
+
+    }
+
+    // Moves the window so that the next bytes bytes can be written at the current position.
+    private void ensureMapped(long bytes) throws IOException {
+
+        if (window != null && position + bytes <= windowStart + window.capacity()) {
+            return;
+        }
+
+        unmap(window);
+
+        windowStart = position;
+
+        // Mapping beyond the end of the file grows it, close cuts off whatever part of the last window is unused.
+        window = channel.map(FileChannel.MapMode.READ_WRITE, windowStart, Math.max(WINDOW, bytes));
+
+    }
+
+    /**
+     * Releases the mapping of the buffer right away instead of whenever it is garbage collected. The buffer must not
+     * be used afterwards. Does nothing if the buffer is null or the JVM offers no way to do it.
+     */
+    static void unmap(MappedByteBuffer buffer) {
+
+        if (buffer == null || INVOKE_CLEANER == null) {
+            return;
+        }
+
+        try {
+
+            INVOKE_CLEANER.invoke(UNSAFE, buffer);
+
+        } catch (ReflectiveOperationException e) {
+
+            // Left to the garbage collector.
+
+        }
+
+    }
+
+}
@@ -0,0 +1,333 @@
+package src;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static src.TrajectoryRecorder.FRAME_HEADER_BYTES;
+import static src.TrajectoryRecorder.FRAME_MAGIC;
+import static src.TrajectoryRecorder.HEADER_BYTES;
+import static src.TrajectoryRecorder.INDEX_MAGIC;
+import static src.TrajectoryRecorder.MAGIC;
+import static src.TrajectoryRecorder.RECORD_BYTES;
+import static src.TrajectoryRecorder.TRAILER_BYTES;
+import static src.TrajectoryRecorder.VERSION;
+
+/**
+ * Plays back a file written by TrajectoryRecorder, as a simulation the animator can draw.
+ *
+ * The file is read through a memory mapped window, so a frame goes straight from the page cache into the ball
+ * store without any intermediate copies or parsing beyond reading the numbers. Any frame can be reached directly
+ * through the frame index. Stepping moves the playback time forward and shows the last frame recorded at or before it,
+ * so the replay runs at the speed of the recording no matter how often it is stepped.
+ */
+public final class TrajectoryReplay implements Simulation, AutoCloseable {
+
+    // How much of the file is mapped at once.
+    private static final long WINDOW = 64L << 20;
+
+    private final FileChannel channel;
+
+    private final long size;
+
+    // File offset and recorded time of every frame.
+    private final long[] offsets;
+
+    private final double[] times;
+
+    private MappedByteBuffer window;
+
+    private long windowStart;
+
+    private final BallStore balls = new BallStore(0);
+
+    private int frame = -1;
+
+    private double time;
+
+    public TrajectoryReplay(Path file) throws IOException {
+
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+
+        size = channel.size();
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+
+        channel.read(header, 0);
+
+        header.flip();
+
+        if (size < HEADER_BYTES || header.getInt() != MAGIC) {
+
+            throw new IOException(file + " is not a trajectory file");
+
+        }
+
+        int version = header.getInt();
+
+        if (version != VERSION) {
+
+            throw new IOException("Unsupported trajectory version " + version);
+
+        }
+
+        long[] index = readIndex();
+
+        offsets = index != null ? index : scan();
+
+        times = new double[offsets.length];
+
+        for (int f = 0; f < offsets.length; f++) {
+
+            times[f] = map(offsets[f], FRAME_HEADER_BYTES).getDouble(12);
+
+        }
+
+        if (offsets.length > 0) {
+
+            seek(0);
+
+        }
+
+    }
+
+    // The number of frames in the file.
+    public int frames() {
+
+        return offsets.length;
+
+    }
+
+    // The frame currently in the ball store.
+    public int frame() {
+
+        return frame;
+
+    }
+
+    // The step number the frame was recorded at.
+    public long stepOf(int f) throws IOException {
+
+        return map(offsets[f], FRAME_HEADER_BYTES).getLong(4);
+
+    }
+
+    // Jumps to frame f, playback continues from the time it was recorded at.
+    public void seek(int f) throws IOException {
+
+        if (f < 0 || f >= offsets.length) {
+
+            throw new IndexOutOfBoundsException("Frame " + f + " out of bounds for " + offsets.length + " frames");
+
+        }
+
+        load(f);
+
+        time = times[f];
+
+    }
+
+    // Loads frame f into the ball store.
+    private void load(int f) throws IOException {
+
+        ByteBuffer head = map(offsets[f], FRAME_HEADER_BYTES);
+
+        int n = head.getInt(20);
+
+        ByteBuffer data = map(offsets[f] + FRAME_HEADER_BYTES, (long) n * RECORD_BYTES);
+
+        BallStore store = balls;
+
+        store.resize(n);
+
+        for (int i = 0; i < n; i++) {
+
+            store.id[i] = data.getInt();
+
+            store.x[i] = data.getDouble();
+
+            store.y[i] = data.getDouble();
+
+            store.vx[i] = data.getDouble();
+
+            store.vy[i] = data.getDouble();
+
+            store.radius[i] = data.getDouble();
+
+            store.mass[i] = data.getDouble();
+
+        }
+
+        frame = f;
+
+    }
+
+    // Advances the playback time and shows the last frame recorded at or before it. Stays on the last frame at the end.
+    @Override
+    public void step(double deltaT) {
+
+        if (offsets.length == 0) {
+            return;
+        }
+
+        time += deltaT;
+
+        int f = Arrays.binarySearch(times, time);
+
+        if (f < 0) {
+
+            // Not an exact hit, take the frame before the insertion point.
+            f = Math.max(0, -f - 2);
+
+        }
+
+        if (f != frame) {
+
+            try {
+
+                load(f);
+
+            } catch (IOException e) {
+
+                throw new IllegalStateException("Could not read frame " + f, e);
+
+            }
+
+        }
+
+    }
+
+    @Override
+    public BallStore balls() {
+
+        return balls;
+
+    }
+
+    @Override
+    public void close() throws IOException {
+
+        TrajectoryRecorder.unmap(window);
+
+        window = null;
+
+        channel.close();
+
+    }
+
+    // Reads the index at the end of the file, or returns null if the recording was not closed properly.
+    private long[] readIndex() throws IOException {
+
+        if (size < HEADER_BYTES + TRAILER_BYTES) {
+
+            return null;
+
+        }
+
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER_BYTES);
+
+        channel.read(trailer, size - TRAILER_BYTES);
+
+        trailer.flip();
+
+        long indexOffset = trailer.getLong();
+
+        int count = trailer.getInt();
+
+        if (trailer.getInt() != INDEX_MAGIC || indexOffset + (long) count * Long.BYTES + TRAILER_BYTES != size) {
+
+            return null;
+
+        }
+
+        long[] index = new long[count];
+
+        map(indexOffset, (long) count * Long.BYTES).asLongBuffer().get(index);
+
+        return index;
+
+    }
+
+    // Finds the frames by walking from one frame header to the next, dropping a last frame that is cut off.
+    private long[] scan() throws IOException {
+
+        long[] found = new long[1024];
+
+        int count = 0;
+
+        long position = HEADER_BYTES;
+
+        while (position + FRAME_HEADER_BYTES <= size) {
+
+            ByteBuffer head = map(position, FRAME_HEADER_BYTES);
+
+            int n = head.getInt(20);
+
+            long end = position + FRAME_HEADER_BYTES + (long) n * RECORD_BYTES;
+
+            if (head.getInt(0) != FRAME_MAGIC || n < 0 || end > size) {
+                break;
+            }
+
+            if (count == found.length) {
+
+                found = Arrays.copyOf(found, count * 2);
+
+            }
+
+            found[count++] = position;
+
+            position = end;
+
+        }
+
+        return Arrays.copyOf(found, count);
+
+    }
+
+    /**
+     * A buffer over bytes bytes of the file starting at offset, positioned at 0. Moves the window if needed, which
+     * releases the old one, so a buffer returned earlier must not be used after the next call.
+     */
+    private ByteBuffer map(long offset, long bytes) throws IOException {
+
+        // A window is indexed by int, one frame has to fit into it.
+        if (bytes > Integer.MAX_VALUE) {
+
+            throw new IOException("A frame of " + bytes + " bytes is larger than a window can map");
+
+        }
+
+        if (offset < 0 || offset + bytes > size) {
+
+            throw new IOException("Bytes " + offset + " to " + (offset + bytes) + " are beyond the end of the file");
+
+        }
+
+        if (window == null || offset < windowStart || offset + bytes > windowStart + window.capacity()) {
+
+            TrajectoryRecorder.unmap(window);
+
+            window = null;
+
+            windowStart = offset;
+
+            window = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(size - offset, Math.max(WINDOW, bytes)));
+
+        }
+
+        ByteBuffer view = window.duplicate();
+
+        view.position((int) (offset - windowStart));
+
+        view.limit((int) (offset - windowStart + bytes));
+
+        return view.slice();
+
+    }
+
+}
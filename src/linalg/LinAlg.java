@@ -16,7 +16,7 @@ public class LinAlg {
 		double dy = y1 - y2;
 
 		// Calculate the distance between two Vector2ds using the pythagorean theorem.
-		return Math.sqrt(Math.pow(dx, 2) + Math.pow(dy, 2));
+		return Math.sqrt(dx * dx + dy * dy);
 	}
 
 
@@ -54,6 +54,32 @@ public class LinAlg {
 		return new Vector2d(v1.x + v2.x, v1.y + v2.y);
 
 	}
+
+	/*
+	 * The variants below write their result into out instead of allocating a new vector, and return out
+	 * so calls can be nested. out may be one of the arguments.
+	 */
+
+	// Multiply a vector by a scalar, into out.
+	public static Vector2d vMul(Vector2d v, double d, Vector2d out) {
+
+		return out.set(v.x * d, v.y * d);
+
+	}
+
+	// Subtract a vector from another vector, into out.
+	public static Vector2d vSub(Vector2d v1, Vector2d v2, Vector2d out) {
+
+		return out.set(v1.x - v2.x, v1.y - v2.y);
+
+	}
+
+	// Add two vectors together, into out.
+	public static Vector2d vAdd(Vector2d v1, Vector2d v2, Vector2d out) {
+
+		return out.set(v1.x + v2.x, v1.y + v2.y);
+
+	}
 	
 
 }
@@ -23,6 +23,13 @@ public class Vector2d {
         this.y = p.y;
     }
 
+    // Overwrite the components of the vector, returns the vector itself.
+    public Vector2d set(double x, double y) {
+        this.x = x;
+        this.y = y;
+        return this;
+    }
+
     // Normalize the vector.
     public void normalize() {
         
@@ -0,0 +1,149 @@
+package src.simd;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+import src.BallStore;
+import src.PerBallKernel;
+
+/**
+ * The per ball stages with the Vector API, as many balls at a time as the CPU has lanes for doubles.
+ *
+ * The walls and gravity are masks over the lanes instead of branches: every lane computes the bounced and the
+ * unbounced state and the mask picks one. The operations are the same as in the scalar code, in the same order,
+ * so the results are identical. The balls left over after the last full vector go through the scalar code.
+ *
+ * Needs --add-modules jdk.incubator.vector to compile and to run, the model loads it only when the module is there.
+ */
+public final class VectorPerBallKernel implements PerBallKernel {
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    @Override
+    public void integrate(BallStore balls, double[] oldX, double[] oldY, int from, int to, double deltaT) {
+
+        double[] x = balls.x, y = balls.y, vx = balls.vx, vy = balls.vy;
+
+        int i = from;
+
+        for (int upper = from + SPECIES.loopBound(to - from); i < upper; i += SPECIES.length()) {
+
+            DoubleVector px = DoubleVector.fromArray(SPECIES, x, i);
+
+            DoubleVector py = DoubleVector.fromArray(SPECIES, y, i);
+
+            px.intoArray(oldX, i);
+
+            py.intoArray(oldY, i);
+
+            px.add(DoubleVector.fromArray(SPECIES, vx, i).mul(deltaT)).intoArray(x, i);
+
+            py.add(DoubleVector.fromArray(SPECIES, vy, i).mul(deltaT)).intoArray(y, i);
+
+        }
+
+        for (; i < to; i++) {
+
+            oldX[i] = x[i];
+
+            oldY[i] = y[i];
+
+            x[i] += deltaT * vx[i];
+
+            y[i] += deltaT * vy[i];
+
+        }
+
+    }
+
+    @Override
+    public int bounce(BallStore balls, double[] oldX, double[] oldY, int from, int to, double width, double height,
+        boolean gravity, double gravityStep) {
+
+        double[] x = balls.x, y = balls.y, vx = balls.vx, vy = balls.vy, radius = balls.radius;
+
+        int hits = 0;
+
+        int i = from;
+
+        for (int upper = from + SPECIES.loopBound(to - from); i < upper; i += SPECIES.length()) {
+
+            DoubleVector r = DoubleVector.fromArray(SPECIES, radius, i);
+
+            DoubleVector px = DoubleVector.fromArray(SPECIES, x, i);
+
+            DoubleVector py = DoubleVector.fromArray(SPECIES, y, i);
+
+            DoubleVector sx = DoubleVector.fromArray(SPECIES, vx, i);
+
+            DoubleVector sy = DoubleVector.fromArray(SPECIES, vy, i);
+
+            // Lanes touching the left or right wall, then the floor or the ceiling.
+            VectorMask<Double> hitX = px.compare(VectorOperators.LE, r).or(px.compare(VectorOperators.GE, r.neg().add(width)));
+
+            px = px.blend(DoubleVector.fromArray(SPECIES, oldX, i), hitX);
+
+            sx = sx.blend(sx.neg(), hitX);
+
+            VectorMask<Double> hitY = py.compare(VectorOperators.LE, r).or(py.compare(VectorOperators.GE, r.neg().add(height)));
+
+            py = py.blend(DoubleVector.fromArray(SPECIES, oldY, i), hitY);
+
+            sy = sy.blend(sy.neg(), hitY);
+
+            if (gravity) {
+
+                sy = sy.lanewise(VectorOperators.SUB, gravityStep, py.compare(VectorOperators.GT, r));
+
+            }
+
+            px.intoArray(x, i);
+
+            py.intoArray(y, i);
+
+            sx.intoArray(vx, i);
+
+            sy.intoArray(vy, i);
+
+            hits += hitX.trueCount() + hitY.trueCount();
+
+        }
+
+        for (; i < to; i++) {
+
+            double r = radius[i];
+
+            if (x[i] <= r || x[i] >= width - r) {
+
+                x[i] = oldX[i];
+
+                vx[i] *= -1;
+
+                hits++;
+
+            }
+
+            if (y[i] <= r || y[i] >= height - r) {
+
+                y[i] = oldY[i];
+
+                vy[i] *= -1;
+
+                hits++;
+
+            }
+
+            if (gravity && y[i] > r) {
+
+                vy[i] -= gravityStep;
+
+            }
+
+        }
+
+        return hits;
+
+    }
+
+}
@@ -3,8 +3,37 @@ package tests;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import org.junit.Test;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+import javax.management.ObjectName;
 import src.Ball;
+import src.BallStore;
+import src.BroadPhase;
+import src.CollisionStream;
+import src.Ensemble;
+import src.EventDrivenModel;
+import src.FloatModel;
+import src.Invariants;
 import src.Model;
+import src.ModelCheckpoint;
+import src.PrecisionDrift;
+import src.Scene;
+import src.SceneFiles;
+import src.Scenes;
+import src.SlabModel;
+import src.StepMetrics;
+import src.TrajectoryRecorder;
+import src.TrajectoryReplay;
 
 public class BouncingBallsTest {
     
@@ -253,6 +282,1430 @@ public class BouncingBallsTest {
 
     }
 
+    @Test
+    // Test that the spatial hash broad phase gives the same trajectories as the all pairs loop.
+    public void testSpatialHashMatchesAllPairs() {
+
+        Ball[] reference = randomBalls(200, 42);
+
+        Ball[] hashed = randomBalls(200, 42);
+
+        Model referenceModel = new Model(reference, 10, 10, true, false);
+
+        Model hashedModel = new Model(hashed, 10, 10, true, false);
+
+        referenceModel.setBroadPhase(BroadPhase.ALL_PAIRS);
+
+        hashedModel.setBroadPhase(BroadPhase.SPATIAL_HASH);
+
+        for (int i = 0; i < 2000; i++) {
+
+            referenceModel.step(1.0 / 60);
+
+            hashedModel.step(1.0 / 60);
+
+        }
+
+        // Both broad phases feed the same pairs to the narrow phase in the same order, so the results should be identical.
+        for (int i = 0; i < reference.length; i++) {
+
+            assertEquals(referenceModel.ball(i).x, hashedModel.ball(i).x, 0);
+
+            assertEquals(referenceModel.ball(i).y, hashedModel.ball(i).y, 0);
+
+            assertEquals(referenceModel.ball(i).vx, hashedModel.ball(i).vx, 0);
+
+            assertEquals(referenceModel.ball(i).vy, hashedModel.ball(i).vy, 0);
+
+        }
+
+    }
+
+    @Test
+    // Test that sweep and prune gives the same trajectories as the all pairs loop, with radii spread over an order of magnitude.
+    public void testSweepAndPruneMatchesAllPairs() {
+
+        Random random = new Random(5);
+
+        Ball[] reference = new Ball[300];
+
+        Ball[] swept = new Ball[300];
+
+        for (int i = 0; i < reference.length; i++) {
+
+            double radius = 0.02 + Math.pow(random.nextDouble(), 4) * 0.4;
+
+            double x = radius + random.nextDouble() * (10 - 2 * radius);
+
+            double y = radius + random.nextDouble() * (10 - 2 * radius);
+
+            double vx = random.nextDouble() * 2 - 1;
+
+            double vy = random.nextDouble() * 2 - 1;
+
+            reference[i] = new Ball(x, y, vx, vy, radius, radius * radius);
+
+            swept[i] = new Ball(x, y, vx, vy, radius, radius * radius);
+
+        }
+
+        Model referenceModel = new Model(reference, 10, 10, true, false);
+
+        Model sweptModel = new Model(swept, 10, 10, true, false);
+
+        referenceModel.setBroadPhase(BroadPhase.ALL_PAIRS);
+
+        sweptModel.setBroadPhase(BroadPhase.SWEEP_AND_PRUNE);
+
+        for (int i = 0; i < 2000; i++) {
+
+            referenceModel.step(1.0 / 60);
+
+            sweptModel.step(1.0 / 60);
+
+        }
+
+        for (int i = 0; i < reference.length; i++) {
+
+            assertEquals(referenceModel.ball(i).x, sweptModel.ball(i).x, 0);
+
+            assertEquals(referenceModel.ball(i).y, sweptModel.ball(i).y, 0);
+
+            assertEquals(referenceModel.ball(i).vx, sweptModel.ball(i).vx, 0);
+
+            assertEquals(referenceModel.ball(i).vy, sweptModel.ball(i).vy, 0);
+
+        }
+
+    }
+
+    @Test
+    // Test that the AABB tree gives the same trajectories as the all pairs loop, and that its region query finds every ball in the region.
+    public void testAabbTreeMatchesAllPairs() {
+
+        Random random = new Random(23);
+
+        Ball[] reference = new Ball[300];
+
+        Ball[] treed = new Ball[300];
+
+        for (int i = 0; i < reference.length; i++) {
+
+            // Radii from 0.01 up to 1, most balls small and a few very large.
+            double radius = 0.01 * Math.pow(100, Math.pow(random.nextDouble(), 3));
+
+            double x = radius + random.nextDouble() * (10 - 2 * radius);
+
+            double y = radius + random.nextDouble() * (10 - 2 * radius);
+
+            double vx = random.nextDouble() * 2 - 1;
+
+            double vy = random.nextDouble() * 2 - 1;
+
+            reference[i] = new Ball(x, y, vx, vy, radius, radius * radius);
+
+            treed[i] = new Ball(x, y, vx, vy, radius, radius * radius);
+
+        }
+
+        Model referenceModel = new Model(reference, 10, 10, true, false);
+
+        Model treeModel = new Model(treed, 10, 10, true, false);
+
+        referenceModel.setBroadPhase(BroadPhase.ALL_PAIRS);
+
+        treeModel.setBroadPhase(BroadPhase.AABB_TREE);
+
+        for (int i = 0; i < 2000; i++) {
+
+            referenceModel.step(1.0 / 60);
+
+            treeModel.step(1.0 / 60);
+
+        }
+
+        for (int i = 0; i < reference.length; i++) {
+
+            assertEquals(referenceModel.ball(i).x, treeModel.ball(i).x, 0);
+
+            assertEquals(referenceModel.ball(i).y, treeModel.ball(i).y, 0);
+
+        }
+
+        // The region query should find exactly the balls a brute force check finds.
+        int[] found = treeModel.ballsIn(2, 3, 6, 5);
+
+        int expected = 0;
+
+        for (int i = 0; i < reference.length; i++) {
+
+            Ball b = treeModel.ball(i);
+
+            double dx = b.x - Math.max(2, Math.min(b.x, 6));
+
+            double dy = b.y - Math.max(3, Math.min(b.y, 5));
+
+            if (dx * dx + dy * dy <= b.radius * b.radius) {
+
+                assertEquals(i, found[expected++]);
+
+            }
+
+        }
+
+        assertEquals(expected, found.length);
+
+    }
+
+    @Test
+    // Test that balls resting on the floor fall asleep and that a falling ball wakes the one it lands on.
+    public void testSleepingBalls() {
+
+        Ball[] balls = new Ball[21];
+
+        for (int i = 0; i < 20; i++) {
+
+            balls[i] = new Ball(0.5 + i * 0.4, 0.1, 0, 0, 0.1, 1);
+
+        }
+
+        // Lands on the first resting ball after about a second.
+        balls[20] = new Ball(0.5, 5, 0, 0, 0.1, 1);
+
+        Model model = new Model(balls, 10, 10, true, false);
+
+        model.setSleeping(0.5, 30);
+
+        for (int i = 0; i < 45; i++) {
+
+            model.step(1.0 / 60);
+
+        }
+
+        assertEquals(20, model.sleepers());
+
+        boolean woken = false;
+
+        for (int i = 0; i < 90; i++) {
+
+            model.step(1.0 / 60);
+
+            woken |= !model.isAsleep(0);
+
+        }
+
+        assertTrue(woken);
+
+        // The other resting balls were never touched and stay asleep where they were.
+        for (int i = 1; i < 20; i++) {
+
+            assertTrue(model.isAsleep(i));
+
+            assertEquals(0.5 + i * 0.4, model.ball(i).x, 0);
+
+        }
+
+    }
+
+    @Test
+    // Test that the vectorised per ball stages of the step pool give exactly the same result as the scalar ones.
+    public void testVectorizedStagesMatchScalar() {
+
+        Model vector = new Model(randomBalls(1000, 29), 10, 10, true, false);
+
+        Model scalar = new Model(randomBalls(1000, 29), 10, 10, true, false);
+
+        ForkJoinPool pool = new ForkJoinPool(1);
+
+        try {
+
+            vector.setStepPool(pool);
+
+            scalar.setStepPool(pool);
+
+            // Without the Vector API both models use the scalar stages and the test is trivially true.
+            vector.setVectorized(true);
+
+            scalar.setVectorized(false);
+
+            for (int i = 0; i < 300; i++) {
+
+                vector.step(1.0 / 60);
+
+                scalar.step(1.0 / 60);
+
+            }
+
+            for (int i = 0; i < 1000; i++) {
+
+                assertEquals(scalar.balls.x[i], vector.balls.x[i], 0);
+
+                assertEquals(scalar.balls.y[i], vector.balls.y[i], 0);
+
+                assertEquals(scalar.balls.vx[i], vector.balls.vx[i], 0);
+
+                assertEquals(scalar.balls.vy[i], vector.balls.vy[i], 0);
+
+            }
+
+        } finally {
+
+            pool.shutdown();
+
+        }
+
+    }
+
+    @Test
+    // Test that the single precision model conserves energy and momentum nearly as well as the double precision one.
+    public void testFloatModeDrift() {
+
+        double deltaT = 1.0 / 60;
+
+        // The two balls of the long running conservation tests, with a time step that actually moves them.
+        PrecisionDrift.Drift single = PrecisionDrift.measure(new FloatModel(PrecisionDrift.twoBalls(), 10, 10, false), 100000, deltaT);
+
+        PrecisionDrift.Drift full = PrecisionDrift.measure(new Model(PrecisionDrift.twoBalls(), 10, 10, false, false), 100000, deltaT);
+
+        assertTrue(full.energy < 1e-12);
+
+        assertTrue(single.energy < 1e-4);
+
+        // A cloud that never reaches the walls, so the momentum is conserved as well.
+        BallStore cloud = PrecisionDrift.cloud(300, 2000 * deltaT, 7);
+
+        double side = PrecisionDrift.cloudArea(cloud, 2000 * deltaT);
+
+        FloatModel model = new FloatModel(cloud, side, side, false);
+
+        PrecisionDrift.Drift open = PrecisionDrift.measure(model, 2000, deltaT);
+
+        assertTrue(open.energy < 1e-4);
+
+        assertTrue(open.momentum < 1e-5);
+
+        // Rendering reads the balls in double precision.
+        assertEquals(300, model.balls().size());
+
+        assertEquals(model.balls.vx[0], model.balls().vx[0], 0);
+
+    }
+
+    @Test
+    // Test that continuous collisions stop a fast ball from jumping over another one, and leave slow balls alone.
+    public void testContinuousCollisions() {
+
+        // A small ball moving 10 m per step, four meters away from a ball at rest.
+        Ball[] jumping = { new Ball(1, 5, 100, 0, 0.05, 1), new Ball(5, 5, 0, 0, 0.05, 1) };
+
+        Model discrete = new Model(jumping, 10, 10, false, false);
+
+        discrete.step(0.1);
+
+        // Without them the fast ball jumps into the wall and back and never touches the other one.
+        assertEquals(0, discrete.ball(1).vx, 0);
+
+        Ball[] swept = { new Ball(1, 5, 100, 0, 0.05, 1), new Ball(5, 5, 0, 0, 0.05, 1) };
+
+        Model continuous = new Model(swept, 10, 10, false, false);
+
+        continuous.setContinuous(true);
+
+        double kineticEnergyBefore = kineticEnergy(continuous.ball(0)) + kineticEnergy(continuous.ball(1));
+
+        for (int i = 0; i < 100; i++) {
+
+            continuous.step(0.1);
+
+            // The balls take turns being hit, but never pass each other or leave the area.
+            assertTrue(continuous.ball(0).x < continuous.ball(1).x);
+
+            assertTrue(continuous.ball(0).x >= 0.05 && continuous.ball(1).x <= 9.95);
+
+        }
+
+        assertEquals(kineticEnergyBefore, kineticEnergy(continuous.ball(0)) + kineticEnergy(continuous.ball(1)), d);
+
+        // Balls that move less than their radius in a step take the ordinary step.
+        for (BroadPhase broadPhase : BroadPhase.values()) {
+
+            Ball[] reference = randomBalls(200, 19);
+
+            Ball[] slow = randomBalls(200, 19);
+
+            Model referenceModel = new Model(reference, 10, 10, false, false);
+
+            Model slowModel = new Model(slow, 10, 10, false, false);
+
+            referenceModel.setBroadPhase(broadPhase);
+
+            slowModel.setBroadPhase(broadPhase);
+
+            slowModel.setContinuous(true);
+
+            for (int i = 0; i < 600; i++) {
+
+                referenceModel.step(1.0 / 600);
+
+                slowModel.step(1.0 / 600);
+
+            }
+
+            for (int i = 0; i < 200; i++) {
+
+                assertEquals(referenceModel.ball(i).x, slowModel.ball(i).x, 0);
+
+                assertEquals(referenceModel.ball(i).vy, slowModel.ball(i).vy, 0);
+
+            }
+
+        }
+
+    }
+
+    @Test
+    // Test the lateral collision of a moving and a stationary ball in the event driven model.
+    public void testEventDrivenLateralCollision() {
+
+        Ball[] balls = new Ball[2];
+
+        balls[0] = new Ball(4, 5, 1, 0, 0.5, 1);
+
+        balls[1] = new Ball(6, 5, 0, 0, 0.5, 1);
+
+        EventDrivenModel model = new EventDrivenModel(balls, 10, 10);
+
+        // The balls touch after exactly one second, the first one should stop and the second one take over its speed.
+        model.step(1.5);
+
+        assertEquals(0, model.balls().vx[0], 1e-12);
+
+        assertEquals(1, model.balls().vx[1], 1e-12);
+
+        // Half a second after the collision the second ball has moved half a meter from the contact point.
+        assertEquals(5, model.balls().x[0], 1e-12);
+
+        assertEquals(6.5, model.balls().x[1], 1e-12);
+
+    }
+
+    @Test
+    // Test if kinetic energy is conserved in a long event driven simulation with many balls.
+    public void testEventDrivenEnergyConservation() {
+
+        EventDrivenModel model = new EventDrivenModel(randomBalls(100, 11), 10, 10);
+
+        double kineticEnergyBefore = 0;
+
+        for (int i = 0; i < 100; i++) {
+
+            kineticEnergyBefore += kineticEnergy(model.balls().get(i));
+
+        }
+
+        for (int i = 0; i < 6000; i++) {
+
+            model.step(1.0 / 60);
+
+        }
+
+        double kineticEnergyAfter = 0;
+
+        for (int i = 0; i < 100; i++) {
+
+            kineticEnergyAfter += kineticEnergy(model.balls().get(i));
+
+        }
+
+        assertTrue(model.collisions() > 0);
+
+        assertEquals(kineticEnergyBefore, kineticEnergyAfter, 1e-9);
+
+    }
+
+    @Test
+    // Test that the event driven model misses no collision in a larger scene, where it only looks at neighbouring cells.
+    public void testEventDrivenLargeScene() {
+
+        BallStore balls = Scenes.gas(3000, 17, 17, 0.05, 1);
+
+        Scenes.separate(balls, 17, 17, 100);
+
+        assertEquals(0, Scenes.overlaps(balls));
+
+        double before = balls.kineticEnergy();
+
+        EventDrivenModel model = new EventDrivenModel(balls, 17, 17);
+
+        for (int i = 0; i < 300; i++) {
+
+            model.step(1.0 / 60);
+
+        }
+
+        // A collision missed would leave two balls passing through each other.
+        assertTrue(model.collisions() > 10000);
+
+        assertEquals(0, Scenes.overlaps(balls));
+
+        assertEquals(before, balls.kineticEnergy(), 1e-9 * before);
+
+    }
+
+    @Test
+    // Test that closing a model made with debug info stops the printer thread of its debug channel.
+    public void testCloseStopsDebugPrinter() {
+
+        Model model = new Model(new Ball[] { new Ball(1, 1, 1, 0, 0.1, 1) }, 10, 10, false, true);
+
+        assertTrue(debugPrinters() > 0);
+
+        model.step(1.0 / 60);
+
+        model.close();
+
+        assertEquals(0, debugPrinters());
+
+        assertTrue(model.getDebugChannel() == null);
+
+    }
+
+    @Test
+    // Test that an ensemble gives every run the same result as running it alone, with no more models alive than allowed.
+    public void testEnsemble() throws InterruptedException {
+
+        // Two balls heading for each other, with the mass of the second ball growing with the run.
+        IntFunction<Model> scenes = run -> {
+
+            Ball[] balls = { new Ball(3, 5, 1, 0.2, 0.15, 1), new Ball(7, 5, -1, 0.1, 0.30, 1 + run % 10) };
+
+            return new Model(balls, 10, 10, false, false);
+
+        };
+
+        Model[] alone = new Model[50];
+
+        for (int run = 0; run < 50; run++) {
+
+            alone[run] = scenes.apply(run);
+
+            for (int i = 0; i < 2000; i++) {
+
+                alone[run].step(1.0 / 60);
+
+            }
+
+        }
+
+        AtomicInteger running = new AtomicInteger(), mostRunning = new AtomicInteger();
+
+        Ensemble.Result[] results = new Ensemble.Result[50];
+
+        Ensemble ensemble = new Ensemble(new ForkJoinPool(4), 3);
+
+        // The scenes are built on the pool threads, yet every ball should get an id of its own.
+        Set<Integer> ids = ConcurrentHashMap.newKeySet();
+
+        Ensemble.Summary summary = ensemble.run(50, run -> {
+
+            mostRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+
+            Model model = scenes.apply(run);
+
+            for (int i = 0; i < model.balls.size(); i++) {
+
+                ids.add(model.balls.id[i]);
+
+            }
+
+            return model;
+
+        }, 2000, 1.0 / 60, result -> {
+
+            running.decrementAndGet();
+
+            results[result.run] = result;
+
+        });
+
+        assertEquals(50, summary.runs());
+
+        assertEquals(100, ids.size());
+
+        assertTrue(mostRunning.get() <= 3);
+
+        double energy = 0;
+
+        for (int run = 0; run < 50; run++) {
+
+            energy += results[run].energy;
+
+            assertEquals(kineticEnergy(alone[run].ball(0)) + kineticEnergy(alone[run].ball(1)), results[run].energy, 0);
+
+            assertEquals(momentum(alone[run].ball(0)) + momentum(alone[run].ball(1)), results[run].momentum, 1e-12);
+
+        }
+
+        assertEquals(energy, summary.energy.getSum(), 1e-9);
+
+        assertTrue(summary.collisions() > 0 && summary.wallHits() > 0);
+
+    }
+
+    @Test
+    // Test that the collision stream delivers every contact, and drops or waits as asked when a consumer falls behind.
+    public void testCollisionStream() throws InterruptedException {
+
+        Model model = new Model(randomBalls(200, 21), 10, 10, true, false);
+
+        StepMetrics metrics = new StepMetrics();
+
+        model.setMetrics(metrics);
+
+        // A ring too small for the contacts of a step, emptied by a consumer thread while the model waits for it.
+        CollisionStream blocking = new CollisionStream(64, CollisionStream.Overflow.BLOCK);
+
+        model.setCollisionStream(blocking);
+
+        CollisionStream.Subscription subscription = blocking.subscribe();
+
+        long[] received = new long[3];
+
+        AtomicBoolean done = new AtomicBoolean();
+
+        Thread consumer = new Thread(() -> {
+
+            while (!done.get() || subscription.lag() > 0) {
+
+                subscription.poll((step, time, a, b, impulse, x, y) -> {
+
+                    received[b == CollisionStream.WALL_X || b == CollisionStream.WALL_Y ? 1 : 0]++;
+
+                    // A ball can be partly past a wall before it bounces, but never by more than its diameter.
+                    if (x < -0.3 || x > 10.3 || y < -0.3 || y > 10.3 || impulse < 0) {
+                        received[2]++;
+                    }
+
+                }, 16);
+
+            }
+
+        });
+
+        consumer.start();
+
+        for (int i = 0; i < 200; i++) {
+
+            model.step(1.0 / 60);
+
+        }
+
+        done.set(true);
+
+        consumer.join();
+
+        subscription.close();
+
+        assertEquals(metrics.count(StepMetrics.Counter.COLLISIONS), received[0]);
+
+        assertEquals(metrics.count(StepMetrics.Counter.WALL_HITS), received[1]);
+
+        assertEquals(0, received[2]);
+
+        assertEquals(0, blocking.dropped());
+
+        // Without anybody reading, a dropping ring keeps the first events and drops the rest.
+        CollisionStream dropping = new CollisionStream(64, CollisionStream.Overflow.DROP);
+
+        CollisionStream sampling = new CollisionStream(64, CollisionStream.Overflow.SAMPLE, 4);
+
+        CollisionStream.Subscription slow = dropping.subscribe();
+
+        CollisionStream.Subscription sampled = sampling.subscribe();
+
+        model.setCollisionStream(dropping);
+
+        for (int i = 0; i < 10; i++) {
+
+            model.step(1.0 / 60);
+
+        }
+
+        assertEquals(64, slow.lag());
+
+        assertTrue(dropping.dropped() > 0);
+
+        assertEquals(16, slow.poll((step, time, a, b, impulse, x, y) -> { }, 16));
+
+        assertEquals(48, slow.lag());
+
+        model.setCollisionStream(sampling);
+
+        model.step(1.0 / 60);
+
+        // Sampling fills the first half of the ring with every event and the second half with every fourth.
+        assertTrue(sampled.lag() > 32 && sampled.lag() < 64);
+
+        for (int i = 0; i < 10; i++) {
+
+            model.step(1.0 / 60);
+
+        }
+
+        assertEquals(64, sampled.lag());
+
+        assertTrue(sampling.dropped() > 0);
+
+    }
+
+    @Test
+    // Test that scenes read back from CSV and binary files are exactly the scenes written, and that overlaps are found.
+    public void testSceneFiles() throws IOException {
+
+        BallStore balls = BallStore.of(randomBalls(500, 23));
+
+        // Numbers the fast path of the CSV parser does not take.
+        balls.x[0] = 0.1 + 0.2;
+
+        balls.vx[0] = -1e-300;
+
+        balls.vy[0] = -0.0;
+
+        Scene scene = new Scene(balls, 10, 10);
+
+        Path csv = Files.createTempFile("scene", ".csv");
+
+        Path binary = Files.createTempFile("scene", ".bbsc");
+
+        try {
+
+            SceneFiles.writeCsv(scene, csv);
+
+            SceneFiles.writeBinary(scene, binary);
+
+            for (Scene read : new Scene[] { SceneFiles.read(csv), SceneFiles.read(binary) }) {
+
+                assertEquals(10, read.width, 0);
+
+                assertEquals(10, read.height, 0);
+
+                assertEquals(500, read.balls.size());
+
+                for (int i = 0; i < 500; i++) {
+
+                    assertEquals(Double.doubleToLongBits(balls.x[i]), Double.doubleToLongBits(read.balls.x[i]));
+
+                    assertEquals(Double.doubleToLongBits(balls.y[i]), Double.doubleToLongBits(read.balls.y[i]));
+
+                    assertEquals(Double.doubleToLongBits(balls.vx[i]), Double.doubleToLongBits(read.balls.vx[i]));
+
+                    assertEquals(Double.doubleToLongBits(balls.vy[i]), Double.doubleToLongBits(read.balls.vy[i]));
+
+                    assertEquals(Double.doubleToLongBits(balls.radius[i]), Double.doubleToLongBits(read.balls.radius[i]));
+
+                    assertEquals(Double.doubleToLongBits(balls.mass[i]), Double.doubleToLongBits(read.balls.mass[i]));
+
+                }
+
+            }
+
+            // Without an area the scene is as large as the balls, a bad line is reported with its number.
+            Files.write(csv, "# two balls\n1, 1, 0, 0, 0.5, 1\r\n2.5,3,0,0,0.5,1\n".getBytes());
+
+            Scene read = SceneFiles.read(csv);
+
+            assertEquals(2, read.balls.size());
+
+            assertEquals(3, read.width, 0);
+
+            assertEquals(3.5, read.height, 0);
+
+            Files.write(csv, "x,y,vx,vy,radius,mass\n1,1,0,0,0.5,1\n1,1,0,0,0.5\n".getBytes());
+
+            boolean rejected = false;
+
+            try {
+
+                SceneFiles.read(csv);
+
+            } catch (IOException e) {
+
+                rejected = e.getMessage().contains("line 3");
+
+            }
+
+            assertTrue(rejected);
+
+        } finally {
+
+            Files.delete(csv);
+
+            Files.delete(binary);
+
+        }
+
+        // The random balls overlap, pushing them apart should leave none that do.
+        assertTrue(Scenes.overlaps(balls) > 0);
+
+        boolean rejected = false;
+
+        try {
+
+            Scenes.rejectOverlaps(balls);
+
+        } catch (IllegalArgumentException e) {
+
+            rejected = true;
+
+        }
+
+        assertTrue(rejected);
+
+        assertEquals(0, Scenes.separate(balls, 10, 10, 100));
+
+        Scenes.rejectOverlaps(balls);
+
+        assertEquals(0, Scenes.overlaps(Scenes.pile(1000, 5, 5, 0.05, 1)));
+
+    }
+
+    @Test
+    // Test that a recorded run can be replayed from any step with exactly the recorded positions.
+    public void testTrajectoryRoundTrip() throws IOException {
+
+        Path file = Files.createTempFile("trajectory", ".bbtr");
+
+        Model model = new Model(randomBalls(50, 13), 10, 10, true, false);
+
+        double[][] x = new double[100][];
+
+        try (TrajectoryRecorder recorder = new TrajectoryRecorder(file)) {
+
+            for (int i = 0; i < 100; i++) {
+
+                recorder.record(i, i / 60.0, model.balls);
+
+                x[i] = model.balls.x.clone();
+
+                model.step(1.0 / 60);
+
+            }
+
+        }
+
+        try (TrajectoryReplay replay = new TrajectoryReplay(file)) {
+
+            assertEquals(100, replay.frames());
+
+            // Seek backwards and forwards, every frame should come back bit for bit.
+            for (int f : new int[] {99, 0, 42, 41, 77}) {
+
+                replay.seek(f);
+
+                assertEquals(f, replay.stepOf(f));
+
+                for (int i = 0; i < 50; i++) {
+
+                    assertEquals(x[f][i], replay.balls().x[i], 0);
+
+                    assertEquals(model.balls.mass[i], replay.balls().mass[i], 0);
+
+                }
+
+            }
+
+        } finally {
+
+            Files.delete(file);
+
+        }
+
+    }
+
+    @Test
+    // Test that a restored checkpoint goes on bit for bit like the saved model, and that a corrupt file is rejected.
+    public void testCheckpointRestoresExactState() throws IOException {
+
+        Path file = Files.createTempFile("checkpoint", ".bbck");
+
+        // Without gravity the balls that start still fall asleep, until the others run into them.
+        Ball[] scene = randomBalls(200, 17);
+
+        for (int i = 0; i < scene.length; i += 2) {
+
+            scene[i].vx = 0;
+
+            scene[i].vy = 0;
+
+        }
+
+        Model model = new Model(scene, 10, 10, false, false);
+
+        model.setBroadPhase(BroadPhase.SWEEP_AND_PRUNE);
+
+        model.setContinuous(true);
+
+        model.setDeterministic(true);
+
+        model.setSleeping(0.5, 30);
+
+        for (int i = 0; i < 300; i++) {
+
+            model.step(1.0 / 60);
+
+        }
+
+        try {
+
+            ModelCheckpoint.save(model, file);
+
+            // Restoring leaves the ids handed out to new balls alone.
+            int id = new Ball(1, 1, 0, 0, 0.1, 1).id;
+
+            Model restored = ModelCheckpoint.restore(file);
+
+            assertEquals(id + 1, new Ball(1, 1, 0, 0, 0.1, 1).id);
+
+            assertEquals(model.steps(), restored.steps());
+
+            assertEquals(model.time(), restored.time(), 0);
+
+            assertEquals(BroadPhase.SWEEP_AND_PRUNE, restored.getBroadPhase());
+
+            assertTrue(restored.isContinuous() && restored.isDeterministic());
+
+            assertEquals(30, restored.getSleepSteps());
+
+            // Some balls sleep and some are still calming down, both should carry over.
+            assertTrue(model.sleepers() > 0 && model.sleepers() < 200);
+
+            assertEquals(model.sleepers(), restored.sleepers());
+
+            // Both models should go on exactly the same way, bit for bit.
+            for (int i = 0; i < 100; i++) {
+
+                model.step(1.0 / 60);
+
+                restored.step(1.0 / 60);
+
+            }
+
+            for (int i = 0; i < 200; i++) {
+
+                assertEquals(model.balls.id[i], restored.balls.id[i]);
+
+                assertEquals(model.balls.x[i], restored.balls.x[i], 0);
+
+                assertEquals(model.balls.y[i], restored.balls.y[i], 0);
+
+                assertEquals(model.balls.vx[i], restored.balls.vx[i], 0);
+
+                assertEquals(model.balls.vy[i], restored.balls.vy[i], 0);
+
+                assertEquals(model.isAsleep(i), restored.isAsleep(i));
+
+            }
+
+            // More balls than the file holds is a format error, not an attempt to allocate them.
+            try (java.nio.channels.FileChannel channel = java.nio.channels.FileChannel.open(file,
+                    java.nio.file.StandardOpenOption.WRITE)) {
+
+                channel.write(java.nio.ByteBuffer.wrap(new byte[] { -1, -1, -1, 127 }),
+                    4 + 4 + 8 + 8 + 4 + 4 + 4 + 8 + 4 + 8 + 8);
+
+            }
+
+            boolean tooMany = false;
+
+            try {
+
+                ModelCheckpoint.restore(file);
+
+            } catch (IOException e) {
+
+                tooMany = true;
+
+            }
+
+            assertTrue(tooMany);
+
+            // A broad phase that does not exist is a format error like any other.
+            try (java.nio.channels.FileChannel channel = java.nio.channels.FileChannel.open(file,
+                    java.nio.file.StandardOpenOption.WRITE)) {
+
+                channel.write(java.nio.ByteBuffer.wrap(new byte[] { 99, 0, 0, 0 }), 4 + 4 + 8 + 8 + 4);
+
+            }
+
+            boolean rejected = false;
+
+            try {
+
+                ModelCheckpoint.restore(file);
+
+            } catch (IOException e) {
+
+                rejected = true;
+
+            }
+
+            assertTrue(rejected);
+
+        } finally {
+
+            Files.delete(file);
+
+        }
+
+    }
+
+    @Test
+    // Test that a scene split over worker processes runs like the same scene in one model, and that thin slabs fail.
+    public void testSlabModel() throws IOException {
+
+        Ball[] scene = randomBalls(400, 29);
+
+        Model single = new Model(scene, 10, 10, true, false);
+
+        try (SlabModel slabs = new SlabModel(BallStore.of(scene), 10, 10, true, 2)) {
+
+            for (int i = 0; i < 120; i++) {
+
+                single.step(1.0 / 60);
+
+                slabs.step(1.0 / 60);
+
+            }
+
+            BallStore balls = slabs.balls();
+
+            assertEquals(400, balls.size());
+
+            // The balls crossed the edges of the slabs, yet every one is where it is in the single model.
+            for (int i = 0; i < 400; i++) {
+
+                assertEquals(single.balls.id[i], balls.id[i]);
+
+                assertEquals(single.balls.x[i], balls.x[i], 0);
+
+                assertEquals(single.balls.y[i], balls.y[i], 0);
+
+                assertEquals(single.balls.vx[i], balls.vx[i], 0);
+
+                assertEquals(single.balls.vy[i], balls.vy[i], 0);
+
+            }
+
+        }
+
+        // With the indices in the order of x the ghosts from the right come in behind the owned balls already sorted.
+        Ball[] ordered = randomBalls(400, 31);
+
+        Arrays.sort(ordered, (a, b) -> Double.compare(a.x, b.x));
+
+        Model orderedSingle = new Model(ordered, 10, 10, true, false);
+
+        try (SlabModel slabs = new SlabModel(BallStore.of(ordered), 10, 10, true, 2)) {
+
+            for (int i = 0; i < 120; i++) {
+
+                orderedSingle.step(1.0 / 60);
+
+                slabs.step(1.0 / 60);
+
+            }
+
+            BallStore balls = slabs.balls();
+
+            for (int i = 0; i < 400; i++) {
+
+                assertEquals(orderedSingle.balls.x[i], balls.x[i], 0);
+
+                assertEquals(orderedSingle.balls.y[i], balls.y[i], 0);
+
+                assertEquals(orderedSingle.balls.vx[i], balls.vx[i], 0);
+
+                assertEquals(orderedSingle.balls.vy[i], balls.vy[i], 0);
+
+            }
+
+        }
+
+        boolean rejected = false;
+
+        try (SlabModel slabs = new SlabModel(BallStore.of(scene), 10, 10, true, 20)) {
+
+            slabs.step(1.0 / 60);
+
+        } catch (IllegalStateException e) {
+
+            rejected = true;
+
+        }
+
+        assertTrue(rejected);
+
+    }
+
+    @Test
+    // Test that once the model is warmed up a step does not allocate any memory, even when balls collide.
+    public void testStepDoesNotAllocate() {
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        long thread = Thread.currentThread().getId();
+
+        // A dense scene so that there are plenty of collisions every step.
+        Model model = new Model(randomBalls(1000, 7), 10, 10, false, false);
+
+        // Warm up, this lets the broad phase size its buffers and the JIT compile the step.
+        for (int i = 0; i < 3000; i++) {
+
+            model.step(1.0 / 60);
+
+        }
+
+        // Measure the cost of the measurement itself so it can be subtracted.
+        long overhead = -threads.getThreadAllocatedBytes(thread) + threads.getThreadAllocatedBytes(thread);
+
+        long before = threads.getThreadAllocatedBytes(thread);
+
+        for (int i = 0; i < 1000; i++) {
+
+            model.step(1.0 / 60);
+
+        }
+
+        long allocated = threads.getThreadAllocatedBytes(thread) - before - overhead;
+
+        assertEquals(0, allocated);
+
+    }
+
+    @Test
+    // Test if kinetic energy is conserved when the step runs on several threads.
+    public void testParallelStepConservation() {
+
+        Model model = new Model(randomBalls(2000, 3), 10, 10, false, false);
+
+        model.setStepPool(new ForkJoinPool(4));
+
+        double kineticEnergyBefore = 0;
+
+        for (int i = 0; i < 2000; i++) {
+
+            kineticEnergyBefore += kineticEnergy(model.ball(i));
+
+        }
+
+        // Let the model run for a while.
+        for (int i = 0; i < 1000; i++) {
+
+            model.step(1.0 / 60);
+
+        }
+
+        double kineticEnergyAfter = 0;
+
+        for (int i = 0; i < 2000; i++) {
+
+            kineticEnergyAfter += kineticEnergy(model.ball(i));
+
+        }
+
+        assertEquals(kineticEnergyBefore, kineticEnergyAfter, d);
+
+    }
+
+    @Test
+    // Test that in deterministic mode the step gives the same result bit for bit on one thread and on several.
+    public void testDeterministicParallelStep() {
+
+        Ball[] balls = randomBalls(2000, 31);
+
+        Model one = new Model(balls, 10, 10, true, false);
+
+        Model several = new Model(balls, 10, 10, true, false);
+
+        one.setStepPool(new ForkJoinPool(1));
+
+        several.setStepPool(new ForkJoinPool(4));
+
+        one.setDeterministic(true);
+
+        several.setDeterministic(true);
+
+        for (int i = 0; i < 300; i++) {
+
+            one.step(1.0 / 60);
+
+            several.step(1.0 / 60);
+
+        }
+
+        for (int i = 0; i < 2000; i++) {
+
+            assertEquals(one.balls.x[i], several.balls.x[i], 0);
+
+            assertEquals(one.balls.y[i], several.balls.y[i], 0);
+
+            assertEquals(one.balls.vx[i], several.balls.vx[i], 0);
+
+            assertEquals(one.balls.vy[i], several.balls.vy[i], 0);
+
+        }
+
+        // Without gravity the kinetic energy is conserved, as with the strips.
+        Model free = new Model(randomBalls(2000, 31), 10, 10, false, false);
+
+        free.setStepPool(new ForkJoinPool(4));
+
+        free.setDeterministic(true);
+
+        double before = free.balls.kineticEnergy();
+
+        for (int i = 0; i < 300; i++) {
+
+            free.step(1.0 / 60);
+
+        }
+
+        assertEquals(before, free.balls.kineticEnergy(), d);
+
+        one.getStepPool().shutdown();
+
+        several.getStepPool().shutdown();
+
+        free.getStepPool().shutdown();
+
+    }
+
+    @Test
+    // Test that a slow ball that is still awake wakes the sleeping ball it runs into and hands it its momentum.
+    public void testSlowBallWakesSleeper() {
+
+        Ball[] balls = { new Ball(5, 5, 0, 0, 0.1, 1), new Ball(4.3, 5, 0.6, 0, 0.1, 1) };
+
+        Model model = new Model(balls, 10, 10, false, false);
+
+        model.setSleeping(0.5, 30);
+
+        for (int i = 0; i < 35; i++) {
+
+            model.step(1.0 / 60);
+
+        }
+
+        assertTrue(model.isAsleep(0) && !model.isAsleep(1));
+
+        // Slower than the sleep speed, but it has not been slow for long enough to fall asleep before it arrives.
+        model.balls.vx[1] = 0.45;
+
+        for (int i = 0; i < 30; i++) {
+
+            model.step(1.0 / 60);
+
+        }
+
+        assertTrue(!model.isAsleep(0));
+
+        assertEquals(0.45, balls[0].vx, 1e-12);
+
+        assertEquals(0, balls[1].vx, 1e-12);
+
+        boolean rejected = false;
+
+        try {
+
+            model.setStepPool(ForkJoinPool.commonPool());
+
+        } catch (IllegalStateException e) {
+
+            rejected = true;
+
+        }
+
+        assertTrue(rejected);
+
+    }
+
+    @Test
+    // Test that collecting metrics leaves the step unchanged and counts pairs, collisions and wall hits, also over JMX.
+    public void testStepMetrics() throws Exception {
+
+        Model model = new Model(randomBalls(100, 19), 10, 10, true, false);
+
+        Model plain = new Model(randomBalls(100, 19), 10, 10, true, false);
+
+        model.setBroadPhase(BroadPhase.ALL_PAIRS);
+
+        plain.setBroadPhase(BroadPhase.ALL_PAIRS);
+
+        StepMetrics metrics = new StepMetrics();
+
+        model.setMetrics(metrics);
+
+        for (int i = 0; i < 50; i++) {
+
+            model.step(1.0 / 60);
+
+            plain.step(1.0 / 60);
+
+        }
+
+        // Collecting metrics must not change the simulation.
+        for (int i = 0; i < 100; i++) {
+
+            assertEquals(plain.balls.x[i], model.balls.x[i], 0);
+
+            assertEquals(plain.balls.vy[i], model.balls.vy[i], 0);
+
+        }
+
+        assertEquals(50, metrics.getSteps());
+
+        // The all pairs loop tests every ball against every other ball.
+        assertEquals(50L * 100 * 99, metrics.getPairsTested());
+
+        assertTrue(metrics.getCollisions() > 0);
+
+        assertTrue(metrics.getOverlapCorrections() <= metrics.getCollisions());
+
+        assertTrue(metrics.getWallHits() > 0);
+
+        assertTrue(metrics.getStepNanosP50() <= metrics.getStepNanosP99());
+
+        assertTrue(metrics.getStepNanosP99() <= 2 * metrics.getMaxStepNanos());
+
+        metrics.register("test");
+
+        try {
+
+            ObjectName name = new ObjectName("src:type=StepMetrics,name=\"test\"");
+
+            assertEquals(50L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Steps"));
+
+        } finally {
+
+            metrics.unregister();
+
+        }
+
+        metrics.reset();
+
+        assertEquals(0, metrics.getSteps());
+
+    }
+
+    @Test
+    // Test that the running totals the step keeps match summing up the balls afresh, on one thread and on several.
+    public void testInvariants() {
+
+        for (int threads = 0; threads <= 4; threads += 4) {
+
+            Model model = new Model(randomBalls(1000, 37), 10, 10, true, false);
+
+            // Balls only sleep in the sequential step.
+            if (threads > 0) {
+
+                model.setStepPool(new ForkJoinPool(threads));
+
+            } else {
+
+                model.setSleeping(0.05, 30);
+
+            }
+
+            Invariants invariants = new Invariants();
+
+            model.setInvariants(invariants);
+
+            for (int i = 0; i < 600; i++) {
+
+                model.step(1.0 / 60);
+
+            }
+
+            double kinetic = 0, potential = 0, momentumX = 0, momentumY = 0, massX = 0, massY = 0, mass = 0;
+
+            for (int i = 0; i < 1000; i++) {
+
+                Ball ball = model.ball(i);
+
+                kinetic += kineticEnergy(ball);
+
+                potential += ball.mass * 9.82 * (ball.y - ball.radius);
+
+                momentumX += ball.mass * ball.vx;
+
+                momentumY += ball.mass * ball.vy;
+
+                massX += ball.mass * ball.x;
+
+                massY += ball.mass * ball.y;
+
+                mass += ball.mass;
+
+            }
+
+            assertEquals(kinetic, invariants.kineticEnergy(), 1e-9 * kinetic);
+
+            assertEquals(potential, invariants.potentialEnergy(), 1e-9 * potential);
+
+            assertEquals(momentumX, invariants.momentumX(), 1e-9);
+
+            assertEquals(momentumY, invariants.momentumY(), 1e-9);
+
+            assertEquals(massX / mass, invariants.centerOfMassX(), 1e-9);
+
+            assertEquals(massY / mass, invariants.centerOfMassY(), 1e-9);
+
+            assertEquals(mass, invariants.mass(), 1e-12);
+
+            if (threads > 0) {
+
+                model.getStepPool().shutdown();
+
+            }
+
+        }
+
+    }
+
+    // Helper method to create a reproducible scene of small balls spread over a 10x10 area.
+    private Ball[] randomBalls(int count, long seed) {
+
+        Random random = new Random(seed);
+
+        Ball[] balls = new Ball[count];
+
+        for (int i = 0; i < count; i++) {
+
+            double radius = 0.05 + random.nextDouble() * 0.1;
+
+            balls[i] = new Ball(
+
+                radius + random.nextDouble() * (10 - 2 * radius),
+
+                radius + random.nextDouble() * (10 - 2 * radius),
+
+                random.nextDouble() * 2 - 1, random.nextDouble() * 2 - 1, radius, radius * radius
+
+            );
+
+        }
+
+        return balls;
+
+    }
+
+    // Helper method to count the running printer threads of debug channels.
+    private long debugPrinters() {
+
+        return Thread.getAllStackTraces().keySet().stream().filter(t -> t.getName().equals("debug-printer")).count();
+
+    }
+
     // Helper method to calculate the kinetic energy of a ball.
     private double kineticEnergy(Ball b) {
 